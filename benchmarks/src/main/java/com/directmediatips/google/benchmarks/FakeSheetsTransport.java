@@ -0,0 +1,952 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.directmediatips.google.sheets.RangeCache.A1Range;
+import com.directmediatips.google.sheets.SheetService;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.sheets.v4.model.AddSheetRequest;
+import com.google.api.services.sheets.v4.model.AddSheetResponse;
+import com.google.api.services.sheets.v4.model.BatchClearValuesRequest;
+import com.google.api.services.sheets.v4.model.BatchClearValuesResponse;
+import com.google.api.services.sheets.v4.model.BatchGetValuesResponse;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetResponse;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesRequest;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesResponse;
+import com.google.api.services.sheets.v4.model.CellData;
+import com.google.api.services.sheets.v4.model.ClearValuesResponse;
+import com.google.api.services.sheets.v4.model.ExtendedValue;
+import com.google.api.services.sheets.v4.model.GridCoordinate;
+import com.google.api.services.sheets.v4.model.GridProperties;
+import com.google.api.services.sheets.v4.model.Request;
+import com.google.api.services.sheets.v4.model.Response;
+import com.google.api.services.sheets.v4.model.RowData;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.SheetProperties;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+import com.google.api.services.sheets.v4.model.UpdateCellsRequest;
+import com.google.api.services.sheets.v4.model.UpdateValuesResponse;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+/**
+ * An in-process stand-in for the Sheets v4 endpoints used by this library:
+ * <code>spreadsheets.get</code>, <code>spreadsheets.batchUpdate</code> and
+ * <code>values.get/update/clear/batchGet/batchUpdate/batchClear</code>.
+ * Pass it to {@link SheetService#SheetService(HttpTransport, com.google.api.client.http.HttpRequestInitializer)}
+ * to load-test the library without talking to Google.
+ *
+ * Every request can be delayed, rejected with 429 (at random or when a quota
+ * is exhausted) and rejected with 400 when its payload is too large.
+ * The transport counts the calls per endpoint and the bytes on the wire.
+ * Like the real API, it applies the <code>fields</code> mask to its responses
+ * and gzips them when the client accepts it.
+ */
+public class FakeSheetsTransport extends HttpTransport {
+	
+	/** The JSON factory used to read requests and write responses. */
+	private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+	
+	/** The default maximum request payload (10 MB, like the real API). */
+	public static final int DEFAULT_MAX_REQUEST_BYTES = 10 * 1024 * 1024;
+	
+	/**
+	 * A sheet (tab) of a fake spreadsheet.
+	 */
+	static class Grid {
+		/** The ID of the sheet. */
+		final int id;
+		/** The title of the sheet. */
+		final String title;
+		/** The cell values, row by row; missing cells are null. */
+		final List<List<Object>> rows = new ArrayList<List<Object>>();
+		
+		/**
+		 * Creates a Grid instance.
+		 *
+		 * @param id the ID of the sheet
+		 * @param title the title of the sheet
+		 */
+		Grid(int id, String title) {
+			this.id = id;
+			this.title = title;
+		}
+		
+		/**
+		 * Sets the value of a cell; null or an empty String clears it.
+		 *
+		 * @param row the row (0-based)
+		 * @param column the column (0-based)
+		 * @param value the new value
+		 */
+		void set(int row, int column, Object value) {
+			if ("".equals(value))
+				value = null;
+			if (value == null && row >= rows.size())
+				return;
+			while (rows.size() <= row)
+				rows.add(new ArrayList<Object>());
+			List<Object> cells = rows.get(row);
+			if (value == null && column >= cells.size())
+				return;
+			while (cells.size() <= column)
+				cells.add(null);
+			cells.set(column, value);
+		}
+		
+		/**
+		 * Gets the values in a range, formatted the way the API does:
+		 * trailing empty cells and rows are left out.
+		 *
+		 * @param range the range
+		 * @return the values
+		 */
+		List<List<Object>> get(A1Range range) {
+			List<List<Object>> values = new ArrayList<List<Object>>();
+			int last = 0;
+			int lastRow = Math.min(range.lastRow, rows.size() - 1);
+			for (int r = range.firstRow; r <= lastRow; r++) {
+				List<Object> cells = rows.get(r);
+				List<Object> row = new ArrayList<Object>();
+				int lastColumn = Math.min(range.lastColumn, cells.size() - 1);
+				int filled = 0;
+				for (int c = range.firstColumn; c <= lastColumn; c++) {
+					Object value = cells.get(c);
+					row.add(value == null ? "" : format(value));
+					if (value != null)
+						filled = row.size();
+				}
+				row = new ArrayList<Object>(row.subList(0, filled));
+				values.add(row);
+				if (filled > 0)
+					last = values.size();
+			}
+			return new ArrayList<List<Object>>(values.subList(0, last));
+		}
+		
+		/**
+		 * Clears the values in a range.
+		 *
+		 * @param range the range
+		 */
+		void clear(A1Range range) {
+			int lastRow = Math.min(range.lastRow, rows.size() - 1);
+			for (int r = range.firstRow; r <= lastRow; r++) {
+				List<Object> cells = rows.get(r);
+				int lastColumn = Math.min(range.lastColumn, cells.size() - 1);
+				for (int c = range.firstColumn; c <= lastColumn; c++)
+					cells.set(c, null);
+			}
+		}
+	}
+	
+	/**
+	 * A fake spreadsheet: its sheets, by lowercase title.
+	 */
+	static class Book {
+		/** The sheets in the order they were added. */
+		final Map<String, Grid> grids = new LinkedHashMap<String, Grid>();
+		
+		/**
+		 * Gets a sheet by ID.
+		 *
+		 * @param id the ID of a sheet
+		 * @return the sheet or null
+		 */
+		Grid get(int id) {
+			for (Grid grid : grids.values())
+				if (grid.id == id)
+					return grid;
+			return null;
+		}
+	}
+	
+	/**
+	 * An error answered by the fake.
+	 */
+	static class FakeError extends Exception {
+		/** The serial version UID. */
+		private static final long serialVersionUID = 1L;
+		/** The HTTP status code. */
+		final int status;
+		/** The status name, e.g. RESOURCE_EXHAUSTED. */
+		final String name;
+		
+		/**
+		 * Creates a FakeError instance.
+		 *
+		 * @param status the HTTP status code
+		 * @param name the status name
+		 * @param message the message
+		 */
+		FakeError(int status, String name, String message) {
+			super(message);
+			this.status = status;
+			this.name = name;
+		}
+	}
+	
+	/** The spreadsheets, by ID. */
+	protected final Map<String, Book> books = new ConcurrentHashMap<String, Book>();
+	
+	/** The fixed part of the latency of each call, in milliseconds. */
+	protected volatile long latency;
+	/** The random part of the latency of each call, in milliseconds. */
+	protected volatile long jitter;
+	/** The probability that a call is rejected with 429. */
+	protected volatile double throttleProbability;
+	/** The number of calls accepted per quota window, 0 for no quota. */
+	protected volatile int quota;
+	/** The length of a quota window, in milliseconds. */
+	protected volatile long quotaWindow = 60000;
+	/** The maximum size of a request payload, in bytes. */
+	protected volatile int maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+	
+	/** The start of the current quota window. */
+	private long windowStart;
+	/** The number of calls in the current quota window. */
+	private int windowCalls;
+	
+	/** The number of calls per endpoint, including rejected ones. */
+	private final Map<String, AtomicLong> calls = new ConcurrentHashMap<String, AtomicLong>();
+	/** The number of calls rejected with 429. */
+	private final AtomicLong throttled = new AtomicLong();
+	/** The number of calls rejected because of their size. */
+	private final AtomicLong tooLarge = new AtomicLong();
+	/** The number of request bytes on the wire. */
+	private final AtomicLong bytesIn = new AtomicLong();
+	/** The number of response bytes on the wire. */
+	private final AtomicLong bytesOut = new AtomicLong();
+	
+	/**
+	 * Sets the latency of every call.
+	 *
+	 * @param latency the fixed part, in milliseconds
+	 * @param jitter the random part (0 to jitter), in milliseconds
+	 * @return this transport
+	 */
+	public FakeSheetsTransport setLatency(long latency, long jitter) {
+		this.latency = latency;
+		this.jitter = jitter;
+		return this;
+	}
+	
+	/**
+	 * Rejects a fraction of the calls with 429, at random.
+	 *
+	 * @param probability a number between 0 and 1
+	 * @return this transport
+	 */
+	public FakeSheetsTransport setThrottleProbability(double probability) {
+		this.throttleProbability = probability;
+		return this;
+	}
+	
+	/**
+	 * Rejects calls with 429 once a number of calls per window is reached,
+	 * e.g. 100 calls per 100 seconds.
+	 *
+	 * @param calls the number of calls per window, 0 for no quota
+	 * @param window the length of the window, in milliseconds
+	 * @return this transport
+	 */
+	public FakeSheetsTransport setQuota(int calls, long window) {
+		this.quota = calls;
+		this.quotaWindow = window;
+		return this;
+	}
+	
+	/**
+	 * Rejects calls with 400 when their (uncompressed) payload is too large.
+	 *
+	 * @param bytes the maximum number of bytes
+	 * @return this transport
+	 */
+	public FakeSheetsTransport setMaxRequestBytes(int bytes) {
+		this.maxRequestBytes = bytes;
+		return this;
+	}
+	
+	/**
+	 * Creates an empty spreadsheet, if it doesn't exist yet.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 */
+	public void addSpreadsheet(String spreadsheetId) {
+		if (!books.containsKey(spreadsheetId))
+			books.put(spreadsheetId, new Book());
+	}
+	
+	/**
+	 * Adds a sheet to a spreadsheet, creating the spreadsheet if necessary.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 * @param title the title of the sheet
+	 * @param values the values of the sheet, starting in A1; may be null
+	 */
+	public void addSheet(String spreadsheetId, String title, List<List<Object>> values) {
+		addSpreadsheet(spreadsheetId);
+		Book book = books.get(spreadsheetId);
+		synchronized (book) {
+			Grid grid = new Grid(book.grids.size() + 1, title);
+			book.grids.put(title.toLowerCase(), grid);
+			if (values != null)
+				write(grid, 0, 0, values);
+		}
+	}
+	
+	/**
+	 * Gets the values of a range, as a values.get call would.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 * @param range a range in A1 notation
+	 * @return the values
+	 */
+	public List<List<Object>> getValues(String spreadsheetId, String range) {
+		Book book = books.get(spreadsheetId);
+		if (book == null)
+			return Collections.emptyList();
+		synchronized (book) {
+			A1Range a1 = A1Range.parse(range);
+			Grid grid = getGrid(book, a1);
+			return grid == null ? Collections.<List<Object>>emptyList() : grid.get(a1);
+		}
+	}
+	
+	/**
+	 * Gets the number of calls per endpoint, e.g. "values.get".
+	 *
+	 * @return a map sorted by endpoint
+	 */
+	public Map<String, Long> getCalls() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : calls.entrySet())
+			map.put(entry.getKey(), entry.getValue().get());
+		return map;
+	}
+	
+	/**
+	 * Gets the total number of calls, including rejected ones.
+	 *
+	 * @return the number of calls
+	 */
+	public long getTotalCalls() {
+		long total = 0;
+		for (AtomicLong count : calls.values())
+			total += count.get();
+		return total;
+	}
+	
+	/**
+	 * Gets the number of calls that were rejected with 429.
+	 *
+	 * @return the number of calls
+	 */
+	public long getThrottled() {
+		return throttled.get();
+	}
+	
+	/**
+	 * Gets the number of calls that were rejected because of their size.
+	 *
+	 * @return the number of calls
+	 */
+	public long getTooLarge() {
+		return tooLarge.get();
+	}
+	
+	/**
+	 * Gets the number of request bytes on the wire.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesIn() {
+		return bytesIn.get();
+	}
+	
+	/**
+	 * Gets the number of response bytes on the wire.
+	 *
+	 * @return the number of bytes
+	 */
+	public long getBytesOut() {
+		return bytesOut.get();
+	}
+	
+	/**
+	 * Resets all the counters (not the spreadsheets).
+	 */
+	public void resetCounters() {
+		calls.clear();
+		throttled.set(0);
+		tooLarge.set(0);
+		bytesIn.set(0);
+		bytesOut.set(0);
+	}
+	
+	@Override
+	protected LowLevelHttpRequest buildRequest(final String method, final String url) {
+		return new MockLowLevelHttpRequest(url) {
+			@Override
+			public MockLowLevelHttpResponse execute() throws IOException {
+				MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+						.setContentType("application/json; charset=UTF-8");
+				String content;
+				try {
+					Object result = handle(method, url, getBody(this));
+					Object mask = new GenericUrl(url).getFirst("fields");
+					content = JSON_FACTORY.toString(mask == null
+							? result : filter(result, parseMask(mask.toString(), new int[1])));
+				} catch (FakeError e) {
+					response.setStatusCode(e.status);
+					content = getErrorContent(e);
+				}
+				byte[] bytes = content.getBytes("UTF-8");
+				String accept = getFirstHeaderValue("Accept-Encoding");
+				if (accept != null && accept.contains("gzip")) {
+					ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+					GZIPOutputStream out = new GZIPOutputStream(zipped);
+					out.write(bytes);
+					out.close();
+					bytes = zipped.toByteArray();
+					response.setContentEncoding("gzip");
+				}
+				bytesOut.addAndGet(bytes.length);
+				return response.addHeader("Content-Length", Integer.toString(bytes.length))
+						.setContent(bytes);
+			}
+		};
+	}
+	
+	/**
+	 * Parses a field mask, e.g. "spreadsheetId,replies(addSheet(properties(sheetId,title)))",
+	 * into a tree of field names. An empty tree selects the whole value.
+	 *
+	 * @param mask the field mask
+	 * @param pos the position in the mask, updated while parsing
+	 * @return the selected fields
+	 */
+	protected static Map<String, Object> parseMask(String mask, int[] pos) {
+		Map<String, Object> fields = new LinkedHashMap<String, Object>();
+		while (pos[0] < mask.length()) {
+			char c = mask.charAt(pos[0]++);
+			if (c == ')')
+				break;
+			if (c == ',')
+				continue;
+			int start = pos[0] - 1;
+			while (pos[0] < mask.length() && ",()".indexOf(mask.charAt(pos[0])) < 0)
+				pos[0]++;
+			String[] path = mask.substring(start, pos[0]).trim().split("\\.");
+			Map<String, Object> selection = new LinkedHashMap<String, Object>();
+			if (pos[0] < mask.length() && mask.charAt(pos[0]) == '(') {
+				pos[0]++;
+				selection = parseMask(mask, pos);
+			}
+			Map<String, Object> node = fields;
+			for (int i = 0; i < path.length - 1; i++) {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> child = (Map<String, Object>)node.get(path[i]);
+				if (child == null) {
+					child = new LinkedHashMap<String, Object>();
+					node.put(path[i], child);
+				}
+				node = child;
+			}
+			node.put(path[path.length - 1], selection);
+		}
+		return fields;
+	}
+	
+	/**
+	 * Keeps the selected fields of a response, the way the API applies
+	 * the <code>fields</code> parameter.
+	 *
+	 * @param value a JSON object, a list or a primitive value
+	 * @param fields the selected fields, see {@link #parseMask(String, int[])}
+	 * @return the filtered value
+	 */
+	@SuppressWarnings("unchecked")
+	protected static Object filter(Object value, Map<String, Object> fields) {
+		if (fields.isEmpty())
+			return value;
+		if (value instanceof List) {
+			List<Object> list = new ArrayList<Object>();
+			for (Object item : (List<Object>)value)
+				list.add(filter(item, fields));
+			return list;
+		}
+		if (!(value instanceof Map))
+			return value;
+		Map<String, Object> map = (Map<String, Object>)value;
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, Object> field : fields.entrySet()) {
+			Object child = map.get(field.getKey());
+			if (child != null)
+				result.put(field.getKey(), filter(child, (Map<String, Object>)field.getValue()));
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads the body of a request, counting its size on the wire.
+	 *
+	 * @param request the request
+	 * @return the uncompressed body, or null if there is none
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected byte[] getBody(MockLowLevelHttpRequest request) throws IOException {
+		if (request.getStreamingContent() == null)
+			return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		request.getStreamingContent().writeTo(out);
+		bytesIn.addAndGet(out.size());
+		String encoding = request.getContentEncoding();
+		if (encoding == null || !encoding.contains("gzip"))
+			return out.toByteArray();
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()));
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		for (int n; (n = in.read(buffer)) > 0; )
+			body.write(buffer, 0, n);
+		return body.toByteArray();
+	}
+	
+	/**
+	 * Dispatches a call to the right endpoint, after applying
+	 * the latency, the quota and the payload limit.
+	 *
+	 * @param method the HTTP method
+	 * @param url the URL
+	 * @param body the request body or null
+	 * @return the response, before the field mask is applied
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @throws FakeError if the call is rejected
+	 */
+	protected Object handle(String method, String url, byte[] body) throws IOException, FakeError {
+		GenericUrl genericUrl = new GenericUrl(url);
+		List<String> parts = genericUrl.getPathParts();
+		// parts: "", "v4", "spreadsheets", id[:action], ["values", range[:action] | ":action"]
+		String spreadsheetId = parts.get(3);
+		String action = null;
+		String range = null;
+		if (parts.size() > 5) {
+			range = parts.get(5);
+		}
+		else if (parts.size() == 5 && parts.get(4).startsWith("values:")) {
+			action = parts.get(4).substring(7);
+		}
+		else if (spreadsheetId.contains(":")) {
+			action = spreadsheetId.substring(spreadsheetId.indexOf(':') + 1);
+			spreadsheetId = spreadsheetId.substring(0, spreadsheetId.indexOf(':'));
+		}
+		if (range != null && range.endsWith(":clear") && HttpMethods.POST.equals(method)) {
+			range = range.substring(0, range.length() - 6);
+			action = "clear";
+		}
+		String endpoint = parts.size() > 4
+				? "values." + (action != null ? action : HttpMethods.GET.equals(method) ? "get" : "update")
+				: "spreadsheets." + (action != null ? action : "get");
+		AtomicLong count = calls.get(endpoint);
+		if (count == null) {
+			calls.putIfAbsent(endpoint, new AtomicLong());
+			count = calls.get(endpoint);
+		}
+		count.incrementAndGet();
+		delay();
+		checkQuota();
+		if (body != null && body.length > maxRequestBytes) {
+			tooLarge.incrementAndGet();
+			throw new FakeError(400, "INVALID_ARGUMENT",
+					"Request payload size exceeds the limit: " + maxRequestBytes + " bytes.");
+		}
+		Book book = books.get(spreadsheetId);
+		if (book == null)
+			throw new FakeError(404, "NOT_FOUND", "Requested entity was not found.");
+		String json = body == null ? null : new String(body, "UTF-8");
+		synchronized (book) {
+			if ("spreadsheets.get".equals(endpoint))
+				return getSpreadsheet(spreadsheetId, book, genericUrl.getAll("ranges"));
+			if ("spreadsheets.batchUpdate".equals(endpoint))
+				return batchUpdate(spreadsheetId, book,
+						JSON_FACTORY.fromString(json, BatchUpdateSpreadsheetRequest.class));
+			if ("values.get".equals(endpoint))
+				return getValues(book, range);
+			if ("values.update".equals(endpoint))
+				return update(spreadsheetId, book, range,
+						JSON_FACTORY.fromString(json, ValueRange.class));
+			if ("values.clear".equals(endpoint))
+				return clear(spreadsheetId, book, range);
+			if ("values.batchGet".equals(endpoint)) {
+				List<ValueRange> ranges = new ArrayList<ValueRange>();
+				for (Object r : genericUrl.getAll("ranges"))
+					ranges.add(getValues(book, r.toString()));
+				return new BatchGetValuesResponse()
+						.setSpreadsheetId(spreadsheetId).setValueRanges(ranges);
+			}
+			if ("values.batchUpdate".equals(endpoint)) {
+				BatchUpdateValuesRequest request = JSON_FACTORY.fromString(json, BatchUpdateValuesRequest.class);
+				List<UpdateValuesResponse> responses = new ArrayList<UpdateValuesResponse>();
+				int cells = 0;
+				for (ValueRange valueRange : request.getData()) {
+					UpdateValuesResponse response = update(spreadsheetId, book, valueRange.getRange(), valueRange);
+					cells += response.getUpdatedCells();
+					responses.add(response);
+				}
+				return new BatchUpdateValuesResponse()
+						.setSpreadsheetId(spreadsheetId)
+						.setTotalUpdatedCells(cells)
+						.setResponses(responses);
+			}
+			if ("values.batchClear".equals(endpoint)) {
+				BatchClearValuesRequest request = JSON_FACTORY.fromString(json, BatchClearValuesRequest.class);
+				for (String r : request.getRanges())
+					clear(spreadsheetId, book, r);
+				return new BatchClearValuesResponse()
+						.setSpreadsheetId(spreadsheetId).setClearedRanges(request.getRanges());
+			}
+		}
+		throw new FakeError(404, "NOT_FOUND", "Unsupported endpoint " + method + " " + url);
+	}
+	
+	/**
+	 * Sleeps for the configured latency.
+	 *
+	 * @throws InterruptedIOException if the thread is interrupted
+	 */
+	protected void delay() throws InterruptedIOException {
+		long millis = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+	
+	/**
+	 * Rejects the call if it exceeds the quota or if it was picked at random.
+	 *
+	 * @throws FakeError a 429 error
+	 */
+	protected void checkQuota() throws FakeError {
+		boolean reject = throttleProbability > 0
+				&& ThreadLocalRandom.current().nextDouble() < throttleProbability;
+		if (!reject && quota > 0) {
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				if (now - windowStart >= quotaWindow) {
+					windowStart = now;
+					windowCalls = 0;
+				}
+				reject = ++windowCalls > quota;
+			}
+		}
+		if (reject) {
+			throttled.incrementAndGet();
+			throw new FakeError(429, "RESOURCE_EXHAUSTED",
+					"Insufficient tokens for quota 'WriteGroup' and limit 'USER-100s'.");
+		}
+	}
+	
+	/**
+	 * Builds the response of spreadsheets.get (sheet properties only).
+	 * Like a new sheet in Google Sheets, a sheet has at least 1000 rows.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 * @param book the spreadsheet
+	 * @param ranges the ranges of the request; only the sheets they refer to are returned, all sheets if empty
+	 * @return a Spreadsheet
+	 */
+	protected Spreadsheet getSpreadsheet(String spreadsheetId, Book book, Collection<Object> ranges) {
+		Set<String> titles = new HashSet<String>();
+		for (Object range : ranges) {
+			String title = String.valueOf(range);
+			if (title.indexOf('!') >= 0)
+				title = title.substring(0, title.lastIndexOf('!'));
+			if (title.length() > 1 && title.startsWith("'") && title.endsWith("'"))
+				title = title.substring(1, title.length() - 1).replace("''", "'");
+			titles.add(title.toLowerCase());
+		}
+		List<Sheet> sheets = new ArrayList<Sheet>();
+		int index = 0;
+		for (Grid grid : book.grids.values()) {
+			if (titles.isEmpty() || titles.contains(grid.title.toLowerCase()))
+				sheets.add(new Sheet().setProperties(new SheetProperties()
+						.setSheetId(grid.id).setTitle(grid.title).setIndex(index)
+						.setGridProperties(new GridProperties()
+								.setRowCount(Math.max(grid.rows.size(), 1000)).setColumnCount(26))));
+			index++;
+		}
+		return new Spreadsheet().setSpreadsheetId(spreadsheetId).setSheets(sheets);
+	}
+	
+	/**
+	 * Executes a spreadsheets.batchUpdate; only addSheet and updateCells
+	 * change the spreadsheet, other requests are accepted and ignored.
+	 * The requests are checked before any of them is applied.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 * @param book the spreadsheet
+	 * @param request the batch
+	 * @return the response
+	 * @throws FakeError if a sheet doesn't exist or already exists
+	 */
+	protected BatchUpdateSpreadsheetResponse batchUpdate(String spreadsheetId, Book book,
+			BatchUpdateSpreadsheetRequest request) throws FakeError {
+		Map<String, Integer> added = new LinkedHashMap<String, Integer>();
+		for (Request r : request.getRequests()) {
+			if (r.getAddSheet() != null) {
+				SheetProperties properties = r.getAddSheet().getProperties();
+				String title = properties.getTitle().toLowerCase();
+				if (book.grids.containsKey(title) || added.containsKey(title))
+					throw new FakeError(400, "INVALID_ARGUMENT", "Invalid requests[0].addSheet: A sheet with the name \""
+							+ properties.getTitle() + "\" already exists. Please enter another name.");
+				added.put(title, properties.getSheetId() != null ? properties.getSheetId() : book.grids.size() + added.size() + 1);
+			}
+			else if (r.getUpdateCells() != null) {
+				int sheetId = r.getUpdateCells().getStart().getSheetId() == null ? 0 : r.getUpdateCells().getStart().getSheetId();
+				if (book.get(sheetId) == null && !added.containsValue(sheetId))
+					throw new FakeError(400, "INVALID_ARGUMENT", "Invalid requests[0].updateCells: No grid with id: " + sheetId);
+			}
+		}
+		List<Response> replies = new ArrayList<Response>();
+		for (Request r : request.getRequests()) {
+			Response reply = new Response();
+			if (r.getAddSheet() != null) {
+				AddSheetRequest addSheet = r.getAddSheet();
+				String title = addSheet.getProperties().getTitle();
+				Grid grid = new Grid(added.get(title.toLowerCase()), title);
+				book.grids.put(title.toLowerCase(), grid);
+				reply.setAddSheet(new AddSheetResponse().setProperties(new SheetProperties()
+						.setSheetId(grid.id).setTitle(title).setIndex(book.grids.size() - 1)));
+			}
+			else if (r.getUpdateCells() != null) {
+				updateCells(book, r.getUpdateCells());
+			}
+			replies.add(reply);
+		}
+		return new BatchUpdateSpreadsheetResponse().setSpreadsheetId(spreadsheetId).setReplies(replies);
+	}
+	
+	/**
+	 * Applies an UpdateCells request (user entered values only).
+	 *
+	 * @param book the spreadsheet
+	 * @param request the request
+	 */
+	protected void updateCells(Book book, UpdateCellsRequest request) {
+		GridCoordinate start = request.getStart();
+		Grid grid = book.get(start.getSheetId() == null ? 0 : start.getSheetId());
+		int row = start.getRowIndex() == null ? 0 : start.getRowIndex();
+		int column = start.getColumnIndex() == null ? 0 : start.getColumnIndex();
+		if (request.getRows() == null)
+			return;
+		for (RowData rowData : request.getRows()) {
+			if (rowData.getValues() != null) {
+				int c = column;
+				for (CellData cell : rowData.getValues()) {
+					ExtendedValue value = cell.getUserEnteredValue();
+					Object v = null;
+					if (value != null) {
+						if (value.getStringValue() != null)
+							v = value.getStringValue();
+						else if (value.getNumberValue() != null)
+							v = value.getNumberValue();
+						else if (value.getBoolValue() != null)
+							v = value.getBoolValue();
+						else if (value.getFormulaValue() != null)
+							v = value.getFormulaValue();
+					}
+					grid.set(row, c++, v);
+				}
+			}
+			row++;
+		}
+	}
+	
+	/**
+	 * Builds the response of values.get.
+	 *
+	 * @param book the spreadsheet
+	 * @param range the range
+	 * @return the values
+	 * @throws FakeError if the sheet doesn't exist
+	 */
+	protected ValueRange getValues(Book book, String range) throws FakeError {
+		A1Range a1 = A1Range.parse(range);
+		Grid grid = getExistingGrid(book, a1, range);
+		List<List<Object>> values = grid.get(a1);
+		ValueRange valueRange = new ValueRange().setRange(range).setMajorDimension("ROWS");
+		if (!values.isEmpty())
+			valueRange.setValues(values);
+		return valueRange;
+	}
+	
+	/**
+	 * Executes a values.update.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 * @param book the spreadsheet
+	 * @param range the range
+	 * @param valueRange the values
+	 * @return the response
+	 * @throws FakeError if the sheet doesn't exist
+	 */
+	protected UpdateValuesResponse update(String spreadsheetId, Book book, String range,
+			ValueRange valueRange) throws FakeError {
+		A1Range a1 = A1Range.parse(range);
+		Grid grid = getExistingGrid(book, a1, range);
+		List<List<Object>> values = valueRange.getValues();
+		int cells = values == null ? 0 : write(grid, a1.firstRow, a1.firstColumn, values);
+		return new UpdateValuesResponse()
+				.setSpreadsheetId(spreadsheetId)
+				.setUpdatedRange(range)
+				.setUpdatedRows(values == null ? 0 : values.size())
+				.setUpdatedCells(cells);
+	}
+	
+	/**
+	 * Executes a values.clear.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 * @param book the spreadsheet
+	 * @param range the range
+	 * @return the response
+	 * @throws FakeError if the sheet doesn't exist
+	 */
+	protected ClearValuesResponse clear(String spreadsheetId, Book book, String range) throws FakeError {
+		A1Range a1 = A1Range.parse(range);
+		getExistingGrid(book, a1, range).clear(a1);
+		return new ClearValuesResponse().setSpreadsheetId(spreadsheetId).setClearedRange(range);
+	}
+	
+	/**
+	 * Writes a block of values to a sheet.
+	 *
+	 * @param grid the sheet
+	 * @param row the first row
+	 * @param column the first column
+	 * @param values the values
+	 * @return the number of cells that were written
+	 */
+	protected static int write(Grid grid, int row, int column, List<List<Object>> values) {
+		int cells = 0;
+		for (List<Object> cellValues : values) {
+			int c = column;
+			for (Object value : cellValues) {
+				grid.set(row, c++, value);
+				cells++;
+			}
+			row++;
+		}
+		return cells;
+	}
+	
+	/**
+	 * Gets the sheet of a range; a range without a sheet title
+	 * refers to the first sheet.
+	 *
+	 * @param book the spreadsheet
+	 * @param range the range
+	 * @return the sheet, or null
+	 */
+	protected static Grid getGrid(Book book, A1Range range) {
+		if (range.sheet == null)
+			return book.grids.isEmpty() ? null : book.grids.values().iterator().next();
+		return book.grids.get(range.sheet.toLowerCase());
+	}
+	
+	/**
+	 * Gets the sheet of a range, like the real API would.
+	 *
+	 * @param book the spreadsheet
+	 * @param range the parsed range
+	 * @param text the range as passed in the request
+	 * @return the sheet
+	 * @throws FakeError if the sheet doesn't exist
+	 */
+	protected static Grid getExistingGrid(Book book, A1Range range, String text) throws FakeError {
+		Grid grid = getGrid(book, range);
+		if (grid == null)
+			throw new FakeError(400, "INVALID_ARGUMENT", "Unable to parse range: " + text);
+		return grid;
+	}
+	
+	/**
+	 * Formats a stored value the way the API returns it by default.
+	 *
+	 * @param value a String, a Double, a BigDecimal or a Boolean
+	 * @return the formatted value
+	 */
+	protected static String format(Object value) {
+		if (value instanceof Double) {
+			double d = (Double) value;
+			if (d == Math.rint(d) && !Double.isInfinite(d))
+				return Long.toString((long) d);
+			return value.toString();
+		}
+		if (value instanceof BigDecimal) {
+			BigDecimal d = ((BigDecimal) value).stripTrailingZeros();
+			return d.scale() <= 0 ? d.toBigInteger().toString() : d.toPlainString();
+		}
+		if (value instanceof Boolean)
+			return ((Boolean) value).booleanValue() ? "TRUE" : "FALSE";
+		return value.toString();
+	}
+	
+	/**
+	 * Builds the JSON error response of the API.
+	 *
+	 * @param error the error
+	 * @return the JSON
+	 */
+	protected static String getErrorContent(FakeError error) {
+		String message = error.getMessage().replace("\\", "\\\\").replace("\"", "\\\"");
+		return "{\"error\":{\"code\":" + error.status + ",\"message\":\"" + message
+				+ "\",\"errors\":[{\"message\":\"" + message + "\",\"domain\":\"global\",\"reason\":\"" + error.name
+				+ "\"}],\"status\":\"" + error.name + "\"}}";
+	}
+}
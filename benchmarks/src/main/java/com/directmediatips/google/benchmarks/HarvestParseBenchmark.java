@@ -0,0 +1,109 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.directmediatips.google.sheets.twitter.TwitterHarvest;
+
+/**
+ * Measures how fast rows of a harvest sheet are parsed
+ * with {@link TwitterHarvest#getId} and {@link TwitterHarvest#getAccount}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HarvestParseBenchmark {
+	
+	/**
+	 * Subclass giving access to the parsing methods.
+	 */
+	static class Harvest extends TwitterHarvest {
+		
+		/**
+		 * Creates a Harvest instance without a service.
+		 */
+		Harvest() {
+			super(null, null, "account");
+		}
+		
+		/**
+		 * Parses a row the way the windows of iterateHarvestData() are parsed.
+		 *
+		 * @param row a row as returned by the Sheets API
+		 * @param bh the black hole
+		 */
+		void parse(List<Object> row, Blackhole bh) {
+			bh.consume(getId(row.get(0).toString()));
+			bh.consume(getAccount(row));
+		}
+	}
+	
+	/** The number of rows in the response. */
+	@Param({"10000", "100000", "1000000"})
+	public int rows;
+	
+	/** The rows, as the Sheets API returns them (all Strings). */
+	private List<List<Object>> values;
+	
+	/**
+	 * Generates the rows; one in a hundred has no ID yet.
+	 */
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		values = new ArrayList<List<Object>>(rows);
+		for (int i = 0; i < rows; i++) {
+			List<Object> row = new ArrayList<Object>(5);
+			row.add(i % 100 == 0 ? "" : Long.toString(1000000L + (random.nextLong() & 0xffffffffffL)));
+			row.add("user" + i);
+			row.add(Integer.toString(random.nextInt(2)));
+			row.add(Integer.toString(random.nextInt(2)));
+			row.add(Integer.toString(random.nextInt(2)));
+			values.add(row);
+		}
+	}
+	
+	/**
+	 * Parses all the rows.
+	 *
+	 * @param bh the black hole consuming the results
+	 */
+	@Benchmark
+	public void parse(Blackhole bh) {
+		Harvest harvest = new Harvest();
+		for (List<Object> row : values)
+			harvest.parse(row, bh);
+	}
+}
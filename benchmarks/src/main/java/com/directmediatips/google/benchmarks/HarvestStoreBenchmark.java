@@ -0,0 +1,183 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.directmediatips.google.sheets.RowTable;
+import com.directmediatips.google.sheets.twitter.HarvestStore;
+import com.directmediatips.google.sheets.twitter.TwitterHarvest;
+
+/**
+ * Compares a <code>HashMap&lt;Long, Account&gt;</code> with a {@link HarvestStore}:
+ * building it from a harvest table and checking every row against the database
+ * the way a DB sync does. Run with <code>-prof gc</code> to compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HarvestStoreBenchmark {
+	
+	/**
+	 * Subclass giving access to the conversion methods.
+	 */
+	static class Harvest extends TwitterHarvest {
+		
+		/**
+		 * Creates a Harvest instance without a service.
+		 */
+		Harvest() {
+			super(null, null, "account");
+		}
+		
+		/**
+		 * Builds the map the way getHarvestData() does.
+		 *
+		 * @param table the harvest table
+		 * @return a map with account IDs as key
+		 */
+		Map<Long, Account> toMap(RowTable table) {
+			Map<Long, Account> map = new HashMap<Long, Account>(Math.max(16, table.size() * 4 / 3 + 1));
+			for (int row = 0; row < table.size(); row++) {
+				long id = table.getLong(0, row);
+				map.put(id > 0 ? id : HarvestStore.getPlaceholderId(row), getAccount(table, row));
+			}
+			return map;
+		}
+		
+		/**
+		 * Builds the store the way getHarvestStore() does.
+		 *
+		 * @param table the harvest table
+		 * @return a store indexed by account ID
+		 */
+		HarvestStore toStore(RowTable table) {
+			return getHarvestStore(table);
+		}
+	}
+	
+	/** The number of rows in the sheet. */
+	@Param({"100000", "1000000"})
+	public int rows;
+	
+	/** The rows, as decoded by the RowCodec. */
+	private RowTable table;
+	/** The harvest info as a map. */
+	private Map<Long, TwitterHarvest.Account> map;
+	/** The harvest info as a store. */
+	private HarvestStore store;
+	/** The IDs and values in the database, in a different order than the sheet. */
+	private long[] ids;
+	/** The values in the database: follow friends, follow followers and retweet per ID. */
+	private int[] values;
+	
+	/**
+	 * Generates the rows; one in a hundred has no ID yet.
+	 */
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		table = new RowTable(TwitterHarvest.SCHEMA, rows);
+		ids = new long[rows];
+		values = new int[rows * 3];
+		for (int i = 0; i < rows; i++) {
+			int row = table.addRow();
+			long id = 1000000L + (random.nextLong() & 0xffffffffffL);
+			table.setLong(0, row, i % 100 == 0 ? 0 : id);
+			table.setString(1, row, "user" + i);
+			for (int c = 0; c < 3; c++)
+				table.setInt(2 + c, row, random.nextInt(2));
+			int j = random.nextInt(i + 1);
+			ids[i] = ids[j];
+			ids[j] = id;
+			for (int c = 0; c < 3; c++) {
+				values[i * 3 + c] = values[j * 3 + c];
+				values[j * 3 + c] = random.nextInt(2);
+			}
+		}
+		Harvest harvest = new Harvest();
+		map = harvest.toMap(table);
+		store = harvest.toStore(table);
+	}
+	
+	/**
+	 * Builds a map with an Account object per row.
+	 *
+	 * @return the map
+	 */
+	@Benchmark
+	public Map<Long, TwitterHarvest.Account> buildMap() {
+		return new Harvest().toMap(table);
+	}
+	
+	/**
+	 * Builds a store.
+	 *
+	 * @return the store
+	 */
+	@Benchmark
+	public HarvestStore buildStore() {
+		return new Harvest().toStore(table);
+	}
+	
+	/**
+	 * Checks every database row against the map.
+	 *
+	 * @return the number of unchanged rows
+	 */
+	@Benchmark
+	public int syncMap() {
+		int unchanged = 0;
+		for (int i = 0; i < ids.length; i++) {
+			TwitterHarvest.Account account = map.get(ids[i]);
+			if (account != null && account.isUnchanged(values[i * 3], values[i * 3 + 1], values[i * 3 + 2]))
+				unchanged++;
+		}
+		return unchanged;
+	}
+	
+	/**
+	 * Checks every database row against the store.
+	 *
+	 * @return the number of unchanged rows
+	 */
+	@Benchmark
+	public int syncStore() {
+		int unchanged = 0;
+		for (int i = 0; i < ids.length; i++) {
+			if (store.isUnchanged(ids[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]))
+				unchanged++;
+		}
+		return unchanged;
+	}
+}
@@ -0,0 +1,110 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
+import com.google.api.services.sheets.v4.model.CellData;
+import com.google.api.services.sheets.v4.model.ExtendedValue;
+import com.google.api.services.sheets.v4.model.GridCoordinate;
+import com.google.api.services.sheets.v4.model.Request;
+import com.google.api.services.sheets.v4.model.RowData;
+import com.google.api.services.sheets.v4.model.UpdateCellsRequest;
+
+/**
+ * Measures the cost of building the UpdateCells request of a metric row
+ * and of serializing a batch of such requests to JSON.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetricsRequestBenchmark {
+	
+	/** The JSON factory used by the Sheets client. */
+	private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+	
+	/** The number of metric rows in a batch. */
+	@Param({"1", "100", "1000"})
+	public int rows;
+	
+	/** The date of the metrics. */
+	private final Date date = new Date();
+	
+	/**
+	 * Builds the request for one metric row, as UpdateMetrics does.
+	 *
+	 * @param row the row index
+	 * @return an UpdateCells request
+	 */
+	private Request buildRow(int row) {
+		List<CellData> values = new ArrayList<CellData>();
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue(new SimpleDateFormat("yyyy-MM-dd").format(date))));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue(12345.0)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue(678.0)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue(9012.0)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue(3456.0)));
+		return new Request().setUpdateCells(new UpdateCellsRequest()
+				.setStart(new GridCoordinate().setSheetId(123456).setRowIndex(row).setColumnIndex(0))
+				.setRows(Arrays.asList(new RowData().setValues(values)))
+				.setFields("userEnteredValue"));
+	}
+	
+	/**
+	 * Builds the requests of a batch.
+	 *
+	 * @return the batch
+	 */
+	@Benchmark
+	public BatchUpdateSpreadsheetRequest build() {
+		List<Request> requests = new ArrayList<Request>(rows);
+		for (int i = 0; i < rows; i++)
+			requests.add(buildRow(i % 31 + 1));
+		return new BatchUpdateSpreadsheetRequest().setRequests(requests);
+	}
+	
+	/**
+	 * Builds the requests of a batch and serializes them to JSON.
+	 *
+	 * @return the JSON
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public String serialize() throws IOException {
+		return JSON_FACTORY.toString(build());
+	}
+}
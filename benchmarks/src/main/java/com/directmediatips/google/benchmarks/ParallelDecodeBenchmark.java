@@ -0,0 +1,127 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.directmediatips.google.sheets.ParallelDecoder;
+import com.directmediatips.google.sheets.twitter.TwitterRichData;
+
+/**
+ * Measures how fast the followers info of {@link TwitterRichData}
+ * (as returned by the Sheets API) is decoded, with and without
+ * a {@link ParallelDecoder} pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParallelDecodeBenchmark {
+	
+	/**
+	 * Subclass giving access to the decoding method.
+	 */
+	static class RichData extends TwitterRichData {
+		
+		/**
+		 * Creates a RichData instance without a service.
+		 */
+		RichData() {
+			super(null, null);
+		}
+		
+		/**
+		 * Decodes the rows the way getSnapshot() does.
+		 *
+		 * @param values the rows
+		 * @return a map with account IDs as key
+		 */
+		Map<Long, Account> decode(List<List<Object>> values) {
+			return toAccounts(values);
+		}
+	}
+	
+	/** The number of rows in the response. */
+	@Param({"100000", "1000000"})
+	public int rows;
+	
+	/** The number of threads decoding the rows; 1 decodes in the calling thread. */
+	@Param({"1", "8"})
+	public int threads;
+	
+	/** The rows, as the Sheets API returns them (all Strings). */
+	private List<List<Object>> values;
+	/** The pool, if any. */
+	private ForkJoinPool pool;
+	
+	/**
+	 * Generates the rows: an ID, a screen name and 24 flags.
+	 */
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		values = new ArrayList<List<Object>>(rows);
+		for (int i = 0; i < rows; i++) {
+			List<Object> row = new ArrayList<Object>(26);
+			row.add(Long.toString(1000000L + (random.nextLong() & 0xffffffffffL)));
+			row.add("user" + i);
+			for (int a = 0; a < RichDataBenchmark.ACCOUNTS; a++)
+				row.add(random.nextInt(8) == 0 ? "1" : "0");
+			values.add(row);
+		}
+		pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		ParallelDecoder.setInstance(new ParallelDecoder(pool, ParallelDecoder.DEFAULT_THRESHOLD));
+	}
+	
+	/**
+	 * Shuts the pool down.
+	 */
+	@TearDown
+	public void tearDown() {
+		ParallelDecoder.setInstance(null);
+		if (pool != null)
+			pool.shutdown();
+	}
+	
+	/**
+	 * Decodes all the rows.
+	 *
+	 * @return the map
+	 */
+	@Benchmark
+	public Map<Long, TwitterRichData.Account> decode() {
+		return new RichData().decode(values);
+	}
+}
@@ -0,0 +1,122 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.directmediatips.google.sheets.twitter.TwitterRichData;
+
+/**
+ * Measures how fast followers are added to {@link TwitterRichData}
+ * and how fast the result rows are built from them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class RichDataBenchmark {
+	
+	/** The number of our own accounts (columns C to Z). */
+	public static final int ACCOUNTS = 24;
+	
+	/** The number of distinct followers. */
+	@Param({"10000", "100000", "1000000", "5000000"})
+	public int followers;
+	
+	/** The follower IDs, one entry per (follower, account) pair. */
+	private long[] ids;
+	/** The screen names, one entry per (follower, account) pair. */
+	private String[] names;
+	/** Our account index, one entry per (follower, account) pair. */
+	private int[] accounts;
+	/** Rich data that was filled in advance, for the process benchmark. */
+	private TwitterRichData filled;
+	
+	/**
+	 * Generates followers that each follow one to four of our accounts,
+	 * in the order in which we'd receive them: account by account.
+	 */
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		long[] followerIds = new long[followers];
+		int[] mask = new int[followers];
+		int pairs = 0;
+		for (int i = 0; i < followers; i++) {
+			followerIds[i] = 1000000L + (random.nextLong() & 0xffffffffffL);
+			int n = 1 + random.nextInt(4);
+			for (int j = 0; j < n; j++)
+				mask[i] |= 1 << random.nextInt(ACCOUNTS);
+			pairs += Integer.bitCount(mask[i]);
+		}
+		ids = new long[pairs];
+		names = new String[pairs];
+		accounts = new int[pairs];
+		int p = 0;
+		for (int a = 0; a < ACCOUNTS; a++) {
+			for (int i = 0; i < followers; i++) {
+				if ((mask[i] & (1 << a)) != 0) {
+					ids[p] = followerIds[i];
+					names[p] = "user" + i;
+					accounts[p++] = a;
+				}
+			}
+		}
+		filled = add();
+	}
+	
+	/**
+	 * Adds all (follower, account) pairs to a new TwitterRichData instance.
+	 *
+	 * @return the filled instance
+	 */
+	@Benchmark
+	public TwitterRichData add() {
+		TwitterRichData data = new TwitterRichData(null, null);
+		for (int i = 0; i < ids.length; i++)
+			data.add(ids[i], names[i], accounts[i]);
+		return data;
+	}
+	
+	/**
+	 * Builds all the result rows, as process() does before sending them.
+	 *
+	 * @param bh the black hole consuming the rows
+	 */
+	@Benchmark
+	public void process(Blackhole bh) {
+		Iterator<List<Object>> rows = filled.getRows(ACCOUNTS);
+		while (rows.hasNext())
+			bh.consume(rows.next());
+	}
+}
@@ -0,0 +1,159 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.directmediatips.google.sheets.RowCodec;
+import com.directmediatips.google.sheets.RowTable;
+import com.directmediatips.google.sheets.twitter.TwitterHarvest;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonGenerator;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Charsets;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+/**
+ * Compares reading and writing a harvest sheet through a {@link ValueRange}
+ * (as the Sheets client does) with the {@link RowCodec} of {@link TwitterHarvest}.
+ * Run with <code>-prof gc</code> to compare the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RowCodecBenchmark {
+	
+	/** The JSON factory of the Sheets client. */
+	private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
+	
+	/** The number of rows in the response. */
+	@Param({"10000", "100000"})
+	public int rows;
+	
+	/** The codec. */
+	private final RowCodec codec = new RowCodec(TwitterHarvest.SCHEMA);
+	/** The JSON of the response. */
+	private byte[] json;
+	/** The decoded rows, to measure writing. */
+	private RowTable table;
+	/** The rows as lists, to measure writing. */
+	private ValueRange valueRange;
+	
+	/**
+	 * Generates the response: IDs as text, flags as numbers
+	 * (as returned with UNFORMATTED_VALUE).
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Setup
+	public void setup() throws IOException {
+		Random random = new Random(42);
+		List<List<Object>> values = new ArrayList<List<Object>>(rows);
+		for (int i = 0; i < rows; i++) {
+			List<Object> row = new ArrayList<Object>(5);
+			row.add(i % 100 == 0 ? "" : Long.toString(1000000L + (random.nextLong() & 0xffffffffffL)));
+			row.add("user" + i);
+			row.add(random.nextInt(2));
+			row.add(random.nextInt(2));
+			row.add(random.nextInt(2));
+			values.add(row);
+		}
+		valueRange = new ValueRange().setRange("account!A1:E" + rows).setMajorDimension("ROWS").setValues(values);
+		json = JSON_FACTORY.toByteArray(valueRange);
+		table = codec.decode(new ByteArrayInputStream(json));
+	}
+	
+	/**
+	 * Parses the response into a ValueRange and the rows into primitives,
+	 * the way the Sheets client and TwitterHarvest.getAccount do.
+	 *
+	 * @param bh the black hole consuming the results
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public void decodeValueRange(Blackhole bh) throws IOException {
+		ValueRange response = JSON_FACTORY.createJsonParser(new ByteArrayInputStream(json))
+				.parse(ValueRange.class);
+		for (List<Object> row : response.getValues()) {
+			String id = row.get(0).toString();
+			bh.consume(id.isEmpty() ? 0 : Long.parseLong(id));
+			bh.consume(row.get(1));
+			bh.consume(Integer.parseInt(row.get(2).toString()));
+			bh.consume(Integer.parseInt(row.get(3).toString()));
+			bh.consume(Integer.parseInt(row.get(4).toString()));
+		}
+	}
+	
+	/**
+	 * Parses the response straight into primitive columns.
+	 *
+	 * @return the table
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public RowTable decodeCodec() throws IOException {
+		return codec.decode(new ByteArrayInputStream(json));
+	}
+	
+	/**
+	 * Serializes the rows as a ValueRange.
+	 *
+	 * @return the size of the JSON
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public int encodeValueRange() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+		JsonGenerator generator = JSON_FACTORY.createJsonGenerator(out, Charsets.UTF_8);
+		generator.serialize(valueRange);
+		generator.flush();
+		return out.size();
+	}
+	
+	/**
+	 * Serializes the primitive columns.
+	 *
+	 * @return the size of the JSON
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Benchmark
+	public int encodeCodec() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(json.length);
+		codec.encode("account!A1:E", table, 0, table.size()).writeTo(out);
+		return out.size();
+	}
+}
@@ -0,0 +1,442 @@
+package com.directmediatips.google.benchmarks;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.directmediatips.google.sheets.OperationStats;
+import com.directmediatips.google.sheets.QuotaLimiter;
+import com.directmediatips.google.sheets.RangeCache;
+import com.directmediatips.google.sheets.SheetMetrics;
+import com.directmediatips.google.sheets.SheetService;
+import com.directmediatips.google.sheets.twitter.MetricsBatchWriter;
+import com.directmediatips.google.sheets.twitter.MetricsScheduler;
+import com.directmediatips.google.sheets.twitter.TwitterHarvest;
+import com.directmediatips.google.sheets.twitter.TwitterMetrics;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
+import com.google.api.services.sheets.v4.model.CellData;
+import com.google.api.services.sheets.v4.model.ExtendedValue;
+import com.google.api.services.sheets.v4.model.GridCoordinate;
+import com.google.api.services.sheets.v4.model.Request;
+import com.google.api.services.sheets.v4.model.RowData;
+import com.google.api.services.sheets.v4.model.UpdateCellsRequest;
+
+/**
+ * Runs a metrics or harvest workload against a {@link FakeSheetsTransport}
+ * and reports the logical operations per second, the API calls per operation
+ * and the latency percentiles of an operation.
+ *
+ * Arguments are <code>name=value</code> pairs, e.g.
+ * <code>workload=harvest threads=8 operations=2000 latency=80 throttle=0.02</code>:
+ * <ul>
+ * <li>workload: <code>metrics</code> (one UpdateMetrics per operation),
+ * <code>batched</code> (metrics through a {@link MetricsBatchWriter}),
+ * <code>scheduled</code> (one snapshot per operation, all written by a
+ * {@link MetricsScheduler} at the end) or
+ * <code>harvest</code> (read and update the harvest sheet of an account)</li>
+ * <li>threads, operations, accounts: the size of the run</li>
+ * <li>spreadsheets: the number of spreadsheets of the scheduled workload</li>
+ * <li>rows: the number of rows in each harvest sheet</li>
+ * <li>latency, jitter: the latency of each API call, in milliseconds</li>
+ * <li>throttle: the probability of a 429 answer</li>
+ * <li>quota, window: the number of API calls per window (in milliseconds)</li>
+ * <li>maxBytes: the maximum request payload</li>
+ * <li>rate: the reads and writes per second allowed by the {@link QuotaLimiter}</li>
+ * <li>compact: <code>false</code> to run without field masks and value-only writes;
+ * the driver switches compact mode on otherwise, see {@link SheetService#setCompact(boolean)}</li>
+ * </ul>
+ */
+public class SheetsLoadDriver {
+	
+	/** The ID of the fake spreadsheet. */
+	public static final String SPREADSHEET = "fake-spreadsheet";
+	
+	/** The arguments. */
+	protected final Map<String, String> options;
+	/** The fake API. */
+	protected final FakeSheetsTransport fake = new FakeSheetsTransport();
+	/** The Sheets client talking to the fake API. */
+	protected Sheets sheets;
+	
+	/**
+	 * Creates a SheetsLoadDriver instance.
+	 *
+	 * @param options the name=value arguments
+	 */
+	public SheetsLoadDriver(Map<String, String> options) {
+		this.options = options;
+	}
+	
+	/**
+	 * Gets a numeric option.
+	 *
+	 * @param name the name of the option
+	 * @param defaultValue the value if the option is missing
+	 * @return the value
+	 */
+	protected double get(String name, double defaultValue) {
+		String value = options.get(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+	
+	/**
+	 * Runs the workload and prints the report.
+	 *
+	 * @throws Exception if the workload fails
+	 */
+	public void run() throws Exception {
+		String workload = options.containsKey("workload") ? options.get("workload") : "metrics";
+		final int threads = (int)get("threads", 8);
+		final int operations = (int)get("operations", 1000);
+		final int accounts = (int)get("accounts", 24);
+		double rate = get("rate", 1000);
+		fake.setLatency((long)get("latency", 50), (long)get("jitter", 20))
+			.setThrottleProbability(get("throttle", 0))
+			.setQuota((int)get("quota", 0), (long)get("window", 60000))
+			.setMaxRequestBytes((int)get("maxBytes", FakeSheetsTransport.DEFAULT_MAX_REQUEST_BYTES));
+		fake.addSpreadsheet(SPREADSHEET);
+		SheetService.setCompact(!"false".equals(options.get("compact")));
+		QuotaLimiter.setInstance(new QuotaLimiter(rate, rate, 10));
+		SheetMetrics.setInstance(new SheetMetrics(false));
+		// keep the fake data out of the snapshot of the real cache
+		RangeCache.setInstance(new RangeCache(RangeCache.DEFAULT_MAX_CELLS));
+		SheetService service = new SheetService(fake, null);
+		sheets = service.getClient();
+		final Operation operation;
+		if ("harvest".equals(workload)) {
+			operation = new HarvestOperation((int)get("rows", 5000), accounts);
+		}
+		else if ("batched".equals(workload)) {
+			operation = new BatchedMetricsOperation(accounts);
+		}
+		else if ("scheduled".equals(workload)) {
+			operation = new ScheduledMetricsOperation(accounts, (int)get("spreadsheets", 1));
+		}
+		else {
+			operation = new MetricsOperation(accounts);
+		}
+		fake.resetCounters();
+		for (OperationStats stats : SheetMetrics.getInstance().getStats().values())
+			stats.reset();
+		final long[] latencies = new long[operations];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicLong failures = new AtomicLong();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			futures.add(pool.submit(new Runnable() {
+				public void run() {
+					for (int i; (i = next.getAndIncrement()) < operations; ) {
+						long begin = System.nanoTime();
+						try {
+							operation.execute(i);
+						} catch (IOException e) {
+							failures.incrementAndGet();
+						}
+						latencies[i] = System.nanoTime() - begin;
+					}
+				}
+			}));
+		}
+		for (Future<?> future : futures)
+			future.get();
+		operation.finish();
+		long elapsed = System.nanoTime() - start;
+		pool.shutdown();
+		service.close();
+		report(workload, operations, threads, elapsed, latencies, failures.get());
+	}
+	
+	/**
+	 * Prints the results of a run.
+	 *
+	 * @param workload the name of the workload
+	 * @param operations the number of logical operations
+	 * @param threads the number of threads
+	 * @param elapsed the duration of the run, in nanoseconds
+	 * @param latencies the latency of each operation, in nanoseconds
+	 * @param failures the number of operations that failed
+	 */
+	protected void report(String workload, int operations, int threads, long elapsed,
+			long[] latencies, long failures) {
+		Arrays.sort(latencies);
+		double seconds = elapsed / 1e9;
+		long calls = fake.getTotalCalls();
+		System.out.println(String.format("workload     %s (%d operations, %d threads)", workload, operations, threads));
+		System.out.println(String.format("throughput   %.1f operations/s, %.1f API calls/s", operations / seconds, calls / seconds));
+		System.out.println(String.format("calls/op     %.3f", (double)calls / operations));
+		System.out.println(String.format("latency      p50 %.1f ms, p99 %.1f ms, max %.1f ms",
+				percentile(latencies, 0.50), percentile(latencies, 0.99), latencies[latencies.length - 1] / 1e6));
+		System.out.println(String.format("rejected     %d throttled (429), %d too large (400), %d operations failed",
+				fake.getThrottled(), fake.getTooLarge(), failures));
+		System.out.println(String.format("bytes        %d sent, %d received", fake.getBytesIn(), fake.getBytesOut()));
+		for (Map.Entry<String, Long> entry : fake.getCalls().entrySet())
+			System.out.println(String.format("  %-26s %d", entry.getKey(), entry.getValue()));
+		for (OperationStats stats : SheetMetrics.getInstance().getStats().values()) {
+			if (stats.getCalls() == 0)
+				continue;
+			System.out.println(String.format("  %-26s %d calls, %d retries, %d errors %s, p50 %.1f ms, p99 %.1f ms, %d (%d) / %d bytes",
+					stats.getOperation(), stats.getCalls(), stats.getRetries(), stats.getErrors(), stats.getErrorCodes(),
+					stats.getLatency50(), stats.getLatency99(), stats.getRequestBytes(), stats.getRequestWireBytes(), stats.getResponseBytes()));
+		}
+	}
+	
+	/**
+	 * Gets a percentile of sorted latencies.
+	 *
+	 * @param sorted the sorted latencies, in nanoseconds
+	 * @param p the percentile, e.g. 0.99
+	 * @return the latency in milliseconds
+	 */
+	protected static double percentile(long[] sorted, double p) {
+		int index = (int)Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1e6;
+	}
+	
+	/**
+	 * A logical operation of a workload.
+	 */
+	interface Operation {
+		
+		/**
+		 * Executes the i-th operation.
+		 *
+		 * @param i the number of the operation
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void execute(int i) throws IOException;
+		
+		/**
+		 * Called once after the last operation, e.g. to flush buffers.
+		 *
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		void finish() throws IOException;
+	}
+	
+	/**
+	 * Updates the metrics of one account per operation,
+	 * the way TwitterMetrics.UpdateMetrics does.
+	 */
+	class MetricsOperation implements Operation {
+		
+		/** The number of accounts. */
+		final int accounts;
+		
+		/**
+		 * Creates a MetricsOperation instance.
+		 *
+		 * @param accounts the number of accounts
+		 */
+		MetricsOperation(int accounts) {
+			this.accounts = accounts;
+		}
+		
+		public void execute(int i) throws IOException {
+			Date date = new Date();
+			TwitterMetrics sheetname = new TwitterMetrics(sheets, SPREADSHEET, "account" + (i % accounts), date);
+			List<CellData> values = new ArrayList<CellData>();
+			values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue(new SimpleDateFormat("yyyy-MM-dd").format(date))));
+			for (int c = 1; c <= 4; c++)
+				values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)(i * c))));
+			Calendar cal = Calendar.getInstance();
+			cal.setTime(date);
+			UpdateCellsRequest updateCellRequest = new UpdateCellsRequest()
+					.setStart(new GridCoordinate()
+							.setSheetId(sheetname.getSheetId(sheetname.getSheetTitle()))
+							.setRowIndex(cal.get(Calendar.DAY_OF_MONTH))
+							.setColumnIndex(0))
+					.setRows(Arrays.asList(new RowData().setValues(values)))
+					.setFields("*");
+			List<Request> requests = new ArrayList<Request>();
+			requests.add(new Request().setUpdateCells(updateCellRequest));
+			String operation = SheetMetrics.setOperation(SheetMetrics.METRICS_WRITE);
+			try {
+				sheets.spreadsheets().batchUpdate(SPREADSHEET,
+						new BatchUpdateSpreadsheetRequest().setRequests(requests)).execute();
+			} finally {
+				SheetMetrics.setOperation(operation);
+			}
+		}
+		
+		public void finish() {
+		}
+	}
+	
+	/**
+	 * Adds the metrics of one account per operation to a shared batch writer.
+	 */
+	class BatchedMetricsOperation implements Operation {
+		
+		/** The number of accounts. */
+		final int accounts;
+		/** The batch writer. */
+		final MetricsBatchWriter writer;
+		
+		/**
+		 * Creates a BatchedMetricsOperation instance.
+		 *
+		 * @param accounts the number of accounts
+		 */
+		BatchedMetricsOperation(int accounts) {
+			this.accounts = accounts;
+			this.writer = new MetricsBatchWriter(sheets);
+		}
+		
+		public void execute(int i) throws IOException {
+			writer.updateTwitterMetrics(SPREADSHEET, "account" + (i % accounts), new Date(),
+					i, 2 * i, 3 * i, 4 * i);
+		}
+		
+		public void finish() throws IOException {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Collects one snapshot per operation, and writes all of them
+	 * with a {@link MetricsScheduler} when the run finishes.
+	 */
+	class ScheduledMetricsOperation implements Operation {
+		
+		/** The number of accounts. */
+		final int accounts;
+		/** The number of spreadsheets. */
+		final int spreadsheets;
+		/** The snapshots. */
+		final List<MetricsScheduler.Snapshot> snapshots = new ArrayList<MetricsScheduler.Snapshot>();
+		
+		/**
+		 * Creates a ScheduledMetricsOperation instance.
+		 *
+		 * @param accounts the number of accounts
+		 * @param spreadsheets the number of spreadsheets
+		 */
+		ScheduledMetricsOperation(int accounts, int spreadsheets) {
+			this.accounts = accounts;
+			this.spreadsheets = spreadsheets;
+			for (int s = 1; s < spreadsheets; s++)
+				fake.addSpreadsheet(SPREADSHEET + s);
+		}
+		
+		public void execute(int i) {
+			String spreadsheetId = i % spreadsheets == 0 ? null : SPREADSHEET + (i % spreadsheets);
+			MetricsScheduler.Snapshot snapshot = new MetricsScheduler.Snapshot(spreadsheetId,
+					"account" + (i % accounts), new Date(), i, 2 * i, 3 * i, 4 * i);
+			synchronized (snapshots) {
+				snapshots.add(snapshot);
+			}
+		}
+		
+		public void finish() throws IOException {
+			int failed = 0;
+			for (MetricsScheduler.Outcome outcome : new MetricsScheduler(sheets, SPREADSHEET).run(snapshots)) {
+				if (!outcome.isSuccess())
+					failed++;
+			}
+			System.out.println(String.format("scheduled    %d snapshots, %d failed", snapshots.size(), failed));
+		}
+	}
+	
+	/**
+	 * Reads the harvest sheet of one account per operation
+	 * and writes it back with a few changed rows.
+	 */
+	class HarvestOperation implements Operation {
+		
+		/** The number of accounts. */
+		final int accounts;
+		/** The number of rows in each harvest sheet. */
+		final int rows;
+		
+		/**
+		 * Creates a HarvestOperation instance and fills the harvest sheets.
+		 *
+		 * @param rows the number of rows in each harvest sheet
+		 * @param accounts the number of accounts
+		 */
+		HarvestOperation(int rows, int accounts) {
+			this.rows = rows;
+			this.accounts = accounts;
+			for (int a = 0; a < accounts; a++)
+				fake.addSheet(SPREADSHEET, "account" + a, getRows(a, 0));
+		}
+		
+		/**
+		 * Creates the harvest data of an account, as stored in the database.
+		 *
+		 * @param account the number of the account
+		 * @param version the number of the update
+		 * @return the rows
+		 */
+		List<List<Object>> getRows(int account, int version) {
+			Random random = new Random(account);
+			List<List<Object>> data = new ArrayList<List<Object>>(rows);
+			for (int r = 0; r < rows; r++) {
+				// about one row in a hundred changes with every version
+				int changes = random.nextInt(100) == 0 ? version : 0;
+				data.add(Arrays.<Object>asList(Long.toString(1000000L + account * rows + r),
+						"user" + r, Integer.toString(changes % 2), Integer.toString(random.nextInt(2)), "0"));
+			}
+			return data;
+		}
+		
+		public void execute(int i) throws IOException {
+			int account = i % accounts;
+			TwitterHarvest harvest = new TwitterHarvest(sheets, SPREADSHEET, "account" + account);
+			Map<Long, TwitterHarvest.Account> data = harvest.getHarvestData();
+			if (data.size() != rows)
+				throw new IOException("Unexpected harvest size: " + data.size());
+			harvest.updateChanged(getRows(account, i / accounts + 1));
+		}
+		
+		public void finish() {
+		}
+	}
+	
+	/**
+	 * Runs the load driver.
+	 *
+	 * @param args name=value pairs, see the class description
+	 * @throws Exception if the workload fails
+	 */
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq < 0)
+				throw new IllegalArgumentException("Expected name=value: " + arg);
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		new SheetsLoadDriver(options).run();
+		System.exit(0);
+	}
+}
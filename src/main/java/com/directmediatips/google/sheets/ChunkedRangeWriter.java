@@ -0,0 +1,243 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.directmediatips.google.sheets.QuotaLimiter.Priority;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.ClearValuesRequest;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+/**
+ * Writes a large number of rows to a sheet in windows of rows, e.g.
+ * <code>results!A2:Z5001</code>, then <code>results!A5002:Z10001</code>, and so on.
+ * The next window is built while the previous one is being sent, so the
+ * complete matrix never needs to be in memory. The number of rows per
+ * window adapts to the observed latency and payload size. Rows that were
+ * in the sheet beyond the last row written are cleared.
+ * Windows, and the final clear, are sent with {@link Priority#BULK} priority.
+ */
+public class ChunkedRangeWriter {
+	
+	/** The initial number of rows per window. */
+	public static final int DEFAULT_CHUNK_ROWS = 5000;
+	/** The minimum number of rows per window. */
+	public static final int MIN_CHUNK_ROWS = 250;
+	/** The maximum number of rows per window. */
+	public static final int MAX_CHUNK_ROWS = 50000;
+	/** The maximum estimated payload of a window, in bytes. */
+	public static final long MAX_PAYLOAD = 4 * 1024 * 1024;
+	/** The latency we aim for when sending a window, in milliseconds. */
+	public static final long TARGET_LATENCY = 3000;
+	
+	/** The executor that sends the windows, shared by all writers. */
+	private static final ExecutorService SENDER = SheetExecutor.newDefaultExecutor();
+	
+	/** The Google Sheets service. */
+	protected final Sheets service;
+	/** The ID of the spreadsheet. */
+	protected final String spreadsheetId;
+	/** The title of the sheet. */
+	protected final String sheet;
+	/** The first column, e.g. "A". */
+	protected final String firstColumn;
+	/** The last column, e.g. "Z". */
+	protected final String lastColumn;
+	/** The first row that is written (1-based, as in A1 notation). */
+	protected final int firstRow;
+	/** The operation under which the writes are recorded, see {@link SheetMetrics}. */
+	protected final String operation;
+	/** The current number of rows per window. */
+	private int chunkRows = DEFAULT_CHUNK_ROWS;
+	
+	/**
+	 * Creates a ChunkedRangeWriter instance.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param sheet	the title of the sheet
+	 * @param firstColumn	the first column, e.g. "A"
+	 * @param lastColumn	the last column, e.g. "Z"
+	 * @param firstRow	the first row (1-based)
+	 */
+	public ChunkedRangeWriter(Sheets service, String spreadsheetId, String sheet,
+			String firstColumn, String lastColumn, int firstRow) {
+		this.service = service;
+		this.spreadsheetId = spreadsheetId;
+		this.sheet = sheet;
+		this.firstColumn = firstColumn;
+		this.lastColumn = lastColumn;
+		this.firstRow = firstRow;
+		this.operation = SheetMetrics.getOperation();
+	}
+	
+	/**
+	 * Writes all the rows, window by window, and clears the rows
+	 * that come after the last row that was written.
+	 *
+	 * @param rows	an iterator over the rows; rows may be built lazily
+	 * @return the number of rows that were written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public int write(Iterator<List<Object>> rows) throws IOException {
+		try {
+			RangeCache.getInstance().invalidate(spreadsheetId, getRange(firstRow, -1));
+			int row = firstRow;
+			Future<Long> inFlight = null;
+			long inFlightBytes = 0;
+			while (rows.hasNext()) {
+				// Build the next window while the previous one is being sent
+				List<List<Object>> chunk = new ArrayList<List<Object>>(chunkRows);
+				long bytes = 0;
+				while (rows.hasNext() && chunk.size() < chunkRows && bytes < MAX_PAYLOAD) {
+					List<Object> r = rows.next();
+					bytes += estimate(r);
+					chunk.add(r);
+				}
+				if (inFlight != null)
+					adapt(await(inFlight), inFlightBytes);
+				inFlight = SENDER.submit(send(getRange(row, row + chunk.size() - 1), chunk));
+				inFlightBytes = bytes;
+				row += chunk.size();
+			}
+			if (inFlight != null)
+				adapt(await(inFlight), inFlightBytes);
+			// Clear the rows of a previous, longer result
+			Priority previous = QuotaLimiter.setPriority(Priority.BULK);
+			try {
+				service.spreadsheets().values()
+					.clear(spreadsheetId, getRange(row, -1), new ClearValuesRequest())
+					.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS))
+					.execute();
+			}
+			finally {
+				QuotaLimiter.setPriority(previous);
+			}
+			return row - firstRow;
+		}
+		finally {
+			RangeCache.getInstance().invalidate(spreadsheetId, getRange(firstRow, -1));
+		}
+	}
+	
+	/**
+	 * Gets the current number of rows per window.
+	 *
+	 * @return a number of rows
+	 */
+	public int getChunkRows() {
+		return chunkRows;
+	}
+	
+	/**
+	 * Creates the task that sends one window.
+	 *
+	 * @param range	the range in A1 notation
+	 * @param chunk	the rows of the window
+	 * @return a task returning the latency in milliseconds
+	 */
+	protected Callable<Long> send(final String range, final List<List<Object>> chunk) {
+		return new Callable<Long>() {
+			public Long call() throws IOException {
+				// The thread is shared, so restore its priority and operation afterwards
+				Priority previous = QuotaLimiter.setPriority(Priority.BULK);
+				String previousOperation = SheetMetrics.setOperation(operation);
+				try {
+					long start = System.currentTimeMillis();
+					service.spreadsheets()
+						.values()
+						.update(spreadsheetId, range, new ValueRange().setValues(chunk))
+						.setValueInputOption("RAW")
+						.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS))
+						.execute();
+					return System.currentTimeMillis() - start;
+				}
+				finally {
+					SheetMetrics.setOperation(previousOperation);
+					QuotaLimiter.setPriority(previous);
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Adapts the number of rows per window: windows are halved when they
+	 * take too long or get too large, and doubled when they are fast and small.
+	 *
+	 * @param latency	the time it took to send the last window
+	 * @param bytes	the estimated payload of the last window
+	 */
+	protected void adapt(long latency, long bytes) {
+		if (latency > TARGET_LATENCY || bytes >= MAX_PAYLOAD)
+			chunkRows = Math.max(MIN_CHUNK_ROWS, chunkRows / 2);
+		else if (latency < TARGET_LATENCY / 2 && bytes < MAX_PAYLOAD / 2)
+			chunkRows = Math.min(MAX_CHUNK_ROWS, chunkRows * 2);
+	}
+	
+	/**
+	 * Gets a range in A1 notation.
+	 *
+	 * @param from	the first row (1-based)
+	 * @param to	the last row, or a negative value for an open-ended range
+	 * @return the range
+	 */
+	protected String getRange(int from, int to) {
+		if (to < 0)
+			return String.format("%s!%s%d:%s", sheet, firstColumn, from, lastColumn);
+		return String.format("%s!%s%d:%s%d", sheet, firstColumn, from, lastColumn, to);
+	}
+	
+	/**
+	 * Estimates the JSON size of a row.
+	 *
+	 * @param row	a row of values
+	 * @return an estimated number of bytes
+	 */
+	protected static long estimate(List<Object> row) {
+		long bytes = 4;
+		for (Object o : row)
+			bytes += (o == null ? 4 : o.toString().length()) + 3;
+		return bytes;
+	}
+	
+	/**
+	 * Waits for a window to be sent.
+	 *
+	 * @param future	the task sending the window
+	 * @return the latency in milliseconds
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static long await(Future<Long> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing rows");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
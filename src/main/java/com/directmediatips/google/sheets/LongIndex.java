@@ -0,0 +1,127 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash index from primitive long keys (e.g. Twitter IDs)
+ * to int values (e.g. a slot in a set of parallel arrays).
+ * No object is created per entry; negative values can't be stored.
+ */
+public class LongIndex {
+	
+	/** The value returned for keys that aren't in the index. */
+	public static final int MISSING = -1;
+	
+	/** The keys. */
+	private long[] keys;
+	/** The values; {@link #MISSING} marks an empty bucket. */
+	private int[] values;
+	/** The number of entries. */
+	private int size;
+	
+	/**
+	 * Creates an empty LongIndex instance.
+	 *
+	 * @param expected	the number of entries that is expected
+	 */
+	public LongIndex(int expected) {
+		int capacity = 16;
+		while (capacity * 3 / 4 < expected)
+			capacity <<= 1;
+		keys = new long[capacity];
+		values = new int[capacity];
+		Arrays.fill(values, MISSING);
+	}
+	
+	/**
+	 * Gets the value stored for a key.
+	 *
+	 * @param key	the key
+	 * @return the value, or {@link #MISSING}
+	 */
+	public int get(long key) {
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			if (values[i] == MISSING)
+				return MISSING;
+			if (keys[i] == key)
+				return values[i];
+		}
+	}
+	
+	/**
+	 * Stores a value for a key, replacing the previous value.
+	 *
+	 * @param key	the key
+	 * @param value	a value that isn't negative
+	 */
+	public void put(long key, int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Negative values can't be stored: " + value);
+		if ((size + 1) * 4 > keys.length * 3)
+			grow();
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+			if (values[i] == MISSING) {
+				keys[i] = key;
+				values[i] = value;
+				size++;
+				return;
+			}
+			if (keys[i] == key) {
+				values[i] = value;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the size of the index
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Doubles the capacity of the index.
+	 */
+	private void grow() {
+		long[] oldKeys = keys;
+		int[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new int[oldValues.length * 2];
+		Arrays.fill(values, MISSING);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != MISSING)
+				put(oldKeys[i], oldValues[i]);
+		}
+	}
+	
+	/**
+	 * Spreads the bits of a key.
+	 *
+	 * @param key	the key
+	 * @return a hash code
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,230 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and a latency histogram for the calls of one operation.
+ * Recording a call only updates a few striped counters, so it doesn't
+ * slow down concurrent callers.
+ *
+ * The histogram has eight buckets per power of two microseconds,
+ * so percentiles are accurate to about 12%.
+ */
+public class OperationStats implements OperationStatsMXBean {
+	
+	/** The number of buckets of the histogram. */
+	private static final int BUCKETS = 61 * 8;
+	
+	/** The name of the operation. */
+	protected final String operation;
+	
+	/** The number of calls. */
+	private final LongAdder calls = new LongAdder();
+	/** The number of failed calls. */
+	private final LongAdder errors = new LongAdder();
+	/** The number of retries. */
+	private final LongAdder retries = new LongAdder();
+	/** The request bytes. */
+	private final LongAdder requestBytes = new LongAdder();
+	/** The request bytes as sent. */
+	private final LongAdder requestWireBytes = new LongAdder();
+	/** The response bytes. */
+	private final LongAdder responseBytes = new LongAdder();
+	/** The sum of the latencies in microseconds. */
+	private final LongAdder latencySum = new LongAdder();
+	/** The number of calls per latency bucket. */
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+	/** The number of failed calls per status code. */
+	private final Map<Integer, LongAdder> errorCodes = new ConcurrentHashMap<Integer, LongAdder>();
+	
+	/**
+	 * Creates an OperationStats instance.
+	 *
+	 * @param operation	the name of the operation
+	 */
+	public OperationStats(String operation) {
+		this.operation = operation;
+	}
+	
+	/**
+	 * Adds a call to the statistics.
+	 *
+	 * @param call	a completed call
+	 */
+	public void record(SheetMetrics.Call call) {
+		calls.increment();
+		if (call.attempts > 1)
+			retries.add(call.attempts - 1);
+		if (call.requestBytes > 0)
+			requestBytes.add(call.requestBytes);
+		long wire = call.requestWireBytes >= 0 ? call.requestWireBytes : call.requestBytes;
+		if (wire > 0)
+			requestWireBytes.add(wire);
+		if (call.responseBytes > 0)
+			responseBytes.add(call.responseBytes);
+		long micros = call.latency / 1000;
+		latencySum.add(micros);
+		histogram.incrementAndGet(bucket(micros));
+		if (call.isError()) {
+			errors.increment();
+			LongAdder count = errorCodes.get(call.statusCode);
+			if (count == null) {
+				errorCodes.putIfAbsent(call.statusCode, new LongAdder());
+				count = errorCodes.get(call.statusCode);
+			}
+			count.increment();
+		}
+	}
+	
+	/**
+	 * Gets the bucket of a latency: values below 8 have their own bucket,
+	 * larger values share a bucket with values that have the same
+	 * four most significant bits.
+	 *
+	 * @param micros	a latency in microseconds
+	 * @return the index of the bucket
+	 */
+	protected static int bucket(long micros) {
+		if (micros < 8)
+			return (int)Math.max(0, micros);
+		int octave = 63 - Long.numberOfLeadingZeros(micros);
+		return Math.min(BUCKETS - 1, (octave - 2) * 8 + (int)((micros >>> (octave - 3)) & 7));
+	}
+	
+	/**
+	 * Gets the highest latency that falls in a bucket.
+	 *
+	 * @param index	the index of a bucket
+	 * @return a latency in microseconds
+	 */
+	protected static long upperBound(int index) {
+		if (index < 8)
+			return index;
+		int octave = index / 8 + 2;
+		return ((9L + index % 8) << (octave - 3)) - 1;
+	}
+	
+	/**
+	 * Gets a percentile of the latency.
+	 *
+	 * @param p	a number between 0 and 1, e.g. 0.99
+	 * @return the latency in milliseconds, 0 if there were no calls
+	 */
+	public double getLatencyPercentile(double p) {
+		long[] counts = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = histogram.get(i);
+			total += counts[i];
+		}
+		long rank = (long)Math.ceil(p * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen > 0 && seen >= rank)
+				return upperBound(i) / 1000.0;
+		}
+		return 0;
+	}
+	
+	@Override
+	public String getOperation() {
+		return operation;
+	}
+	
+	@Override
+	public long getCalls() {
+		return calls.sum();
+	}
+	
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+	
+	@Override
+	public long getRetries() {
+		return retries.sum();
+	}
+	
+	@Override
+	public long getRequestBytes() {
+		return requestBytes.sum();
+	}
+	
+	@Override
+	public long getRequestWireBytes() {
+		return requestWireBytes.sum();
+	}
+	
+	@Override
+	public long getResponseBytes() {
+		return responseBytes.sum();
+	}
+	
+	@Override
+	public double getMeanLatency() {
+		long n = calls.sum();
+		return n == 0 ? 0 : latencySum.sum() / 1000.0 / n;
+	}
+	
+	@Override
+	public double getLatency50() {
+		return getLatencyPercentile(0.50);
+	}
+	
+	@Override
+	public double getLatency95() {
+		return getLatencyPercentile(0.95);
+	}
+	
+	@Override
+	public double getLatency99() {
+		return getLatencyPercentile(0.99);
+	}
+	
+	@Override
+	public double getMaxLatency() {
+		return getLatencyPercentile(1.0);
+	}
+	
+	@Override
+	public Map<String, Long> getErrorCodes() {
+		Map<String, Long> map = new TreeMap<String, Long>();
+		for (Map.Entry<Integer, LongAdder> entry : errorCodes.entrySet())
+			map.put(entry.getKey().toString(), entry.getValue().sum());
+		return map;
+	}
+	
+	@Override
+	public void reset() {
+		calls.reset();
+		errors.reset();
+		retries.reset();
+		requestBytes.reset();
+		requestWireBytes.reset();
+		responseBytes.reset();
+		latencySum.reset();
+		for (int i = 0; i < BUCKETS; i++)
+			histogram.set(i, 0);
+		errorCodes.clear();
+	}
+}
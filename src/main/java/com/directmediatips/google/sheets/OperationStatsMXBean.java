@@ -0,0 +1,120 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+
+/**
+ * The JMX view of the Google Sheets calls made for one operation,
+ * see {@link SheetMetrics}. Latencies are in milliseconds.
+ */
+public interface OperationStatsMXBean {
+	
+	/**
+	 * Gets the name of the operation, e.g. "getSheetId".
+	 *
+	 * @return the name of the operation
+	 */
+	String getOperation();
+	
+	/**
+	 * Gets the number of API calls.
+	 *
+	 * @return the number of calls
+	 */
+	long getCalls();
+	
+	/**
+	 * Gets the number of calls that ended with an error status or an I/O error.
+	 *
+	 * @return the number of failed calls
+	 */
+	long getErrors();
+	
+	/**
+	 * Gets the number of times a call was retried.
+	 *
+	 * @return the number of retries
+	 */
+	long getRetries();
+	
+	/**
+	 * Gets the number of request payload bytes (before compression).
+	 *
+	 * @return the number of bytes sent
+	 */
+	long getRequestBytes();
+	
+	/**
+	 * Gets the number of request bytes as sent (after compression).
+	 *
+	 * @return the number of bytes on the wire
+	 */
+	long getRequestWireBytes();
+	
+	/**
+	 * Gets the number of response bytes (as received).
+	 *
+	 * @return the number of bytes received
+	 */
+	long getResponseBytes();
+	
+	/**
+	 * Gets the mean latency of a call, retries included.
+	 *
+	 * @return the mean latency
+	 */
+	double getMeanLatency();
+	
+	/**
+	 * Gets the median latency.
+	 *
+	 * @return the 50th percentile
+	 */
+	double getLatency50();
+	
+	/**
+	 * Gets the 95th percentile of the latency.
+	 *
+	 * @return the 95th percentile
+	 */
+	double getLatency95();
+	
+	/**
+	 * Gets the 99th percentile of the latency.
+	 *
+	 * @return the 99th percentile
+	 */
+	double getLatency99();
+	
+	/**
+	 * Gets the highest latency.
+	 *
+	 * @return the maximum latency
+	 */
+	double getMaxLatency();
+	
+	/**
+	 * Gets the number of failed calls per status code ("0" for I/O errors).
+	 *
+	 * @return a map with status codes as keys
+	 */
+	Map<String, Long> getErrorCodes();
+	
+	/**
+	 * Resets all the counters.
+	 */
+	void reset();
+}
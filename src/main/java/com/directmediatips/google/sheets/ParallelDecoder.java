@@ -0,0 +1,183 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes the rows of a large range on a fork-join pool: the rows are split
+ * in slices, every slice is decoded by a different task, and each task writes
+ * its objects into its own part of a single array, so that there are no
+ * partial results to merge. A decoder must only depend on the row it decodes
+ * and on its index (e.g. for placeholder IDs), never on state shared by rows.
+ * Ranges that are smaller than the threshold are decoded in the calling thread.
+ */
+public class ParallelDecoder {
+	
+	/** The default number of rows below which a slice isn't split any further. */
+	public static final int DEFAULT_THRESHOLD = 4096;
+	
+	/**
+	 * Decodes a row, identified by its index, into an object.
+	 *
+	 * @param <T> the type of the object
+	 */
+	public interface Decoder<T> {
+		
+		/**
+		 * Decodes a row. This method is called from several threads at once.
+		 *
+		 * @param index	the index of the row (0-based)
+		 * @return an object, or null if the row should be skipped
+		 */
+		T decode(int index);
+	}
+	
+	/**
+	 * Decodes a slice of rows, or splits it in two.
+	 */
+	private class Slice extends RecursiveAction {
+		
+		/** Serial version UID. */
+		private static final long serialVersionUID = 1L;
+		
+		/** The decoder. */
+		private final Decoder<?> decoder;
+		/** The decoded objects of all the rows. */
+		private final Object[] result;
+		/** The first row of the slice. */
+		private final int from;
+		/** The row after the last row of the slice. */
+		private final int to;
+		
+		/**
+		 * Creates a Slice instance.
+		 *
+		 * @param decoder	the decoder
+		 * @param result	the decoded objects of all the rows
+		 * @param from	the first row of the slice
+		 * @param to	the row after the last row of the slice
+		 */
+		Slice(Decoder<?> decoder, Object[] result, int from, int to) {
+			this.decoder = decoder;
+			this.result = result;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= threshold) {
+				for (int i = from; i < to; i++)
+					result[i] = decoder.decode(i);
+			}
+			else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Slice(decoder, result, from, middle), new Slice(decoder, result, middle, to));
+			}
+		}
+	}
+	
+	/** The shared instance. */
+	private static volatile ParallelDecoder instance;
+	
+	/** The pool decoding the rows, or null to decode in the calling thread. */
+	protected final ForkJoinPool pool;
+	/** The number of rows below which a slice isn't split any further. */
+	protected final int threshold;
+	
+	/**
+	 * Creates a ParallelDecoder instance.
+	 *
+	 * @param pool	the pool decoding the rows, or null to decode everything in the calling thread
+	 * @param threshold	the number of rows below which a slice isn't split any further
+	 */
+	public ParallelDecoder(ForkJoinPool pool, int threshold) {
+		if (threshold < 1)
+			throw new IllegalArgumentException("The threshold must be positive: " + threshold);
+		this.pool = pool;
+		this.threshold = threshold;
+	}
+	
+	/**
+	 * Gets the shared instance. Unless another instance was set, it uses
+	 * the common fork-join pool and {@link #DEFAULT_THRESHOLD}.
+	 *
+	 * @return a ParallelDecoder instance
+	 */
+	public static ParallelDecoder getInstance() {
+		if (instance == null) {
+			synchronized (ParallelDecoder.class) {
+				if (instance == null)
+					instance = new ParallelDecoder(ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Replaces the shared instance, e.g. with an instance
+	 * without pool to decode sequentially.
+	 *
+	 * @param decoder	the new shared instance
+	 */
+	public static void setInstance(ParallelDecoder decoder) {
+		instance = decoder;
+	}
+	
+	/**
+	 * Decodes a number of rows.
+	 *
+	 * @param <T> the type of the objects
+	 * @param rows	the number of rows
+	 * @param decoder	the decoder
+	 * @return the objects, in the order of the rows; null for skipped rows
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> decode(int rows, Decoder<T> decoder) {
+		Object[] result = new Object[rows];
+		Slice slice = new Slice(decoder, result, 0, rows);
+		if (pool == null || rows <= threshold || pool.getParallelism() < 2)
+			slice.compute();
+		else
+			pool.invoke(slice);
+		return (List<T>)Arrays.asList(result);
+	}
+	
+	/**
+	 * Decodes rows as returned by the Sheets API.
+	 *
+	 * @param <T> the type of the objects
+	 * @param values	the rows, may be null
+	 * @param decoder	the decoder; the index is the position in the list
+	 * @return the objects, in the order of the rows; null for skipped rows
+	 */
+	public <T> List<T> decode(List<List<Object>> values, final RangeIterator.RowDecoder<T> decoder) {
+		if (values == null)
+			return decode(0, (Decoder<T>)null);
+		final List<List<Object>> rows = values instanceof RandomAccess
+				? values : new ArrayList<List<Object>>(values);
+		return decode(rows.size(), new Decoder<T>() {
+			public T decode(int index) {
+				return decoder.decode(index, rows.get(index));
+			}
+		});
+	}
+}
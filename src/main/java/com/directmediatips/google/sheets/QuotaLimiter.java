@@ -0,0 +1,284 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token-bucket rate limiter with separate budgets for read and write
+ * requests, mirroring the per-user quotas of the Google Sheets API.
+ * Every request made through {@link SheetService} takes a token first.
+ * When the API answers with 429 or 503, the rate of the budget is halved;
+ * every successful request raises it again by a small step, up to the
+ * configured rate. Within a budget, requests made with
+ * {@link Priority#INTERACTIVE} priority are served before {@link Priority#BULK} ones.
+ * Waiting requests park on a {@link Condition}, not on a monitor, so that
+ * virtual threads (see {@link SheetExecutor}) don't pin their carrier thread.
+ */
+public class QuotaLimiter {
+	
+	/** The default number of read requests per second (60 per minute). */
+	public static final double DEFAULT_READS_PER_SECOND = 1.0;
+	/** The default number of write requests per second (60 per minute). */
+	public static final double DEFAULT_WRITES_PER_SECOND = 1.0;
+	/** The default number of requests that may be sent in a burst. */
+	public static final int DEFAULT_BURST = 10;
+	
+	/**
+	 * The priority of a request.
+	 */
+	public enum Priority {
+		/** Requests someone is waiting for; served first. */
+		INTERACTIVE,
+		/** Background requests such as batched metric writes. */
+		BULK
+	}
+	
+	/** The priority of the requests made by the current thread. */
+	private static final ThreadLocal<Priority> PRIORITY = new ThreadLocal<Priority>() {
+		@Override
+		protected Priority initialValue() {
+			return Priority.INTERACTIVE;
+		}
+	};
+	
+	/**
+	 * A request waiting for a token.
+	 */
+	private static class Waiter implements Comparable<Waiter> {
+		
+		/** The priority of the request. */
+		final Priority priority;
+		/** The arrival order of the request. */
+		final long sequence;
+		
+		/**
+		 * Creates a Waiter instance.
+		 *
+		 * @param priority the priority
+		 * @param sequence the arrival order
+		 */
+		Waiter(Priority priority, long sequence) {
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+		
+		@Override
+		public int compareTo(Waiter o) {
+			int c = priority.compareTo(o.priority);
+			if (c != 0) return c;
+			return sequence < o.sequence ? -1 : sequence == o.sequence ? 0 : 1;
+		}
+	}
+	
+	/**
+	 * The budget for one kind of requests.
+	 */
+	private static class Bucket {
+		
+		/** The configured number of requests per second. */
+		final double maxRate;
+		/** The lowest rate the bucket slows down to. */
+		final double minRate;
+		/** The maximum number of tokens. */
+		final double capacity;
+		/** The current number of requests per second. */
+		double rate;
+		/** The current number of tokens. */
+		double tokens;
+		/** The last time tokens were added, in nanoseconds. */
+		long refilled = System.nanoTime();
+		/** The requests waiting for a token. */
+		final PriorityQueue<Waiter> waiting = new PriorityQueue<Waiter>();
+		/** The arrival counter. */
+		long sequence = 0;
+		/** The lock guarding the bucket. */
+		final ReentrantLock lock = new ReentrantLock();
+		/** Signaled when a waiter leaves the queue. */
+		final Condition changed = lock.newCondition();
+		
+		/**
+		 * Creates a Bucket instance.
+		 *
+		 * @param rate the number of requests per second
+		 * @param burst the maximum number of tokens
+		 */
+		Bucket(double rate, int burst) {
+			this.maxRate = rate;
+			this.minRate = rate / 16;
+			this.rate = rate;
+			this.capacity = burst;
+			this.tokens = burst;
+		}
+		
+		/**
+		 * Waits for a token and takes it.
+		 *
+		 * @param priority the priority of the request
+		 * @throws InterruptedIOException if the thread is interrupted while waiting
+		 */
+		void acquire(Priority priority) throws InterruptedIOException {
+			lock.lock();
+			Waiter waiter = new Waiter(priority, sequence++);
+			waiting.add(waiter);
+			try {
+				while (true) {
+					refill();
+					if (waiting.peek() == waiter) {
+						if (tokens >= 1) {
+							tokens -= 1;
+							return;
+						}
+						changed.await(Math.max(1, (long)Math.ceil((1 - tokens) / rate * 1000)),
+								TimeUnit.MILLISECONDS);
+					}
+					else {
+						changed.await();
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for quota");
+			} finally {
+				waiting.remove(waiter);
+				changed.signalAll();
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Adds the tokens earned since the last refill.
+		 */
+		private void refill() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - refilled) / 1e9 * rate);
+			refilled = now;
+		}
+		
+		/**
+		 * Halves the rate after the API signaled that the quota was exceeded,
+		 * and drops the tokens that were saved up.
+		 */
+		void slowDown() {
+			lock.lock();
+			try {
+				refill();
+				rate = Math.max(minRate, rate / 2);
+				tokens = Math.min(tokens, 0);
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * Raises the rate after a successful request.
+		 */
+		void speedUp() {
+			lock.lock();
+			try {
+				if (rate < maxRate) {
+					refill();
+					rate = Math.min(maxRate, rate + maxRate / 50);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/** The shared instance. */
+	private static volatile QuotaLimiter instance =
+			new QuotaLimiter(DEFAULT_READS_PER_SECOND, DEFAULT_WRITES_PER_SECOND, DEFAULT_BURST);
+	
+	/** The budget for read requests. */
+	private final Bucket reads;
+	/** The budget for write requests. */
+	private final Bucket writes;
+	
+	/**
+	 * Creates a QuotaLimiter instance.
+	 *
+	 * @param readsPerSecond	the number of read requests per second
+	 * @param writesPerSecond	the number of write requests per second
+	 * @param burst	the number of requests of each kind that may be sent in a burst
+	 */
+	public QuotaLimiter(double readsPerSecond, double writesPerSecond, int burst) {
+		reads = new Bucket(readsPerSecond, burst);
+		writes = new Bucket(writesPerSecond, burst);
+	}
+	
+	/**
+	 * Gets the limiter shared by all the services.
+	 *
+	 * @return a QuotaLimiter instance
+	 */
+	public static QuotaLimiter getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Replaces the shared limiter, e.g. to match the quota of your project.
+	 * Services that already created their client keep using the old limiter.
+	 *
+	 * @param limiter	the new shared limiter
+	 */
+	public static void setInstance(QuotaLimiter limiter) {
+		instance = limiter;
+	}
+	
+	/**
+	 * Sets the priority of the requests made by the current thread.
+	 *
+	 * @param priority	the new priority
+	 * @return the previous priority, so that it can be restored
+	 */
+	public static Priority setPriority(Priority priority) {
+		Priority previous = PRIORITY.get();
+		PRIORITY.set(priority);
+		return previous;
+	}
+	
+	/**
+	 * Waits until a request can be sent without exceeding the quota.
+	 *
+	 * @param write	true for a write request, false for a read request
+	 * @throws InterruptedIOException if the thread is interrupted while waiting
+	 */
+	public void acquire(boolean write) throws InterruptedIOException {
+		(write ? writes : reads).acquire(PRIORITY.get());
+	}
+	
+	/**
+	 * Signals that a request was rejected because of the quota.
+	 *
+	 * @param write	true for a write request, false for a read request
+	 */
+	public void onThrottled(boolean write) {
+		(write ? writes : reads).slowDown();
+	}
+	
+	/**
+	 * Signals that a request succeeded.
+	 *
+	 * @param write	true for a write request, false for a read request
+	 */
+	public void onSuccess(boolean write) {
+		(write ? writes : reads).speedUp();
+	}
+}
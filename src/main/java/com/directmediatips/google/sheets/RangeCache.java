@@ -0,0 +1,725 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.api.services.sheets.v4.Sheets;
+
+/**
+ * Read-through cache of spreadsheet ranges, kept in memory and snapshotted
+ * to disk so that a restarted process doesn't have to download mostly static
+ * ranges (criteria, our accounts, the direct message,...) again.
+ * Entries expire after a time-to-live, the least recently used entries are
+ * evicted when the cache holds too many cells, and entries are invalidated
+ * when we write to a range that overlaps with them.
+ * A read that was in flight while we wrote to the spreadsheet isn't cached.
+ * Ranges read with a {@link RowCodec} are cached as decoded {@link RowTable}s,
+ * under the same rules, but they are kept in memory only.
+ * The snapshot is a plain data file: strings, numbers and booleans only.
+ */
+public class RangeCache {
+	
+	/** The default time-to-live of an entry: 15 minutes. */
+	public static final long DEFAULT_TTL = 15 * 60 * 1000;
+	/** The default maximum number of cells in the cache. */
+	public static final int DEFAULT_MAX_CELLS = 1000000;
+	/** The file in which the shared cache is snapshotted. */
+	public static final String SNAPSHOT = "google/range-cache.bin";
+	
+	/** The first int of a snapshot file. */
+	private static final int MAGIC = 0x444d5452;
+	/** The version of the snapshot format. */
+	private static final int VERSION = 2;
+	/** The type of an empty cell in a snapshot. */
+	private static final byte NULL = 0;
+	/** The type of a string cell in a snapshot. */
+	private static final byte STRING = 1;
+	/** The type of a decimal cell in a snapshot. */
+	private static final byte DECIMAL = 2;
+	/** The type of a boolean cell in a snapshot. */
+	private static final byte BOOLEAN = 3;
+	/** The type of a long cell in a snapshot. */
+	private static final byte LONG = 4;
+	/** The type of an integer cell in a snapshot. */
+	private static final byte INTEGER = 5;
+	/** The type of a double cell in a snapshot. */
+	private static final byte DOUBLE = 6;
+	
+	/**
+	 * A cached range.
+	 */
+	private static class Entry {
+		
+		/** The ID of the spreadsheet. */
+		final String spreadsheetId;
+		/** The range as it was requested. */
+		final String text;
+		/** The parsed range. */
+		final A1Range range;
+		/** The values. */
+		final ArrayList<List<Object>> values;
+		/** The decoded rows, if the range was read with a {@link RowCodec}; null otherwise. */
+		final RowTable table;
+		/** The number of cells. */
+		final int cells;
+		/** The time the entry expires, in milliseconds since the epoch. */
+		final long expires;
+		
+		/**
+		 * Creates an Entry instance.
+		 *
+		 * @param spreadsheetId the ID of the spreadsheet
+		 * @param text the range in A1 notation
+		 * @param values the values
+		 * @param expires the time the entry expires
+		 */
+		Entry(String spreadsheetId, String text, List<List<Object>> values, long expires) {
+			this.spreadsheetId = spreadsheetId;
+			this.text = text;
+			this.range = A1Range.parse(text);
+			this.values = new ArrayList<List<Object>>();
+			int n = 0;
+			if (values != null) {
+				for (List<Object> row : values) {
+					this.values.add(new ArrayList<Object>(row));
+					n += row.size();
+				}
+			}
+			this.cells = n;
+			this.table = null;
+			this.expires = expires;
+		}
+		
+		/**
+		 * Creates an Entry instance for decoded rows.
+		 *
+		 * @param spreadsheetId the ID of the spreadsheet
+		 * @param text the range in A1 notation
+		 * @param table the decoded rows
+		 * @param expires the time the entry expires
+		 */
+		Entry(String spreadsheetId, String text, RowTable table, long expires) {
+			this.spreadsheetId = spreadsheetId;
+			this.text = text;
+			this.range = A1Range.parse(text);
+			this.values = new ArrayList<List<Object>>();
+			this.cells = table.size() * table.getSchema().getWidth();
+			this.table = table;
+			this.expires = expires;
+		}
+	}
+	
+	/**
+	 * A range in A1 notation, e.g. <code>results!A2:Z</code>.
+	 */
+	public static class A1Range implements Serializable {
+		
+		/** The serial version UID. */
+		private static final long serialVersionUID = 1L;
+		/** The title of the sheet, or null if the range doesn't specify it. */
+		public final String sheet;
+		/** The first column (0-based). */
+		public final int firstColumn;
+		/** The first row (0-based). */
+		public final int firstRow;
+		/** The last column (0-based), Integer.MAX_VALUE if open-ended. */
+		public final int lastColumn;
+		/** The last row (0-based), Integer.MAX_VALUE if open-ended. */
+		public final int lastRow;
+		
+		/**
+		 * Creates an A1Range instance.
+		 *
+		 * @param sheet the title of the sheet
+		 * @param firstColumn the first column
+		 * @param firstRow the first row
+		 * @param lastColumn the last column
+		 * @param lastRow the last row
+		 */
+		public A1Range(String sheet, int firstColumn, int firstRow, int lastColumn, int lastRow) {
+			this.sheet = sheet;
+			this.firstColumn = firstColumn;
+			this.firstRow = firstRow;
+			this.lastColumn = lastColumn;
+			this.lastRow = lastRow;
+		}
+		
+		/**
+		 * Parses a range such as <code>mail!A1</code>, <code>results!A2:Z</code>
+		 * or <code>'my sheet'!B:B</code>. A range without cells covers the whole sheet.
+		 *
+		 * @param range a range in A1 notation
+		 * @return an A1Range instance
+		 */
+		public static A1Range parse(String range) {
+			String sheet = null;
+			String cells = range;
+			int bang = range.lastIndexOf('!');
+			if (bang >= 0) {
+				sheet = range.substring(0, bang);
+				cells = range.substring(bang + 1);
+				if (sheet.length() > 1 && sheet.startsWith("'") && sheet.endsWith("'"))
+					sheet = sheet.substring(1, sheet.length() - 1).replace("''", "'");
+			}
+			else if (!cells.matches("[A-Za-z]*[0-9]*(:[A-Za-z]*[0-9]*)?")) {
+				return new A1Range(range, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+			}
+			if (cells.isEmpty())
+				return new A1Range(sheet, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+			int colon = cells.indexOf(':');
+			String from = colon < 0 ? cells : cells.substring(0, colon);
+			String to = colon < 0 ? cells : cells.substring(colon + 1);
+			return new A1Range(sheet, column(from, 0), row(from, 0),
+					column(to, Integer.MAX_VALUE), row(to, Integer.MAX_VALUE));
+		}
+		
+		/**
+		 * Checks if two ranges have at least one cell in common.
+		 * Ranges without a sheet title are assumed to be on any sheet.
+		 *
+		 * @param o another range
+		 * @return true if the ranges overlap
+		 */
+		public boolean overlaps(A1Range o) {
+			if (sheet != null && o.sheet != null && !sheet.equalsIgnoreCase(o.sheet))
+				return false;
+			return firstColumn <= o.lastColumn && o.firstColumn <= lastColumn
+					&& firstRow <= o.lastRow && o.firstRow <= lastRow;
+		}
+		
+		/**
+		 * Gets the column of a cell reference.
+		 *
+		 * @param cell e.g. "AB12"
+		 * @param missing the value if there's no column
+		 * @return the column (0-based)
+		 */
+		private static int column(String cell, int missing) {
+			int c = 0;
+			int i = 0;
+			for (; i < cell.length() && Character.isLetter(cell.charAt(i)); i++)
+				c = c * 26 + (Character.toUpperCase(cell.charAt(i)) - 'A' + 1);
+			return i == 0 ? missing : c - 1;
+		}
+		
+		/**
+		 * Gets the row of a cell reference.
+		 *
+		 * @param cell e.g. "AB12"
+		 * @param missing the value if there's no row
+		 * @return the row (0-based)
+		 */
+		private static int row(String cell, int missing) {
+			int i = 0;
+			while (i < cell.length() && Character.isLetter(cell.charAt(i)))
+				i++;
+			return i == cell.length() ? missing : Integer.parseInt(cell.substring(i)) - 1;
+		}
+	}
+	
+	/** The shared instance. */
+	private static RangeCache instance;
+	
+	/** The entries, from least to most recently used. */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/** The maximum number of cells. */
+	protected final int maxCells;
+	/** The number of cells in the cache. */
+	private int cells = 0;
+	/** The number of reads served from the cache. */
+	private long hits = 0;
+	/** The number of reads that went to Google Sheets. */
+	private long misses = 0;
+	/** Incremented on every invalidation, to drop reads that were in flight. */
+	private long generation = 0;
+	
+	/**
+	 * Creates an empty RangeCache instance.
+	 *
+	 * @param maxCells	the maximum number of cells
+	 */
+	public RangeCache(int maxCells) {
+		this.maxCells = maxCells;
+	}
+	
+	/**
+	 * Gets the shared cache. The first time, the snapshot in {@link #SNAPSHOT}
+	 * is loaded if it exists, and a shutdown hook is registered that saves the
+	 * cache in that file when the JVM stops.
+	 *
+	 * @return a RangeCache instance
+	 */
+	public static synchronized RangeCache getInstance() {
+		if (instance == null) {
+			final RangeCache cache = new RangeCache(DEFAULT_MAX_CELLS);
+			final File file = new File(SNAPSHOT);
+			try {
+				cache.load(file);
+			} catch (IOException e) {
+				// a missing or damaged snapshot only means we start cold
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread("range-cache-snapshot") {
+				@Override
+				public void run() {
+					try {
+						cache.save(file);
+					} catch (IOException e) {
+						// an old snapshot may hold values we overwrote since: start cold instead
+						file.delete();
+					}
+				}
+			});
+			instance = cache;
+		}
+		return instance;
+	}
+	
+	/**
+	 * Replaces the shared instance, e.g. to use a cache that isn't
+	 * saved to the snapshot file when the JVM stops.
+	 *
+	 * @param cache	the new shared instance
+	 */
+	public static synchronized void setInstance(RangeCache cache) {
+		instance = cache;
+	}
+	
+	/**
+	 * Gets the values of a range, from the cache if there's an entry that
+	 * didn't expire, or from Google Sheets otherwise.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 * @param ttl	the time-to-live of a new entry, in milliseconds
+	 * @return the values (null if the range is empty); don't change them
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public List<List<Object>> get(Sheets service, String spreadsheetId, String range, long ttl) throws IOException {
+		long missed;
+		synchronized (this) {
+			Entry entry = entries.get(key(spreadsheetId, range));
+			if (entry != null && entry.expires > System.currentTimeMillis()) {
+				hits++;
+				return entry.values.isEmpty() ? null : entry.values;
+			}
+			misses++;
+			missed = generation;
+		}
+		List<List<Object>> values = service.spreadsheets().values()
+				.get(spreadsheetId, range)
+				.setFields(SheetService.getResponseFields(SheetService.VALUES_FIELDS))
+				.execute()
+				.getValues();
+		put(spreadsheetId, range, values, ttl, missed);
+		return values;
+	}
+	
+	/**
+	 * Gets the rows of a range decoded by a codec, from the cache if there's
+	 * an entry for the same schema that didn't expire, or from Google Sheets
+	 * otherwise, see {@link RowCodec#read(Sheets, String, String)}.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 * @param codec	the codec that reads the range
+	 * @param ttl	the time-to-live of a new entry, in milliseconds
+	 * @return the rows; don't change them
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public RowTable get(Sheets service, String spreadsheetId, String range, RowCodec codec, long ttl) throws IOException {
+		String key = tableKey(spreadsheetId, range);
+		long missed;
+		synchronized (this) {
+			Entry entry = entries.get(key);
+			if (entry != null && entry.expires > System.currentTimeMillis()
+					&& entry.table.getSchema() == codec.getSchema()) {
+				hits++;
+				return entry.table;
+			}
+			misses++;
+			missed = generation;
+		}
+		RowTable table = codec.read(service, spreadsheetId, range);
+		synchronized (this) {
+			if (missed == generation) {
+				Entry entry = new Entry(spreadsheetId, range, table,
+						System.currentTimeMillis() + ttl);
+				if (entry.cells <= maxCells)
+					add(key, entry);
+			}
+		}
+		return table;
+	}
+	
+	/**
+	 * Gets the current generation of the cache. Take it before fetching
+	 * a range, and pass it to {@link #put(String, String, List, long, long)}
+	 * afterwards, so that the values aren't cached if a write happened
+	 * in between.
+	 *
+	 * @return the number of invalidations so far
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Gets the values of a range if the cache has an entry that didn't
+	 * expire, e.g. to leave it out of a batch, see {@link RangeSnapshot}.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 * @return the values (an empty list if the range is empty), or null on a miss; don't change them
+	 */
+	public synchronized List<List<Object>> getIfPresent(String spreadsheetId, String range) {
+		Entry entry = entries.get(key(spreadsheetId, range));
+		if (entry != null && entry.expires > System.currentTimeMillis()) {
+			hits++;
+			return entry.values;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Adds the values of a range to the cache.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 * @param values	the values
+	 * @param ttl	the time-to-live, in milliseconds
+	 */
+	public synchronized void put(String spreadsheetId, String range, List<List<Object>> values, long ttl) {
+		put(spreadsheetId, range, values, ttl, generation);
+	}
+	
+	/**
+	 * Adds the values of a range to the cache, unless the cache was
+	 * invalidated since the values were fetched.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 * @param values	the values
+	 * @param ttl	the time-to-live, in milliseconds
+	 * @param fetched	the generation before the values were fetched, see {@link #getGeneration()}
+	 */
+	public synchronized void put(String spreadsheetId, String range, List<List<Object>> values, long ttl, long fetched) {
+		if (fetched != generation)
+			return;
+		Entry entry = new Entry(spreadsheetId, range, values,
+				System.currentTimeMillis() + ttl);
+		if (entry.cells > maxCells)
+			return;
+		add(key(spreadsheetId, range), entry);
+	}
+	
+	/**
+	 * Removes all entries that overlap with a range we wrote to.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 */
+	public void invalidate(String spreadsheetId, String range) {
+		invalidate(spreadsheetId, A1Range.parse(range));
+	}
+	
+	/**
+	 * Removes all entries that overlap with a range we wrote to.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	the range
+	 */
+	public synchronized void invalidate(String spreadsheetId, A1Range range) {
+		generation++;
+		for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			if (entry.spreadsheetId.equals(spreadsheetId) && entry.range.overlaps(range)) {
+				cells -= entry.cells;
+				it.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Removes all entries.
+	 */
+	public synchronized void clear() {
+		generation++;
+		entries.clear();
+		cells = 0;
+	}
+	
+	/**
+	 * Gets the number of reads that were served from the cache.
+	 *
+	 * @return a number of hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	/**
+	 * Gets the number of reads that went to Google Sheets.
+	 *
+	 * @return a number of misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	/**
+	 * Saves the entries that didn't expire to a file.
+	 * Decoded rows aren't saved.
+	 *
+	 * @param file	the snapshot file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void save(File file) throws IOException {
+		ArrayList<Entry> snapshot;
+		synchronized (this) {
+			snapshot = new ArrayList<Entry>(entries.size());
+			for (Entry entry : entries.values()) {
+				if (entry.table == null)
+					snapshot.add(entry);
+			}
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(snapshot.size());
+			for (Entry entry : snapshot) {
+				out.writeUTF(entry.spreadsheetId);
+				out.writeUTF(entry.text);
+				out.writeLong(entry.expires);
+				out.writeInt(entry.values.size());
+				for (List<Object> row : entry.values) {
+					out.writeInt(row.size());
+					for (Object value : row)
+						writeValue(out, value);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) {
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Can't replace " + file);
+		}
+	}
+	
+	/**
+	 * Adds the entries of a snapshot file that didn't expire yet.
+	 *
+	 * @param file	the snapshot file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void load(File file) throws IOException {
+		if (!file.exists())
+			return;
+		List<Entry> snapshot = new ArrayList<Entry>();
+		long now = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not a range cache snapshot: " + file);
+			for (int n = in.readInt(); n > 0; n--) {
+				String spreadsheetId = in.readUTF();
+				String text = in.readUTF();
+				long expires = in.readLong();
+				int rows = in.readInt();
+				List<List<Object>> values = new ArrayList<List<Object>>(Math.min(rows, 1024));
+				for (int r = 0; r < rows; r++) {
+					int columns = in.readInt();
+					List<Object> row = new ArrayList<Object>(Math.min(columns, 1024));
+					for (int c = 0; c < columns; c++)
+						row.add(readValue(in));
+					values.add(row);
+				}
+				if (expires > now)
+					snapshot.add(new Entry(spreadsheetId, text, values, expires));
+			}
+		} finally {
+			in.close();
+		}
+		synchronized (this) {
+			for (Entry entry : snapshot)
+				add(key(entry.spreadsheetId, entry.text), entry);
+		}
+	}
+	
+	/**
+	 * Writes the value of a cell to a snapshot. Types other than strings,
+	 * numbers and booleans are written as their string value.
+	 *
+	 * @param out	the snapshot
+	 * @param value	the value of a cell
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeValue(DataOutputStream out, Object value) throws IOException {
+		if (value == null) {
+			out.writeByte(NULL);
+		}
+		else if (value instanceof BigDecimal) {
+			out.writeByte(DECIMAL);
+			out.writeUTF(value.toString());
+		}
+		else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean)value);
+		}
+		else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long)value);
+		}
+		else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer)value);
+		}
+		else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double)value);
+		}
+		else {
+			out.writeByte(STRING);
+			writeString(out, value.toString());
+		}
+	}
+	
+	/**
+	 * Reads the value of a cell from a snapshot.
+	 *
+	 * @param in	the snapshot
+	 * @return the value of a cell
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case NULL:
+			return null;
+		case STRING:
+			return readString(in);
+		case DECIMAL:
+			try {
+				return new BigDecimal(in.readUTF());
+			} catch (NumberFormatException e) {
+				throw new IOException("Damaged range cache snapshot", e);
+			}
+		case BOOLEAN:
+			return in.readBoolean();
+		case LONG:
+			return in.readLong();
+		case INTEGER:
+			return in.readInt();
+		case DOUBLE:
+			return in.readDouble();
+		default:
+			throw new IOException("Damaged range cache snapshot: unknown cell type " + type);
+		}
+	}
+	
+	/**
+	 * Writes a string that may be longer than writeUTF allows.
+	 *
+	 * @param out	the snapshot
+	 * @param value	the string
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeInt(value.length());
+		out.writeChars(value);
+	}
+	
+	/**
+	 * Reads a string written by {@link #writeString(DataOutputStream, String)}.
+	 *
+	 * @param in	the snapshot
+	 * @return the string
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Damaged range cache snapshot: negative string length");
+		StringBuilder buf = new StringBuilder(Math.min(length, 4096));
+		for (int i = 0; i < length; i++)
+			buf.append(in.readChar());
+		return buf.toString();
+	}
+	
+	/**
+	 * Adds an entry and evicts the least recently used entries if needed.
+	 *
+	 * @param key	the key
+	 * @param entry	the entry
+	 */
+	private void add(String key, Entry entry) {
+		Entry old = entries.put(key, entry);
+		if (old != null)
+			cells -= old.cells;
+		cells += entry.cells;
+		for (Iterator<Entry> it = entries.values().iterator(); cells > maxCells && it.hasNext(); ) {
+			Entry eldest = it.next();
+			if (eldest == entry)
+				continue;
+			cells -= eldest.cells;
+			it.remove();
+		}
+	}
+	
+	/**
+	 * Creates the key of an entry.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range
+	 * @return a key
+	 */
+	private static String key(String spreadsheetId, String range) {
+		return spreadsheetId + '\u0000' + range;
+	}
+	
+	/**
+	 * Creates the key of an entry with decoded rows.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range
+	 * @return a key that differs from the key of the raw values of the range
+	 */
+	private static String tableKey(String spreadsheetId, String range) {
+		return key(spreadsheetId, range) + '\u0000';
+	}
+}
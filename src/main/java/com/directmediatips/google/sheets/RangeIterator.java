@@ -0,0 +1,283 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.directmediatips.google.sheets.QuotaLimiter.Priority;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.GridProperties;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+
+/**
+ * Iterates over the rows of a sheet in windows of rows, e.g. <code>A1:E5000</code>,
+ * then <code>A5001:E10000</code>, and so on. While the caller processes one window,
+ * the next window is downloaded. At most two windows are in memory at any time.
+ * The number of rows of the sheet is read together with the first window,
+ * and iteration goes on until that row, because Google Sheets leaves trailing
+ * blank rows out of a window: a window that isn't completely filled doesn't
+ * mean there are no rows after it. If the number of rows isn't known,
+ * iteration stops after the first window without any rows.
+ * Windows are downloaded with {@link Priority#BULK} priority.
+ * Errors while downloading are thrown as {@link UncheckedIOException}.
+ *
+ * @param <T> the type of the objects the rows are decoded into
+ */
+public class RangeIterator<T> implements Iterator<T>, Closeable {
+	
+	/** The default number of rows per window. */
+	public static final int DEFAULT_WINDOW_ROWS = 5000;
+	/** The executor that downloads the windows, shared by all iterators. */
+	private static final ExecutorService FETCHER = SheetExecutor.newDefaultExecutor();
+	/** The field mask used to read the number of rows of the sheet. */
+	public static final String ROW_COUNT_FIELDS = "sheets.properties.gridProperties.rowCount";
+	
+	/**
+	 * Decodes a row of a sheet into an object.
+	 *
+	 * @param <T> the type of the object
+	 */
+	public interface RowDecoder<T> {
+		
+		/**
+		 * Decodes a row.
+		 *
+		 * @param index	the index of the row in the sheet (0-based)
+		 * @param row	the values of the row, never empty
+		 * @return an object, or null if the row should be skipped
+		 */
+		T decode(int index, List<Object> row);
+	}
+	
+	/** The Google Sheets service. */
+	protected final Sheets service;
+	/** The ID of the spreadsheet. */
+	protected final String spreadsheetId;
+	/** The title of the sheet. */
+	protected final String sheet;
+	/** The first column, e.g. "A". */
+	protected final String firstColumn;
+	/** The last column, e.g. "E". */
+	protected final String lastColumn;
+	/** The number of rows per window. */
+	protected final int windowRows;
+	/** The decoder. */
+	protected final RowDecoder<T> decoder;
+	/** The operation under which the downloads are recorded, see {@link SheetMetrics}. */
+	protected final String operation;
+	
+	/** The download of the next window, or null if there are no more windows. */
+	private Future<List<List<Object>>> pending;
+	/** The first row of the next window (1-based). */
+	private int nextRow;
+	/** The number of rows in the sheet, read with the first window; -1 if unknown. */
+	private int rowCount = -1;
+	/** True until the first window was requested. */
+	private boolean first = true;
+	/** The current window. */
+	private List<List<Object>> current = Collections.emptyList();
+	/** The index of the first row of the current window (0-based). */
+	private int currentIndex;
+	/** The position in the current window. */
+	private int pos;
+	/** The next decoded object, or null if it still needs to be decoded. */
+	private T next;
+	
+	/**
+	 * Creates a RangeIterator instance and starts downloading the first window.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param sheet	the title of the sheet
+	 * @param firstColumn	the first column, e.g. "A"
+	 * @param lastColumn	the last column, e.g. "E"
+	 * @param firstRow	the first row (1-based)
+	 * @param windowRows	the number of rows per window
+	 * @param decoder	the decoder turning rows into objects
+	 */
+	public RangeIterator(Sheets service, String spreadsheetId, String sheet,
+			String firstColumn, String lastColumn, int firstRow, int windowRows,
+			RowDecoder<T> decoder) {
+		this.service = service;
+		this.spreadsheetId = spreadsheetId;
+		this.sheet = sheet;
+		this.firstColumn = firstColumn;
+		this.lastColumn = lastColumn;
+		this.windowRows = windowRows;
+		this.decoder = decoder;
+		this.operation = SheetMetrics.getOperation();
+		this.nextRow = firstRow;
+		this.currentIndex = firstRow - 1;
+		prefetch();
+	}
+	
+	@Override
+	public boolean hasNext() {
+		while (next == null) {
+			while (pos >= current.size()) {
+				if (pending == null)
+					return false;
+				currentIndex = nextRow - 1;
+				current = await(pending);
+				pos = 0;
+				nextRow += windowRows;
+				if (rowCount < 0 ? current.isEmpty() : nextRow > rowCount) {
+					pending = null;
+				}
+				else {
+					prefetch();
+				}
+			}
+			List<Object> row = current.get(pos);
+			int index = currentIndex + pos++;
+			if (!row.isEmpty())
+				next = decoder.decode(index, row);
+		}
+		return true;
+	}
+	
+	@Override
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		T t = next;
+		next = null;
+		return t;
+	}
+	
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Stops downloading windows; the download in flight, if any, is cancelled.
+	 */
+	@Override
+	public void close() {
+		if (pending != null)
+			pending.cancel(true);
+		pending = null;
+		current = Collections.emptyList();
+	}
+	
+	/**
+	 * Gets the remaining objects as a sequential stream.
+	 * Closing the stream closes the iterator.
+	 *
+	 * @return a Stream
+	 */
+	public Stream<T> stream() {
+		return StreamSupport.stream(
+				Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+				.onClose(new Runnable() {
+					public void run() {
+						close();
+					}
+				});
+	}
+	
+	/**
+	 * Starts downloading the window that starts at {@link #nextRow}.
+	 */
+	private void prefetch() {
+		final String range = String.format("%s!%s%d:%s%d",
+				sheet, firstColumn, nextRow, lastColumn, nextRow + windowRows - 1);
+		final boolean countRows = first;
+		first = false;
+		pending = FETCHER.submit(new Callable<List<List<Object>>>() {
+			public List<List<Object>> call() throws IOException {
+				// The thread is shared, so restore its priority and operation afterwards
+				Priority previous = QuotaLimiter.setPriority(Priority.BULK);
+				String previousOperation = SheetMetrics.setOperation(operation);
+				try {
+					if (countRows)
+						rowCount = getRowCount();
+					List<List<Object>> values = service.spreadsheets().values()
+							.get(spreadsheetId, range)
+							.setFields(SheetService.getResponseFields(SheetService.VALUES_FIELDS))
+							.execute()
+							.getValues();
+					if (values == null)
+						return Collections.emptyList();
+					return values;
+				}
+				finally {
+					SheetMetrics.setOperation(previousOperation);
+					QuotaLimiter.setPriority(previous);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Reads the number of rows of the sheet (blank rows included).
+	 * Called on a fetcher thread; the value is published to the caller
+	 * by the future of the first window.
+	 *
+	 * @return the number of rows, or -1 if it isn't known
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private int getRowCount() throws IOException {
+		Spreadsheet spreadsheet = service.spreadsheets().get(spreadsheetId)
+				.setRanges(Collections.singletonList(sheet))
+				.setFields(ROW_COUNT_FIELDS)
+				.execute();
+		List<Sheet> sheets = spreadsheet.getSheets();
+		if (sheets == null || sheets.isEmpty() || sheets.get(0).getProperties() == null)
+			return -1;
+		GridProperties grid = sheets.get(0).getProperties().getGridProperties();
+		if (grid == null || grid.getRowCount() == null)
+			return -1;
+		return grid.getRowCount();
+	}
+	
+	/**
+	 * Waits for a window to be downloaded.
+	 *
+	 * @param future	the download
+	 * @return the rows of the window
+	 */
+	private List<List<Object>> await(Future<List<List<Object>>> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new UncheckedIOException(new InterruptedIOException("Interrupted while reading rows"));
+		} catch (ExecutionException e) {
+			close();
+			if (e.getCause() instanceof IOException)
+				throw new UncheckedIOException((IOException)e.getCause());
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.ValueRange;
+
+/**
+ * An immutable snapshot of several ranges of one spreadsheet, read with
+ * a single <code>values().batchGet</code> call instead of one call per range.
+ * Use a {@link Loader} to choose the ranges:
+ * <pre>
+ * RangeSnapshot snapshot = new RangeSnapshot.Loader(service, spreadsheetId)
+ *     .addCached("criteria!A1", RangeCache.DEFAULT_TTL)
+ *     .add("results!A2:Z")
+ *     .load();
+ * </pre>
+ * Ranges added with {@link Loader#addCached(String, long)} are taken from
+ * the {@link RangeCache} when possible, so that a warm cache only leaves
+ * the other ranges for the batch.
+ */
+public class RangeSnapshot {
+	
+	/**
+	 * Collects the ranges of a snapshot and reads them.
+	 */
+	public static class Loader {
+		
+		/** The Google Sheets service. */
+		protected final Sheets service;
+		/** The ID of the spreadsheet. */
+		protected final String spreadsheetId;
+		/** The ranges, with the time-to-live in the cache as value (0 if not cached). */
+		private final Map<String, Long> ranges = new LinkedHashMap<String, Long>();
+		
+		/**
+		 * Creates a Loader instance.
+		 *
+		 * @param service	the Sheets service
+		 * @param spreadsheetId	an ID of a Google sheets document
+		 */
+		public Loader(Sheets service, String spreadsheetId) {
+			this.service = service;
+			this.spreadsheetId = spreadsheetId;
+		}
+		
+		/**
+		 * Adds a range that is always read from the spreadsheet.
+		 *
+		 * @param range	a range in A1 notation
+		 * @return this Loader
+		 */
+		public Loader add(String range) {
+			ranges.put(range, 0L);
+			return this;
+		}
+		
+		/**
+		 * Adds a mostly static range that is read through the {@link RangeCache}.
+		 *
+		 * @param range	a range in A1 notation
+		 * @param ttl	the time-to-live of a new cache entry, in milliseconds
+		 * @return this Loader
+		 */
+		public Loader addCached(String range, long ttl) {
+			ranges.put(range, ttl);
+			return this;
+		}
+		
+		/**
+		 * Reads the ranges: cached ranges that didn't expire come from the
+		 * cache, all the others are fetched with one batchGet call.
+		 * No call is made if every range is in the cache.
+		 *
+		 * @return a RangeSnapshot instance
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		public RangeSnapshot load() throws IOException {
+			RangeCache cache = RangeCache.getInstance();
+			Map<String, List<List<Object>>> values = new LinkedHashMap<String, List<List<Object>>>();
+			List<String> missing = new ArrayList<String>();
+			for (Map.Entry<String, Long> range : ranges.entrySet()) {
+				List<List<Object>> cached = range.getValue() > 0
+						? cache.getIfPresent(spreadsheetId, range.getKey()) : null;
+				values.put(range.getKey(), cached);
+				if (cached == null)
+					missing.add(range.getKey());
+			}
+			if (!missing.isEmpty()) {
+				long generation = cache.getGeneration();
+				List<ValueRange> response = service.spreadsheets().values()
+						.batchGet(spreadsheetId)
+						.setRanges(missing)
+						.setFields(SheetService.getResponseFields(SheetService.BATCH_GET_FIELDS))
+						.execute()
+						.getValueRanges();
+				for (int i = 0; i < missing.size(); i++) {
+					String range = missing.get(i);
+					List<List<Object>> fetched = response == null || i >= response.size()
+							? null : response.get(i).getValues();
+					values.put(range, fetched);
+					long ttl = ranges.get(range);
+					if (ttl > 0)
+						cache.put(spreadsheetId, range, fetched, ttl, generation);
+				}
+			}
+			return new RangeSnapshot(spreadsheetId, values);
+		}
+	}
+	
+	/** The ID of the spreadsheet. */
+	protected final String spreadsheetId;
+	/** The values per range, in the order the ranges were added. */
+	private final Map<String, List<List<Object>>> values;
+	
+	/**
+	 * Creates a RangeSnapshot instance. The lists aren't copied,
+	 * so they shouldn't be changed after they were passed.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param values	the values per range, null for an empty range
+	 */
+	public RangeSnapshot(String spreadsheetId, Map<String, List<List<Object>>> values) {
+		this.spreadsheetId = spreadsheetId;
+		Map<String, List<List<Object>>> map = new LinkedHashMap<String, List<List<Object>>>();
+		for (Map.Entry<String, List<List<Object>>> entry : values.entrySet())
+			map.put(entry.getKey(), unmodifiable(entry.getValue()));
+		this.values = Collections.unmodifiableMap(map);
+	}
+	
+	/**
+	 * Wraps the rows of a range in read-only views.
+	 *
+	 * @param rows	the rows, or null
+	 * @return an unmodifiable list, empty if there are no rows
+	 */
+	private static List<List<Object>> unmodifiable(List<List<Object>> rows) {
+		if (rows == null)
+			return Collections.emptyList();
+		List<List<Object>> list = new ArrayList<List<Object>>(rows.size());
+		for (List<Object> row : rows)
+			list.add(Collections.unmodifiableList(row));
+		return Collections.unmodifiableList(list);
+	}
+	
+	/**
+	 * Gets the ID of the spreadsheet.
+	 *
+	 * @return an ID of a Google sheets document
+	 */
+	public String getSpreadsheetId() {
+		return spreadsheetId;
+	}
+	
+	/**
+	 * Gets the ranges of the snapshot.
+	 *
+	 * @return the ranges, in the order they were added
+	 */
+	public Set<String> getRanges() {
+		return values.keySet();
+	}
+	
+	/**
+	 * Gets the values of a range.
+	 *
+	 * @param range	a range that was added to the snapshot
+	 * @return the rows of the range, empty if the range is empty
+	 */
+	public List<List<Object>> getValues(String range) {
+		List<List<Object>> rows = values.get(range);
+		if (rows == null)
+			throw new IllegalArgumentException("Range not in snapshot: " + range);
+		return rows;
+	}
+	
+	/**
+	 * Gets the value of a cell, relative to the start of a range.
+	 *
+	 * @param range	a range that was added to the snapshot
+	 * @param row	the row in the range (0-based)
+	 * @param column	the column in the range (0-based)
+	 * @return the value, or null if the cell is empty
+	 */
+	public Object getValue(String range, int row, int column) {
+		List<List<Object>> rows = getValues(range);
+		if (row >= rows.size() || column >= rows.get(row).size())
+			return null;
+		return rows.get(row).get(column);
+	}
+}
@@ -0,0 +1,395 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.UriTemplate;
+import com.google.api.services.sheets.v4.Sheets;
+
+/**
+ * Reads and writes the rows of a tab as described by a {@link RowSchema},
+ * without going through <code>List&lt;List&lt;Object&gt;&gt;</code> and
+ * {@link com.google.api.services.sheets.v4.model.ValueRange}: the JSON of a
+ * response is parsed token by token straight into the primitive columns of
+ * a {@link RowTable}, and the body of an update is generated from such a table.
+ * Numbers are read with <code>valueRenderOption=UNFORMATTED_VALUE</code>,
+ * so they arrive as JSON numbers; numbers stored as text are parsed from
+ * the characters of the parser, without creating a String.
+ *
+ * The requests are built on the request factory of the Sheets client,
+ * so they share its quota, retries and metrics (see {@link SheetRequestInitializer}).
+ * A codec is immutable and can be shared.
+ */
+public class RowCodec {
+	
+	/** The value render option that returns numbers as numbers. */
+	public static final String UNFORMATTED_VALUE = "UNFORMATTED_VALUE";
+	/** The value input option that stores values as they are. */
+	public static final String RAW = "RAW";
+	/** The path of a values request, relative to the base URL of the client. */
+	public static final String VALUES_PATH = "v4/spreadsheets/{spreadsheetId}/values/{range}";
+	
+	/** The JSON factory used to parse responses and to generate request bodies. */
+	private static final JsonFactory JSON = new JsonFactory();
+	
+	/** The schema. */
+	protected final RowSchema schema;
+	/** The column of every cell of a row, -1 for cells we ignore. */
+	private final int[] cellColumn;
+	/** The type of every cell of a row. */
+	private final RowSchema.Type[] cellType;
+	/** The index of the first flag cell, or the width of a row if there are no flags. */
+	private final int firstFlag;
+	
+	/**
+	 * Creates a RowCodec instance. The mapping of cells to columns is
+	 * computed once, so decoding a cell is an array lookup and a switch.
+	 *
+	 * @param schema	the schema of the rows
+	 */
+	public RowCodec(RowSchema schema) {
+		this.schema = schema;
+		int width = schema.getWidth();
+		cellColumn = new int[width];
+		cellType = new RowSchema.Type[width];
+		int cell = 0;
+		int flag = width;
+		for (int c = 0; c < schema.size(); c++) {
+			RowSchema.Type type = schema.getType(c);
+			int n = type == RowSchema.Type.FLAGS ? schema.getFlags() : 1;
+			if (type == RowSchema.Type.FLAGS)
+				flag = cell;
+			for (int i = 0; i < n; i++, cell++) {
+				cellColumn[cell] = type == RowSchema.Type.BLANK ? -1 : c;
+				cellType[cell] = type;
+			}
+		}
+		firstFlag = flag;
+	}
+	
+	/**
+	 * Gets the schema.
+	 *
+	 * @return the schema of the rows
+	 */
+	public RowSchema getSchema() {
+		return schema;
+	}
+	
+	/**
+	 * Reads a range with a single raw request.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation; its first cell is the first cell of the schema
+	 * @return a table with the rows of the range
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public RowTable read(Sheets service, String spreadsheetId, String range) throws IOException {
+		GenericUrl url = getUrl(service, spreadsheetId, range);
+		url.set("valueRenderOption", UNFORMATTED_VALUE);
+		url.set("majorDimension", "ROWS");
+		url.set(SheetRequestInitializer.FIELDS, SheetService.getResponseFields(SheetService.VALUES_FIELDS));
+		HttpResponse response = service.getRequestFactory().buildGetRequest(url).execute();
+		try {
+			return decode(response.getContent());
+		} finally {
+			response.disconnect();
+		}
+	}
+	
+	/**
+	 * Writes the rows of a table to a range with a single raw request.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 * @param table	the rows
+	 * @param valueInputOption	"RAW" or "USER_ENTERED"
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void write(Sheets service, String spreadsheetId, String range,
+			RowTable table, String valueInputOption) throws IOException {
+		GenericUrl url = getUrl(service, spreadsheetId, range);
+		url.set("valueInputOption", valueInputOption);
+		url.set(SheetRequestInitializer.FIELDS, SheetService.getResponseFields(SheetService.UPDATE_FIELDS));
+		service.getRequestFactory()
+			.buildPutRequest(url, encode(range, table, 0, table.size()))
+			.execute()
+			.disconnect();
+	}
+	
+	/**
+	 * Creates the URL of a values request.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param range	a range in A1 notation
+	 * @return the URL, without query parameters
+	 */
+	protected static GenericUrl getUrl(Sheets service, String spreadsheetId, String range) {
+		Map<String, Object> parameters = new HashMap<String, Object>();
+		parameters.put("spreadsheetId", spreadsheetId);
+		parameters.put("range", range);
+		return new GenericUrl(UriTemplate.expand(service.getBaseUrl(), VALUES_PATH, parameters, false));
+	}
+	
+	/**
+	 * Parses the JSON of a ValueRange (rows as major dimension).
+	 * Fields other than "values" are skipped.
+	 *
+	 * @param in	the JSON
+	 * @return a table with the rows
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public RowTable decode(InputStream in) throws IOException {
+		JsonParser parser = JSON.createParser(in);
+		try {
+			RowTable table = new RowTable(schema, 256);
+			if (parser.nextToken() != JsonToken.START_OBJECT)
+				throw new IOException("A JSON object was expected");
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				JsonToken token = parser.nextToken();
+				if ("values".equals(field) && token == JsonToken.START_ARRAY)
+					decodeRows(parser, table);
+				else
+					parser.skipChildren();
+			}
+			return table;
+		} finally {
+			parser.close();
+		}
+	}
+	
+	/**
+	 * Parses the rows of a "values" array.
+	 *
+	 * @param parser	a parser positioned at the start of the array
+	 * @param table	the table to add the rows to
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void decodeRows(JsonParser parser, RowTable table) throws IOException {
+		while (parser.nextToken() == JsonToken.START_ARRAY) {
+			int row = table.addRow();
+			int cell = 0;
+			for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken(), cell++) {
+				if (cell >= cellColumn.length || cellColumn[cell] < 0) {
+					parser.skipChildren();
+					continue;
+				}
+				int column = cellColumn[cell];
+				switch (cellType[cell]) {
+				case STRING:
+					table.setString(column, row, token == JsonToken.VALUE_NULL ? null : parser.getText());
+					break;
+				case LONG:
+					table.setLong(column, row, getLong(parser, token));
+					break;
+				case INT:
+					table.setInt(column, row, (int)getLong(parser, token));
+					break;
+				case DOUBLE:
+					table.setDouble(column, row, getDouble(parser, token));
+					break;
+				case FLAGS:
+					if (getLong(parser, token) == 1)
+						table.setLong(column, row, table.getLong(column, row) | (1L << (cell - firstFlag)));
+					break;
+				default:
+					parser.skipChildren();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Gets the current value as a long.
+	 *
+	 * @param parser	the parser
+	 * @param token	the current token
+	 * @return the value, or 0 if it's empty or not a whole number
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static long getLong(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+		case VALUE_NUMBER_INT:
+			return parser.getLongValue();
+		case VALUE_NUMBER_FLOAT:
+			return (long)parser.getDoubleValue();
+		case VALUE_STRING:
+			return parseLong(parser.getTextCharacters(), parser.getTextOffset(), parser.getTextLength());
+		case VALUE_TRUE:
+			return 1;
+		default:
+			return 0;
+		}
+	}
+	
+	/**
+	 * Gets the current value as a double.
+	 *
+	 * @param parser	the parser
+	 * @param token	the current token
+	 * @return the value, or 0 if it's empty or not a number
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected static double getDouble(JsonParser parser, JsonToken token) throws IOException {
+		switch (token) {
+		case VALUE_NUMBER_INT:
+		case VALUE_NUMBER_FLOAT:
+			return parser.getDoubleValue();
+		case VALUE_STRING:
+			try {
+				return Double.parseDouble(parser.getText());
+			} catch (NumberFormatException e) {
+				return 0;
+			}
+		default:
+			return 0;
+		}
+	}
+	
+	/**
+	 * Parses a whole number from characters, without creating a String.
+	 *
+	 * @param chars	the characters
+	 * @param offset	the offset of the first character
+	 * @param length	the number of characters
+	 * @return the number, or 0 if the characters aren't a whole number that fits in a long
+	 */
+	public static long parseLong(char[] chars, int offset, int length) {
+		int i = offset;
+		int end = offset + length;
+		boolean negative = i < end && chars[i] == '-';
+		if (negative)
+			i++;
+		if (i == end || end - i > 19)
+			return 0;
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = chars[i] - '0';
+			if (digit < 0 || digit > 9)
+				return 0;
+			value = value * 10 + digit;
+			if (value < 0)
+				return 0;
+		}
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Creates the body of a values update for some of the rows of a table.
+	 * The JSON is generated while the body is sent; LONG cells are written
+	 * as text (a value of 0 as an empty string), BLANK cells as null,
+	 * which leaves them unchanged.
+	 *
+	 * @param range	the range in A1 notation
+	 * @param table	the rows
+	 * @param from	the first row to write
+	 * @param to	the row after the last row to write
+	 * @return the content of the request
+	 */
+	public HttpContent encode(final String range, final RowTable table, final int from, final int to) {
+		return new AbstractHttpContent("application/json; charset=UTF-8") {
+			public void writeTo(OutputStream out) throws IOException {
+				JsonGenerator generator = JSON.createGenerator(out, JsonEncoding.UTF8);
+				generator.writeStartObject();
+				generator.writeStringField("range", range);
+				generator.writeStringField("majorDimension", "ROWS");
+				generator.writeArrayFieldStart("values");
+				char[] digits = new char[20];
+				for (int row = from; row < to; row++) {
+					generator.writeStartArray();
+					encodeRow(generator, table, row, digits);
+					generator.writeEndArray();
+				}
+				generator.writeEndArray();
+				generator.writeEndObject();
+				generator.flush();
+			}
+		};
+	}
+	
+	/**
+	 * Writes the cells of a row.
+	 *
+	 * @param generator	the JSON generator
+	 * @param table	the rows
+	 * @param row	the index of the row
+	 * @param digits	a buffer for the text of LONG cells
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void encodeRow(JsonGenerator generator, RowTable table, int row, char[] digits) throws IOException {
+		for (int cell = 0; cell < cellColumn.length; cell++) {
+			int column = cellColumn[cell];
+			switch (cellType[cell]) {
+			case STRING:
+				String s = table.getString(column, row);
+				generator.writeString(s == null ? "" : s);
+				break;
+			case LONG:
+				long value = table.getLong(column, row);
+				int start = value == 0 ? digits.length : toChars(value, digits);
+				generator.writeString(digits, start, digits.length - start);
+				break;
+			case INT:
+				generator.writeNumber(table.getInt(column, row));
+				break;
+			case DOUBLE:
+				generator.writeNumber(table.getDouble(column, row));
+				break;
+			case FLAGS:
+				generator.writeNumber(table.isSet(column, row, cell - firstFlag) ? 1 : 0);
+				break;
+			default:
+				generator.writeNull();
+			}
+		}
+	}
+	
+	/**
+	 * Writes the decimal digits of a number at the end of a buffer.
+	 *
+	 * @param value	the number
+	 * @param digits	a buffer of 20 characters
+	 * @return the index of the first character
+	 */
+	protected static int toChars(long value, char[] digits) {
+		int i = digits.length;
+		boolean negative = value < 0;
+		do {
+			digits[--i] = (char)('0' + Math.abs(value % 10));
+			value /= 10;
+		} while (value != 0);
+		if (negative)
+			digits[--i] = '-';
+		return i;
+	}
+}
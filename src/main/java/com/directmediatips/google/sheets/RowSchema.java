@@ -0,0 +1,242 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Describes the columns of a tab, e.g. the harvest sheet of an account:
+ * their names and how their cells are stored in a {@link RowTable} and
+ * encoded by a {@link RowCodec}. A schema is immutable; use a {@link Builder}
+ * to create one.
+ */
+public class RowSchema {
+	
+	/**
+	 * The type of a column.
+	 */
+	public enum Type {
+		/** Text, stored as a String. */
+		STRING,
+		/** A number that may not fit in a double (e.g. a Twitter ID), stored as a long and written as text; 0 if empty. */
+		LONG,
+		/** A number, stored as an int and written as a number; 0 if empty. */
+		INT,
+		/** A decimal number, stored as a double; 0 if empty. */
+		DOUBLE,
+		/** A run of cells containing 0 or 1, stored as the bits of a long; only allowed as the last column. */
+		FLAGS,
+		/** A cell that is neither read nor written. */
+		BLANK
+	}
+	
+	/**
+	 * A column of a schema.
+	 */
+	public static class Column {
+		
+		/** The name of the column. */
+		public final String name;
+		/** The type of the column. */
+		public final Type type;
+		
+		/**
+		 * Creates a Column instance.
+		 *
+		 * @param name	the name of the column
+		 * @param type	the type of the column
+		 */
+		protected Column(String name, Type type) {
+			this.name = name;
+			this.type = type;
+		}
+	}
+	
+	/**
+	 * Adds the columns of a schema, from left to right.
+	 */
+	public static class Builder {
+		
+		/** The columns added so far. */
+		private final List<Column> columns = new ArrayList<Column>();
+		/** The number of cells of the flags column, 0 if there is none. */
+		private int flags;
+		
+		/**
+		 * Adds a column.
+		 *
+		 * @param name	the name of the column
+		 * @param type	the type of the column
+		 * @return this Builder
+		 */
+		protected Builder add(String name, Type type) {
+			if (flags > 0)
+				throw new IllegalStateException("The flags column must be the last column");
+			columns.add(new Column(name, type));
+			return this;
+		}
+		
+		/**
+		 * Adds a text column.
+		 *
+		 * @param name	the name of the column
+		 * @return this Builder
+		 */
+		public Builder addString(String name) {
+			return add(name, Type.STRING);
+		}
+		
+		/**
+		 * Adds a column with IDs or other large numbers.
+		 *
+		 * @param name	the name of the column
+		 * @return this Builder
+		 */
+		public Builder addLong(String name) {
+			return add(name, Type.LONG);
+		}
+		
+		/**
+		 * Adds a column with small numbers.
+		 *
+		 * @param name	the name of the column
+		 * @return this Builder
+		 */
+		public Builder addInt(String name) {
+			return add(name, Type.INT);
+		}
+		
+		/**
+		 * Adds a column with decimal numbers.
+		 *
+		 * @param name	the name of the column
+		 * @return this Builder
+		 */
+		public Builder addDouble(String name) {
+			return add(name, Type.DOUBLE);
+		}
+		
+		/**
+		 * Adds a column that is skipped.
+		 *
+		 * @return this Builder
+		 */
+		public Builder addBlank() {
+			return add("", Type.BLANK);
+		}
+		
+		/**
+		 * Adds the last column: a run of 0/1 cells.
+		 *
+		 * @param name	the name of the column
+		 * @param width	the number of cells, at most 64
+		 * @return this Builder
+		 */
+		public Builder addFlags(String name, int width) {
+			if (width < 1 || width > 64)
+				throw new IllegalArgumentException("Between 1 and 64 flags expected: " + width);
+			add(name, Type.FLAGS);
+			flags = width;
+			return this;
+		}
+		
+		/**
+		 * Creates the schema.
+		 *
+		 * @return a RowSchema instance
+		 */
+		public RowSchema build() {
+			return new RowSchema(columns, flags);
+		}
+	}
+	
+	/** The columns. */
+	private final List<Column> columns;
+	/** The number of cells of the flags column, 0 if there is none. */
+	protected final int flags;
+	
+	/**
+	 * Creates a RowSchema instance.
+	 *
+	 * @param columns	the columns
+	 * @param flags	the number of cells of the flags column
+	 */
+	protected RowSchema(List<Column> columns, int flags) {
+		this.columns = Collections.unmodifiableList(new ArrayList<Column>(columns));
+		this.flags = flags;
+	}
+	
+	/**
+	 * Gets the columns.
+	 *
+	 * @return an unmodifiable list of columns
+	 */
+	public List<Column> getColumns() {
+		return columns;
+	}
+	
+	/**
+	 * Gets the number of columns.
+	 *
+	 * @return the number of columns
+	 */
+	public int size() {
+		return columns.size();
+	}
+	
+	/**
+	 * Gets the type of a column.
+	 *
+	 * @param column	the index of a column
+	 * @return the type
+	 */
+	public Type getType(int column) {
+		return columns.get(column).type;
+	}
+	
+	/**
+	 * Gets the index of a column.
+	 *
+	 * @param name	the name of a column
+	 * @return the index, or -1 if there's no such column
+	 */
+	public int indexOf(String name) {
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i).name.equals(name))
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Gets the number of cells of the flags column.
+	 *
+	 * @return the number of flags, 0 if there is no flags column
+	 */
+	public int getFlags() {
+		return flags;
+	}
+	
+	/**
+	 * Gets the number of cells in a row.
+	 *
+	 * @return the number of cells, flags included
+	 */
+	public int getWidth() {
+		return flags == 0 ? columns.size() : columns.size() - 1 + flags;
+	}
+}
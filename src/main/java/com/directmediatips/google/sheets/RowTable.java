@@ -0,0 +1,217 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Rows of a tab stored column by column, in primitive arrays:
+ * a <code>long[]</code> for LONG and FLAGS columns, an <code>int[]</code>
+ * for INT columns, a <code>double[]</code> for DOUBLE columns and a
+ * <code>String[]</code> for STRING columns (see {@link RowSchema}).
+ * Reading or writing a cell doesn't box anything.
+ * A table isn't thread-safe.
+ */
+public class RowTable {
+	
+	/** The schema of the rows. */
+	protected final RowSchema schema;
+	/** The columns: one array per column, null for BLANK columns. */
+	private final Object[] columns;
+	/** The number of rows. */
+	private int size;
+	/** The number of rows the arrays can hold. */
+	private int capacity;
+	
+	/**
+	 * Creates an empty RowTable instance.
+	 *
+	 * @param schema	the schema of the rows
+	 * @param capacity	the number of rows to reserve room for
+	 */
+	public RowTable(RowSchema schema, int capacity) {
+		this.schema = schema;
+		this.capacity = Math.max(capacity, 16);
+		columns = new Object[schema.size()];
+		for (int c = 0; c < columns.length; c++) {
+			switch (schema.getType(c)) {
+			case STRING:
+				columns[c] = new String[this.capacity];
+				break;
+			case LONG:
+			case FLAGS:
+				columns[c] = new long[this.capacity];
+				break;
+			case INT:
+				columns[c] = new int[this.capacity];
+				break;
+			case DOUBLE:
+				columns[c] = new double[this.capacity];
+				break;
+			default:
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the schema of the rows.
+	 *
+	 * @return the schema
+	 */
+	public RowSchema getSchema() {
+		return schema;
+	}
+	
+	/**
+	 * Gets the number of rows.
+	 *
+	 * @return the number of rows
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Adds an empty row: numbers are 0, strings are null.
+	 *
+	 * @return the index of the new row
+	 */
+	public int addRow() {
+		if (size == capacity)
+			grow(capacity * 2);
+		return size++;
+	}
+	
+	/**
+	 * Grows the arrays of the columns.
+	 *
+	 * @param newCapacity	the new number of rows the arrays can hold
+	 */
+	private void grow(int newCapacity) {
+		for (int c = 0; c < columns.length; c++) {
+			Object column = columns[c];
+			if (column instanceof String[])
+				columns[c] = Arrays.copyOf((String[])column, newCapacity);
+			else if (column instanceof long[])
+				columns[c] = Arrays.copyOf((long[])column, newCapacity);
+			else if (column instanceof int[])
+				columns[c] = Arrays.copyOf((int[])column, newCapacity);
+			else if (column instanceof double[])
+				columns[c] = Arrays.copyOf((double[])column, newCapacity);
+		}
+		capacity = newCapacity;
+	}
+	
+	/**
+	 * Gets the value of a LONG or FLAGS cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @return the value
+	 */
+	public long getLong(int column, int row) {
+		return ((long[])columns[column])[row];
+	}
+	
+	/**
+	 * Sets the value of a LONG or FLAGS cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @param value	the value
+	 */
+	public void setLong(int column, int row, long value) {
+		((long[])columns[column])[row] = value;
+	}
+	
+	/**
+	 * Gets the value of an INT cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @return the value
+	 */
+	public int getInt(int column, int row) {
+		return ((int[])columns[column])[row];
+	}
+	
+	/**
+	 * Sets the value of an INT cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @param value	the value
+	 */
+	public void setInt(int column, int row, int value) {
+		((int[])columns[column])[row] = value;
+	}
+	
+	/**
+	 * Gets the value of a DOUBLE cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @return the value
+	 */
+	public double getDouble(int column, int row) {
+		return ((double[])columns[column])[row];
+	}
+	
+	/**
+	 * Sets the value of a DOUBLE cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @param value	the value
+	 */
+	public void setDouble(int column, int row, double value) {
+		((double[])columns[column])[row] = value;
+	}
+	
+	/**
+	 * Gets the value of a STRING cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @return the value, or null if the cell is empty
+	 */
+	public String getString(int column, int row) {
+		return ((String[])columns[column])[row];
+	}
+	
+	/**
+	 * Sets the value of a STRING cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @param value	the value, or null
+	 */
+	public void setString(int column, int row, String value) {
+		((String[])columns[column])[row] = value;
+	}
+	
+	/**
+	 * Checks a flag of a FLAGS cell.
+	 *
+	 * @param column	the index of the column
+	 * @param row	the index of the row
+	 * @param flag	the index of the flag (0-based)
+	 * @return true if the flag is set
+	 */
+	public boolean isSet(int column, int row, int flag) {
+		return (getLong(column, row) & (1L << flag)) != 0;
+	}
+}
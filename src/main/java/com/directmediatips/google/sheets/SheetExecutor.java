@@ -0,0 +1,211 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs blocking Google Sheets calls asynchronously and returns their result
+ * as a {@link CompletableFuture}. By default the calls run on virtual threads
+ * (when the JVM supports them), so hundreds of calls can be in flight without
+ * a large thread pool. The number of calls running at the same time for the
+ * same spreadsheet is capped; calls over the cap are queued, not blocked.
+ */
+public class SheetExecutor {
+	
+	/** The default number of concurrent calls per spreadsheet. */
+	public static final int DEFAULT_MAX_CONCURRENCY = 4;
+	
+	/**
+	 * A call to Google Sheets that may throw an IOException.
+	 *
+	 * @param <T> the type of the result
+	 */
+	public interface IOCallable<T> {
+		
+		/**
+		 * Executes the call.
+		 *
+		 * @return the result
+		 * @throws IOException Signals that an I/O exception has occurred.
+		 */
+		T call() throws IOException;
+	}
+	
+	/**
+	 * Queue of calls for one spreadsheet.
+	 */
+	private class Lane {
+		
+		/** The calls waiting for a free slot. */
+		private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+		/** The number of calls that are running. */
+		private int running = 0;
+		
+		/**
+		 * Runs a call now if a slot is free, or queues it.
+		 *
+		 * @param task the call
+		 */
+		void submit(final Runnable task) {
+			synchronized (this) {
+				if (running >= maxConcurrency) {
+					waiting.add(task);
+					return;
+				}
+				running++;
+			}
+			start(task);
+		}
+		
+		/**
+		 * Starts a call, and the next queued call when it's done.
+		 *
+		 * @param task the call
+		 */
+		private void start(final Runnable task) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						Runnable next;
+						synchronized (Lane.this) {
+							next = waiting.poll();
+							if (next == null)
+								running--;
+						}
+						if (next != null)
+							start(next);
+					}
+				}
+			});
+		}
+	}
+	
+	/** The shared instance. */
+	private static volatile SheetExecutor instance;
+	
+	/** The executor running the calls. */
+	protected final Executor executor;
+	/** The number of concurrent calls per spreadsheet. */
+	protected final int maxConcurrency;
+	/** The lanes, per spreadsheet ID. */
+	private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+	
+	/**
+	 * Creates a SheetExecutor instance.
+	 *
+	 * @param executor	the executor running the calls
+	 * @param maxConcurrency	the number of concurrent calls per spreadsheet
+	 */
+	public SheetExecutor(Executor executor, int maxConcurrency) {
+		this.executor = executor;
+		this.maxConcurrency = maxConcurrency;
+	}
+	
+	/**
+	 * Gets the shared instance. Unless another instance was set, it uses
+	 * {@link #newDefaultExecutor()} and {@link #DEFAULT_MAX_CONCURRENCY}.
+	 *
+	 * @return a SheetExecutor instance
+	 */
+	public static SheetExecutor getInstance() {
+		if (instance == null) {
+			synchronized (SheetExecutor.class) {
+				if (instance == null)
+					instance = new SheetExecutor(newDefaultExecutor(), DEFAULT_MAX_CONCURRENCY);
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Replaces the shared instance, e.g. to use another executor or cap.
+	 *
+	 * @param executor	the new shared instance
+	 */
+	public static void setInstance(SheetExecutor executor) {
+		instance = executor;
+	}
+	
+	/**
+	 * Creates an executor that starts a virtual thread per call if the JVM
+	 * supports virtual threads, or a pool of daemon threads otherwise.
+	 *
+	 * @return an ExecutorService
+	 */
+	public static ExecutorService newDefaultExecutor() {
+		try {
+			return (ExecutorService)Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor")
+					.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "sheet-executor");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Runs a call asynchronously.
+	 *
+	 * @param <T> the type of the result
+	 * @param spreadsheetId	the spreadsheet the call works on, or null if the
+	 * 	call isn't bound to a spreadsheet (no cap is applied in that case)
+	 * @param call	the call
+	 * @return a future that completes with the result of the call,
+	 * 	or exceptionally with the exception it threw
+	 */
+	public <T> CompletableFuture<T> submit(String spreadsheetId, final IOCallable<T> call) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		Runnable task = new Runnable() {
+			public void run() {
+				try {
+					future.complete(call.call());
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			}
+		};
+		if (spreadsheetId == null) {
+			executor.execute(task);
+		}
+		else {
+			Lane lane = lanes.get(spreadsheetId);
+			if (lane == null) {
+				Lane created = new Lane();
+				lane = lanes.putIfAbsent(spreadsheetId, created);
+				if (lane == null)
+					lane = created;
+			}
+			lane.submit(task);
+		}
+		return future;
+	}
+}
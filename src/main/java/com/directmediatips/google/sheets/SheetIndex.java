@@ -0,0 +1,200 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.Sheet;
+import com.google.api.services.sheets.v4.model.Spreadsheet;
+
+/**
+ * In-memory index mapping the titles of the sheets in a Google Sheets
+ * document to their sheet IDs. The index is built with a single request
+ * that only asks for the ID and the title of every sheet, and is shared
+ * by everyone who writes to the same spreadsheet.
+ * The index is guarded by a {@link ReentrantLock} rather than a monitor,
+ * so that a virtual thread waiting for the spreadsheet doesn't pin its
+ * carrier thread, see {@link SheetExecutor}.
+ */
+public class SheetIndex {
+	
+	/** The field mask used to build the index. */
+	public static final String FIELDS = "sheets.properties(sheetId,title)";
+	
+	/** The indexes that were created so far, one per spreadsheet. */
+	private static final Map<String, SheetIndex> INDEXES = new ConcurrentHashMap<String, SheetIndex>();
+	
+	/** The ID of the spreadsheet that is indexed. */
+	protected final String spreadsheetId;
+	/** The sheet IDs, with the lower case sheet title as key; null if not loaded. */
+	private Map<String, Integer> ids;
+	/** The period (e.g. a month) for which the index was loaded. */
+	private String period;
+	/** The lock guarding the index; it is held while the index is loaded. */
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	/**
+	 * Creates a SheetIndex instance.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 */
+	protected SheetIndex(String spreadsheetId) {
+		this.spreadsheetId = spreadsheetId;
+	}
+	
+	/**
+	 * Gets the shared index of a spreadsheet.
+	 *
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @return a SheetIndex instance
+	 */
+	public static SheetIndex getInstance(String spreadsheetId) {
+		SheetIndex index = INDEXES.get(spreadsheetId);
+		if (index == null) {
+			SheetIndex created = new SheetIndex(spreadsheetId);
+			index = INDEXES.putIfAbsent(spreadsheetId, created);
+			if (index == null)
+				index = created;
+		}
+		return index;
+	}
+	
+	/**
+	 * Looks up the ID of a sheet. The index is (re)loaded if it wasn't
+	 * loaded yet, if it was loaded for another period, or if the title
+	 * can't be found in the current index.
+	 *
+	 * @param service	the Sheets service
+	 * @param title	the title of a sheet (case insensitive)
+	 * @param period	the period the caller is working in, e.g. "2017-03"
+	 * @return the sheet ID, or null if there's no sheet with that title
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Integer lookup(Sheets service, String title, String period) throws IOException {
+		lock.lock();
+		try {
+			if (ids == null || !period.equals(this.period)) {
+				load(service);
+				this.period = period;
+				return ids.get(title.toLowerCase());
+			}
+			Integer id = ids.get(title.toLowerCase());
+			if (id == null) {
+				load(service);
+				id = ids.get(title.toLowerCase());
+			}
+			return id;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Finds the titles that don't have a sheet yet. The index is loaded
+	 * at most once, under the same conditions as {@link #lookup(Sheets, String, String)},
+	 * no matter how many titles are checked.
+	 *
+	 * @param service	the Sheets service
+	 * @param titles	titles of sheets (case insensitive)
+	 * @param period	the period the caller is working in, e.g. "2017-03"
+	 * @return the titles without a sheet, in the order they were passed, without duplicates
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public List<String> getMissing(Sheets service, Collection<String> titles, String period)
+			throws IOException {
+		lock.lock();
+		try {
+			if (ids == null || !period.equals(this.period)) {
+				load(service);
+				this.period = period;
+			}
+			else {
+				for (String title : titles) {
+					if (!ids.containsKey(title.toLowerCase())) {
+						load(service);
+						break;
+					}
+				}
+			}
+			Map<String, String> missing = new LinkedHashMap<String, String>();
+			for (String title : titles) {
+				if (!ids.containsKey(title.toLowerCase()) && !missing.containsKey(title.toLowerCase()))
+					missing.put(title.toLowerCase(), title);
+			}
+			return new ArrayList<String>(missing.values());
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Adds a sheet to the index, e.g. after it was created.
+	 *
+	 * @param title	the title of the sheet
+	 * @param sheetId	the ID of the sheet
+	 */
+	public void put(String title, int sheetId) {
+		lock.lock();
+		try {
+			if (ids != null)
+				ids.put(title.toLowerCase(), sheetId);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Drops the index so that it is reloaded on the next lookup.
+	 */
+	public void invalidate() {
+		lock.lock();
+		try {
+			ids = null;
+			period = null;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Loads the titles and IDs of all the sheets in the spreadsheet.
+	 * Called with the lock held.
+	 *
+	 * @param service	the Sheets service
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void load(Sheets service) throws IOException {
+		Spreadsheet spreadsheet = service.spreadsheets().get(spreadsheetId)
+				.setFields(FIELDS)
+				.execute();
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		List<Sheet> list = spreadsheet.getSheets();
+		if (list != null) {
+			for (Sheet s : list) {
+				map.put(s.getProperties().getTitle().toLowerCase(), s.getProperties().getSheetId());
+			}
+		}
+		ids = map;
+	}
+}
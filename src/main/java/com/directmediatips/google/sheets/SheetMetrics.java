@@ -0,0 +1,579 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.HttpContext;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpEncoding;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import com.google.api.client.util.StreamingContent;
+
+/**
+ * Collects latency, payload sizes, retries and error codes of the calls
+ * to Google Sheets, per operation. Callers tag their calls with
+ * {@link #setOperation(String)} (e.g. "getSheetId", "harvest read");
+ * {@link SheetRequestInitializer} measures every call and hands it to
+ * {@link #record(Call)}.
+ *
+ * The statistics of each operation are registered as an MXBean named
+ * <code>com.directmediatips.google:type=SheetMetrics,operation=...</code>;
+ * listeners get every completed call.
+ */
+public class SheetMetrics {
+	
+	/** The domain and type of the MXBeans. */
+	public static final String OBJECT_NAME = "com.directmediatips.google:type=SheetMetrics,operation=";
+	
+	/** The operation of calls that weren't tagged. */
+	public static final String UNTAGGED = "other";
+	/** Looking up the ID of a sheet by its title. */
+	public static final String GET_SHEET_ID = "getSheetId";
+	/** Creating a sheet with its header. */
+	public static final String CREATE_SHEET = "createSheet";
+	/** Writing Twitter or Klout metrics. */
+	public static final String METRICS_WRITE = "metrics write";
+	/** Reading harvest data. */
+	public static final String HARVEST_READ = "harvest read";
+	/** Writing harvest data. */
+	public static final String HARVEST_WRITE = "harvest write";
+	/** Reading the configuration and the follower tables of the rich data. */
+	public static final String RICH_DATA_READ = "rich-data read";
+	/** Writing the results of the rich data. */
+	public static final String RICH_DATA_WRITE = "rich-data write";
+	
+	/** The operation of the calls made by the current thread. */
+	private static final ThreadLocal<String> OPERATION = new ThreadLocal<String>();
+	
+	/** The call of the current thread that waits for its response. */
+	private static final ThreadLocal<Call> CURRENT = new ThreadLocal<Call>();
+	
+	/** The shared instance. */
+	private static SheetMetrics instance = new SheetMetrics(true);
+	
+	/**
+	 * Receives every call once it is complete.
+	 * Listeners are called on the thread that made the call,
+	 * so they should return quickly.
+	 */
+	public interface Listener {
+		
+		/**
+		 * Called when a call is complete.
+		 *
+		 * @param call	the call
+		 */
+		void callCompleted(Call call);
+	}
+	
+	/**
+	 * One call to Google Sheets, retries included.
+	 * The fields are filled in by the library; don't change them.
+	 */
+	public static class Call {
+		
+		/** The operation, e.g. "getSheetId". */
+		public final String operation;
+		/** The HTTP method. */
+		public String method;
+		/** The final HTTP status code, 0 if there was no response. */
+		public int statusCode;
+		/** The number of attempts (1 if the call wasn't retried). */
+		public int attempts;
+		/** The latency in nanoseconds, from the first attempt to the final response. */
+		public long latency;
+		/** The size of the request payload (before compression), or 0. */
+		public long requestBytes;
+		/** The size of the request as sent (after compression), -1 if it wasn't compressed. */
+		public long requestWireBytes = -1;
+		/** The size of the responses as received, -1 if unknown. */
+		public long responseBytes = -1;
+		
+		/** The metrics that will record the call. */
+		private final SheetMetrics metrics;
+		/** The time of the first attempt. */
+		private long start;
+		/** True once the final response or error is known. */
+		private volatile boolean finished;
+		/** The stream of the final response, if its bytes are being counted. */
+		private volatile CountingInputStream stream;
+		/** Makes sure the call is recorded once. */
+		private final AtomicBoolean recorded = new AtomicBoolean();
+		
+		/**
+		 * Creates a Call instance.
+		 *
+		 * @param metrics	the metrics that will record the call
+		 * @param operation	the operation
+		 */
+		protected Call(SheetMetrics metrics, String operation) {
+			this.metrics = metrics;
+			this.operation = operation;
+		}
+		
+		/**
+		 * Checks if the call failed.
+		 *
+		 * @return true for an error status or an I/O error
+		 */
+		public boolean isError() {
+			return statusCode == 0 || statusCode >= 400;
+		}
+		
+		/**
+		 * Signals the start of an attempt, before waiting for the quota.
+		 *
+		 * @param method	the HTTP method
+		 */
+		void begin(String method) {
+			this.method = method;
+			if (attempts++ == 0)
+				start = System.nanoTime();
+		}
+		
+		/**
+		 * Signals that the attempt is about to be sent, so that
+		 * the transport can count the bytes of its response.
+		 */
+		void send() {
+			CURRENT.set(this);
+		}
+		
+		/**
+		 * Signals the final response. If the transport counts the bytes of the
+		 * response, the call is recorded when its content is closed (which the
+		 * Sheets client does when it parses the response); otherwise it is
+		 * recorded right away, with the Content-Length header as its size.
+		 *
+		 * @param statusCode	the HTTP status code
+		 * @param contentLength	the Content-Length header, or null
+		 */
+		void received(int statusCode, Long contentLength) {
+			CURRENT.remove();
+			this.statusCode = statusCode;
+			latency = System.nanoTime() - start;
+			finished = true;
+			CountingInputStream counting = stream;
+			if (counting == null || counting.closed) {
+				if (counting == null && contentLength != null)
+					responseBytes = contentLength;
+				complete();
+			}
+		}
+		
+		/**
+		 * Signals that the call failed without a response.
+		 */
+		void failed() {
+			CURRENT.remove();
+			statusCode = 0;
+			latency = System.nanoTime() - start;
+			finished = true;
+			complete();
+		}
+		
+		/**
+		 * Records the call if it's finished.
+		 */
+		void complete() {
+			if (finished && recorded.compareAndSet(false, true))
+				metrics.record(this);
+		}
+	}
+	
+	/**
+	 * Wraps request content to count its bytes while it is written.
+	 */
+	static class CountingContent implements HttpContent {
+		
+		/** The wrapped content. */
+		private final HttpContent content;
+		/** The call. */
+		private final Call call;
+		
+		/**
+		 * Creates a CountingContent instance.
+		 *
+		 * @param content	the content to wrap
+		 * @param call	the call that sends the content
+		 */
+		CountingContent(HttpContent content, Call call) {
+			this.content = content;
+			this.call = call;
+		}
+		
+		@Override
+		public long getLength() throws IOException {
+			return content.getLength();
+		}
+		
+		@Override
+		public String getType() {
+			return content.getType();
+		}
+		
+		@Override
+		public boolean retrySupported() {
+			return content.retrySupported();
+		}
+		
+		@Override
+		public void writeTo(OutputStream out) throws IOException {
+			CountingOutputStream counting = new CountingOutputStream(out);
+			content.writeTo(counting);
+			// the content may be written more than once, e.g. to compute its length
+			call.requestBytes = counting.count;
+		}
+	}
+	
+	/**
+	 * Wraps the encoding of a request to count the compressed bytes.
+	 */
+	static class CountingEncoding implements HttpEncoding {
+		
+		/** The wrapped encoding. */
+		private final HttpEncoding encoding;
+		/** The call. */
+		private final Call call;
+		
+		/**
+		 * Creates a CountingEncoding instance.
+		 *
+		 * @param encoding	the encoding to wrap
+		 * @param call	the call that sends the content
+		 */
+		CountingEncoding(HttpEncoding encoding, Call call) {
+			this.encoding = encoding;
+			this.call = call;
+		}
+		
+		@Override
+		public String getName() {
+			return encoding.getName();
+		}
+		
+		@Override
+		public void encode(StreamingContent content, OutputStream out) throws IOException {
+			CountingOutputStream counting = new CountingOutputStream(out);
+			encoding.encode(content, counting);
+			call.requestWireBytes = counting.count;
+		}
+	}
+	
+	/**
+	 * Counts the bytes written to a stream.
+	 */
+	static class CountingOutputStream extends FilterOutputStream {
+		
+		/** The number of bytes written so far. */
+		long count;
+		
+		/**
+		 * Creates a CountingOutputStream instance.
+		 *
+		 * @param out	the stream to write to
+		 */
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+	
+	/**
+	 * Counts the bytes of a response as they are read.
+	 */
+	static class CountingInputStream extends FilterInputStream {
+		
+		/** The call. */
+		private final Call call;
+		/** True once the stream is closed. */
+		volatile boolean closed;
+		
+		/**
+		 * Creates a CountingInputStream instance.
+		 *
+		 * @param in	the stream of the response
+		 * @param call	the call that received the response
+		 */
+		CountingInputStream(InputStream in, Call call) {
+			super(in);
+			this.call = call;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				call.responseBytes++;
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				call.responseBytes += n;
+			return n;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				closed = true;
+				call.complete();
+			}
+		}
+	}
+	
+	/** True if the statistics are registered as MXBeans. */
+	protected final boolean jmx;
+	/** The statistics per operation. */
+	private final Map<String, OperationStats> operations = new ConcurrentHashMap<String, OperationStats>();
+	/** The listeners. */
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	
+	/**
+	 * Creates a SheetMetrics instance.
+	 *
+	 * @param jmx	true to register the statistics of each operation as an MXBean
+	 */
+	public SheetMetrics(boolean jmx) {
+		this.jmx = jmx;
+	}
+	
+	/**
+	 * Gets the metrics shared by all the services.
+	 *
+	 * @return a SheetMetrics instance
+	 */
+	public static SheetMetrics getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Replaces the shared metrics.
+	 * Services that already created their client keep using the old instance.
+	 *
+	 * @param metrics	the new shared instance
+	 */
+	public static void setInstance(SheetMetrics metrics) {
+		instance = metrics;
+	}
+	
+	/**
+	 * Sets the operation of the calls made by the current thread.
+	 *
+	 * @param operation	the operation, e.g. "harvest read"; null for untagged calls
+	 * @return the previous operation, so that it can be restored
+	 */
+	public static String setOperation(String operation) {
+		String previous = OPERATION.get();
+		OPERATION.set(operation);
+		return previous;
+	}
+	
+	/**
+	 * Gets the operation of the calls made by the current thread.
+	 *
+	 * @return the operation, or {@link #UNTAGGED}
+	 */
+	public static String getOperation() {
+		String operation = OPERATION.get();
+		return operation == null ? UNTAGGED : operation;
+	}
+	
+	/**
+	 * Lets the transport of a service count the bytes of every response.
+	 * Must be called before the transport is used.
+	 *
+	 * @param transport	a transport created by {@link SheetService}
+	 */
+	public static void instrument(ApacheHttpTransport transport) {
+		if (!(transport.getHttpClient() instanceof AbstractHttpClient))
+			return;
+		((AbstractHttpClient)transport.getHttpClient()).addResponseInterceptor(new HttpResponseInterceptor() {
+			public void process(HttpResponse response, HttpContext context) {
+				final Call call = CURRENT.get();
+				HttpEntity entity = response.getEntity();
+				if (call == null || entity == null)
+					return;
+				CURRENT.remove();
+				final CountingInputStream stream;
+				try {
+					stream = new CountingInputStream(entity.getContent(), call);
+				} catch (IOException e) {
+					return;
+				}
+				if (call.responseBytes < 0)
+					call.responseBytes = 0;
+				call.stream = stream;
+				response.setEntity(new HttpEntityWrapper(entity) {
+					@Override
+					public InputStream getContent() {
+						return stream;
+					}
+				});
+			}
+		});
+	}
+	
+	/**
+	 * Starts measuring a call for the operation of the current thread.
+	 *
+	 * @return a Call instance
+	 */
+	public Call newCall() {
+		return new Call(this, getOperation());
+	}
+	
+	/**
+	 * Wraps the content of a request to count its bytes.
+	 *
+	 * @param content	the content of a request, may be null
+	 * @param call	the call that sends the content
+	 * @return the wrapped content, or null
+	 */
+	HttpContent count(HttpContent content, Call call) {
+		if (content == null || content instanceof CountingContent)
+			return content;
+		return new CountingContent(content, call);
+	}
+	
+	/**
+	 * Wraps the encoding of a request to count its compressed bytes.
+	 *
+	 * @param encoding	the encoding of a request, may be null
+	 * @param call	the call that sends the content
+	 * @return the wrapped encoding, or null
+	 */
+	HttpEncoding count(HttpEncoding encoding, Call call) {
+		if (encoding == null || encoding instanceof CountingEncoding)
+			return encoding;
+		return new CountingEncoding(encoding, call);
+	}
+	
+	/**
+	 * Adds a completed call to the statistics of its operation
+	 * and passes it to the listeners.
+	 *
+	 * @param call	a completed call
+	 */
+	public void record(Call call) {
+		getStats(call.operation).record(call);
+		for (Listener listener : listeners) {
+			try {
+				listener.callCompleted(call);
+			} catch (RuntimeException e) {
+				// a broken listener must not break the call
+			}
+		}
+	}
+	
+	/**
+	 * Gets the statistics of an operation, creating them if necessary.
+	 *
+	 * @param operation	the operation
+	 * @return an OperationStats instance
+	 */
+	public OperationStats getStats(String operation) {
+		OperationStats stats = operations.get(operation);
+		if (stats == null) {
+			OperationStats created = new OperationStats(operation);
+			stats = operations.putIfAbsent(operation, created);
+			if (stats == null) {
+				stats = created;
+				if (jmx)
+					register(created);
+			}
+		}
+		return stats;
+	}
+	
+	/**
+	 * Gets the statistics of all the operations so far.
+	 *
+	 * @return a map sorted by operation
+	 */
+	public Map<String, OperationStats> getStats() {
+		return new TreeMap<String, OperationStats>(operations);
+	}
+	
+	/**
+	 * Adds a listener.
+	 *
+	 * @param listener	the listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Removes a listener.
+	 *
+	 * @param listener	the listener
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+	
+	/**
+	 * Registers the statistics of an operation with the platform MBean server.
+	 *
+	 * @param stats	the statistics
+	 */
+	protected void register(OperationStats stats) {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME + ObjectName.quote(stats.getOperation()));
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(stats, name);
+		} catch (JMException e) {
+			// monitoring is optional
+		}
+	}
+}
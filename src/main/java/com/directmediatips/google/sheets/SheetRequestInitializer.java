@@ -0,0 +1,188 @@
+package com.directmediatips.google.sheets;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.ExponentialBackOff;
+
+/**
+ * Initializes every request made by the Sheets client of a {@link SheetService}:
+ * the request is authorized, it waits for a token of the {@link QuotaLimiter},
+ * and it is retried with jittered exponential backoff when the API answers
+ * with 429 (quota exceeded) or 503 (unavailable). Every call is measured
+ * and recorded by {@link SheetMetrics}, under the operation that was set
+ * on the calling thread when the request was built. In compact mode
+ * (see {@link SheetService#setCompact(boolean)}), request and response
+ * bodies are gzipped. Field masks are never added here: the library sets
+ * them on the requests it builds itself, see {@link SheetService#getResponseFields(String)}.
+ */
+public class SheetRequestInitializer implements HttpRequestInitializer {
+	
+	/** The first backoff interval in milliseconds. */
+	public static final int INITIAL_BACKOFF = 1000;
+	/** The longest backoff interval in milliseconds. */
+	public static final int MAX_BACKOFF = 64000;
+	/** The time after which we stop retrying, in milliseconds. */
+	public static final int MAX_ELAPSED = 300000;
+	
+	/** The name of the query parameter with the field mask. */
+	public static final String FIELDS = "fields";
+	/** The name of the gzip encoding. */
+	public static final String GZIP = "gzip";
+	
+	/** The initializer that authorizes requests (e.g. a Credential); may be null. */
+	protected final HttpRequestInitializer delegate;
+	/** The rate limiter. */
+	protected final QuotaLimiter limiter;
+	/** The metrics that record every call. */
+	protected final SheetMetrics metrics;
+	
+	/**
+	 * Creates a SheetRequestInitializer instance that records its calls
+	 * in the shared {@link SheetMetrics}.
+	 *
+	 * @param delegate	the initializer that authorizes requests, e.g. a Credential; may be null
+	 * @param limiter	the rate limiter
+	 */
+	public SheetRequestInitializer(HttpRequestInitializer delegate, QuotaLimiter limiter) {
+		this(delegate, limiter, SheetMetrics.getInstance());
+	}
+	
+	/**
+	 * Creates a SheetRequestInitializer instance.
+	 *
+	 * @param delegate	the initializer that authorizes requests, e.g. a Credential; may be null
+	 * @param limiter	the rate limiter
+	 * @param metrics	the metrics that record every call
+	 */
+	public SheetRequestInitializer(HttpRequestInitializer delegate, QuotaLimiter limiter, SheetMetrics metrics) {
+		this.delegate = delegate;
+		this.limiter = limiter;
+		this.metrics = metrics;
+	}
+	
+	@Override
+	public void initialize(HttpRequest request) throws IOException {
+		if (delegate != null)
+			delegate.initialize(request);
+		final HttpExecuteInterceptor interceptor = request.getInterceptor();
+		final HttpUnsuccessfulResponseHandler handler = request.getUnsuccessfulResponseHandler();
+		final HttpResponseInterceptor responseInterceptor = request.getResponseInterceptor();
+		final HttpIOExceptionHandler ioExceptionHandler = request.getIOExceptionHandler();
+		final SheetMetrics.Call call = metrics.newCall();
+		final HttpBackOffUnsuccessfulResponseHandler backOff = new HttpBackOffUnsuccessfulResponseHandler(
+				new ExponentialBackOff.Builder()
+					.setInitialIntervalMillis(INITIAL_BACKOFF)
+					.setMaxIntervalMillis(MAX_BACKOFF)
+					.setMaxElapsedTimeMillis(MAX_ELAPSED)
+					.setRandomizationFactor(0.5)
+					.build())
+			.setBackOffRequired(new HttpBackOffUnsuccessfulResponseHandler.BackOffRequired() {
+				public boolean isRequired(HttpResponse response) {
+					return isThrottled(response.getStatusCode());
+				}
+			});
+		request.setInterceptor(new HttpExecuteInterceptor() {
+			public void intercept(HttpRequest request) throws IOException {
+				call.begin(request.getRequestMethod());
+				limiter.acquire(isWrite(request));
+				if (interceptor != null)
+					interceptor.intercept(request);
+				if (SheetService.isCompact())
+					compact(request);
+				request.setContent(metrics.count(request.getContent(), call));
+				request.setEncoding(metrics.count(request.getEncoding(), call));
+				call.send();
+			}
+		});
+		request.setUnsuccessfulResponseHandler(new HttpUnsuccessfulResponseHandler() {
+			public boolean handleResponse(HttpRequest request, HttpResponse response,
+					boolean supportsRetry) throws IOException {
+				if (handler != null && handler.handleResponse(request, response, supportsRetry))
+					return true;
+				if (isThrottled(response.getStatusCode()))
+					limiter.onThrottled(isWrite(request));
+				return backOff.handleResponse(request, response, supportsRetry);
+			}
+		});
+		request.setResponseInterceptor(new HttpResponseInterceptor() {
+			public void interceptResponse(HttpResponse response) throws IOException {
+				call.received(response.getStatusCode(), response.getHeaders().getContentLength());
+				if (response.isSuccessStatusCode())
+					limiter.onSuccess(isWrite(response.getRequest()));
+				if (responseInterceptor != null)
+					responseInterceptor.interceptResponse(response);
+			}
+		});
+		request.setIOExceptionHandler(new HttpIOExceptionHandler() {
+			public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+					throws IOException {
+				if (ioExceptionHandler != null && ioExceptionHandler.handleIOException(request, supportsRetry))
+					return true;
+				call.failed();
+				return false;
+			}
+		});
+	}
+	
+	/**
+	 * Keeps a request and its response small: gzips the body and asks
+	 * for a gzipped response. Requests built by the Sheets client already
+	 * compress their body, unless that was disabled; raw requests don't.
+	 *
+	 * @param request	the request
+	 */
+	protected static void compact(HttpRequest request) {
+		if (request.getContent() != null && !(request.getContent() instanceof EmptyContent)
+				&& request.getEncoding() == null)
+			request.setEncoding(new GZipEncoding());
+		if (request.getHeaders().getAcceptEncoding() == null)
+			request.getHeaders().setAcceptEncoding(GZIP);
+	}
+	
+	/**
+	 * Checks if a request counts against the write quota. The method is only
+	 * known when the request is executed: the factory sets it after
+	 * the request was initialized.
+	 *
+	 * @param request	the request
+	 * @return true for anything but GET
+	 */
+	protected static boolean isWrite(HttpRequest request) {
+		return !HttpMethods.GET.equals(request.getRequestMethod());
+	}
+	
+	/**
+	 * Checks if a status code means that we should slow down and retry.
+	 *
+	 * @param statusCode	an HTTP status code
+	 * @return true for 429 and 503
+	 */
+	protected static boolean isThrottled(int statusCode) {
+		return statusCode == 429 || statusCode == 503;
+	}
+}
@@ -14,20 +14,33 @@ package com.directmediatips.google.sheets;
  * limitations under the License.
  */
 
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.params.HttpParams;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.store.FileDataStoreFactory;
@@ -36,8 +49,26 @@ import com.google.api.services.sheets.v4.SheetsScopes;
 
 /**
  * Service that will allow us to read from and write to a Google Sheets document.
+ * 
+ * An instance is a long-lived client: the transport, the credential and the
+ * {@link Sheets} object are created lazily on first use and shared by every
+ * caller using the same configuration. The transport keeps a pool of
+ * keep-alive connections, so TLS handshakes and OAuth round trips are paid
+ * once per configuration instead of once per update. Call {@link #close()}
+ * (or {@link #closeAll()}) when the process is done with Google Sheets.
+ * All requests of the client go through the shared {@link QuotaLimiter}
+ * and are retried when the quota is exceeded, see {@link SheetRequestInitializer}.
+ * 
+ * Compact mode is off by default. When it is switched on (see {@link #setCompact(boolean)}),
+ * the requests the library builds itself ask for the fields it consumes only,
+ * cell updates only send the user-entered value, and request and response
+ * bodies are compressed. Requests built by other callers of {@link #getSheets()}
+ * are never masked.
+ * 
+ * A service can also be created with a transport and an authorizer of your own,
+ * for instance an in-process stand-in of the Sheets API for load testing.
  */
-public class SheetService {
+public class SheetService implements Closeable {
 	
 	/** The application name ("dmt-google"). */
 	private static final String APPLICATION_NAME = "dmt-google";
@@ -45,62 +76,344 @@ public class SheetService {
 	/** The path to the file "client_secret.json". */
 	private static final String SECRET = "google/client_secret.json";
 	
+	/** The path to the file "sheet.properties" with the IDs of our spreadsheets. */
+	private static final String PROPERTIES = "google/sheet.properties";
+	
+	/** The directory where the file <code>StoredCredential</code> is stored. */
+	private static final String DATA_STORE = "google";
+	
+	/** The default number of pooled connections to the Google API. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 20;
+	
 	/** The {@link JsonFactory} instance. */
 	private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 	
 	/** The scope is limited to Google sheets. */
 	private static final List<String> SCOPES = Arrays.asList(SheetsScopes.SPREADSHEETS);
 	
-	/** The {@link HttpTransport} instance. */
-	private static HttpTransport HTTP_TRANSPORT;
-	
-	/** The data store factory that will create a file named <code>StoredCredential</code> in a directory named "google". */
-	private static FileDataStoreFactory DATA_STORE_FACTORY;
-    static {
-        try {
-            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
-            DATA_STORE_FACTORY = new FileDataStoreFactory(new java.io.File("google"));
-        } catch (Throwable t) {
-            t.printStackTrace();
-            System.exit(1);
-        }
-    }
+	/** The mask of the cell fields written by update requests in compact mode. */
+	public static final String COMPACT_CELL_FIELDS = "userEnteredValue";
+	
+	/** The response mask of value reads in compact mode. */
+	public static final String VALUES_FIELDS = "values";
+	
+	/** The response mask of batched value reads in compact mode. */
+	public static final String BATCH_GET_FIELDS = "valueRanges(range,values)";
+	
+	/** The response mask of updates in compact mode; the library doesn't read their replies. */
+	public static final String UPDATE_FIELDS = "spreadsheetId";
+	
+	/** True if requests and responses are kept as small as possible. */
+	private static volatile boolean compact = false;
+	
+	/** The contents of "google/sheet.properties", read the first time a property is needed. */
+	private static volatile Properties sheetProperties;
+	
+	/** The services that were created so far, one per configuration. */
+	private static final Map<String, SheetService> SERVICES = new ConcurrentHashMap<String, SheetService>();
+	
+	/** The path to the client secret of this service. */
+	protected final String secret;
+	/** The directory of the data store of this service. */
+	protected final String dataStore;
+	/** The maximum number of concurrent connections. */
+	protected final int maxConnections;
+	/** The transport passed by the caller, or null to create a pooled transport. */
+	protected final HttpTransport customTransport;
+	/** The initializer that authorizes requests if there's a custom transport; may be null. */
+	protected final HttpRequestInitializer authorizer;
+	
+	/** The pooled {@link HttpTransport} instance, created lazily. */
+	private HttpTransport transport;
+	/** The shared credential, created lazily. */
+	private Credential credential;
+	/** The shared Sheets client, created lazily. */
+	private Sheets sheets;
+	/**
+	 * The lock guarding the lazily created objects. Unlike a monitor, it doesn't
+	 * pin the carrier of a virtual thread during the authorization flow.
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	/**
+	 * Creates a SheetService instance.
+	 *
+	 * @param secret	the path to the file "client_secret.json"
+	 * @param dataStore	the directory where the credential is stored
+	 * @param maxConnections	the number of connections that can be used concurrently
+	 */
+	protected SheetService(String secret, String dataStore, int maxConnections) {
+		this.secret = secret;
+		this.dataStore = dataStore;
+		this.maxConnections = maxConnections;
+		this.customTransport = null;
+		this.authorizer = null;
+	}
+	
+	/**
+	 * Creates a SheetService instance that sends its requests through
+	 * a specific transport instead of a pooled connection to Google.
+	 * No client secret is read and no authorization flow is started.
+	 *
+	 * @param transport	the transport used for every request
+	 * @param authorizer	the initializer that authorizes requests; may be null
+	 */
+	public SheetService(HttpTransport transport, HttpRequestInitializer authorizer) {
+		this.secret = null;
+		this.dataStore = null;
+		this.maxConnections = 0;
+		this.customTransport = transport;
+		this.authorizer = authorizer;
+	}
+	
+	/**
+	 * Gets the shared service that uses the default configuration.
+	 *
+	 * @return a SheetService instance
+	 */
+	public static SheetService getInstance() {
+		return getInstance(SECRET, DATA_STORE, DEFAULT_MAX_CONNECTIONS);
+	}
+	
+	/**
+	 * Gets the shared service for a specific configuration.
+	 * The same instance is returned for the same configuration.
+	 *
+	 * @param secret	the path to the file "client_secret.json"
+	 * @param dataStore	the directory where the credential is stored
+	 * @param maxConnections	the number of connections that can be used concurrently
+	 * @return a SheetService instance
+	 */
+	public static SheetService getInstance(String secret, String dataStore, int maxConnections) {
+		String key = secret + '|' + dataStore + '|' + maxConnections;
+		SheetService service = SERVICES.get(key);
+		if (service == null) {
+			SheetService created = new SheetService(secret, dataStore, maxConnections);
+			service = SERVICES.putIfAbsent(key, created);
+			if (service == null)
+				service = created;
+		}
+		return service;
+	}
+	
+	/**
+	 * Switches compact mode on or off for every service. In compact mode,
+	 * the responses to requests built by the library only contain what
+	 * the library reads, cells are updated with their user-entered value only,
+	 * and request and response bodies are gzipped.
+	 *
+	 * @param on	true to keep requests and responses small (off by default)
+	 */
+	public static void setCompact(boolean on) {
+		compact = on;
+	}
+	
+	/**
+	 * Checks if compact mode is on.
+	 *
+	 * @return true if requests and responses are kept small
+	 */
+	public static boolean isCompact() {
+		return compact;
+	}
+	
+	/**
+	 * Gets the response mask for a request built by the library.
+	 *
+	 * @param mask	the fields the library reads, e.g. {@link #VALUES_FIELDS}
+	 * @return the mask in compact mode, null (the full response) otherwise
+	 */
+	public static String getResponseFields(String mask) {
+		return compact ? mask : null;
+	}
+	
+	/**
+	 * Gets the field mask for requests that update cells.
+	 *
+	 * @return "userEnteredValue" in compact mode, "*" otherwise
+	 */
+	public static String getCellFields() {
+		return compact ? COMPACT_CELL_FIELDS : "*";
+	}
+	
+	/**
+	 * Gets the pooled transport, creating it if necessary.
+	 *
+	 * @return an HttpTransport instance
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public HttpTransport getTransport() throws IOException {
+		lock.lock();
+		try {
+			if (transport == null && customTransport != null) {
+				transport = customTransport;
+			}
+			else if (transport == null) {
+				try {
+					ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+							.trustCertificates(GoogleUtils.getCertificateTrustStore());
+					HttpParams params = builder.getHttpParams();
+					ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+					ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+					ApacheHttpTransport pooled = builder.build();
+					SheetMetrics.instrument(pooled);
+					transport = pooled;
+				} catch (GeneralSecurityException e) {
+					throw new IOException("Can't create a trusted transport", e);
+				}
+			}
+			return transport;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets the credential to access Google sheets, creating it if necessary.
+	 *
+	 * @return a Credential instance
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Credential getCredential() throws IOException {
+		lock.lock();
+		try {
+			if (credential == null) {
+				// Load client secrets.
+				GoogleClientSecrets clientSecrets;
+				InputStream in = new FileInputStream(secret);
+				try {
+					clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
+				} finally {
+					in.close();
+				}
+				// Build flow and trigger user authorization request.
+				GoogleAuthorizationCodeFlow flow =
+						new GoogleAuthorizationCodeFlow.Builder(
+								getTransport(), JSON_FACTORY, clientSecrets, SCOPES)
+						.setDataStoreFactory(new FileDataStoreFactory(new java.io.File(dataStore)))
+						.setAccessType("offline")
+						.build();
+				credential = new AuthorizationCodeInstalledApp(
+						flow, new LocalServerReceiver()).authorize("twitter_app");
+			}
+			return credential;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets the Sheets client of this service, creating it if necessary.
+	 *
+	 * @return a Sheets instance
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Sheets getClient() throws IOException {
+		lock.lock();
+		try {
+			if (sheets == null) {
+				HttpRequestInitializer delegate = customTransport == null ? getCredential() : authorizer;
+				sheets = new Sheets.Builder(getTransport(), JSON_FACTORY,
+						new SheetRequestInitializer(delegate, QuotaLimiter.getInstance()))
+						.setApplicationName(APPLICATION_NAME)
+						.build();
+			}
+			return sheets;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Releases the pooled connections. The service can be used again
+	 * afterwards, in which case a new transport and client are created.
+	 * A custom transport is left open: it belongs to the caller.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			sheets = null;
+			credential = null;
+			HttpTransport pooled = transport == customTransport ? null : transport;
+			transport = null;
+			if (pooled != null)
+				pooled.shutdown();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Closes every service that was created with {@link #getInstance()}.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void closeAll() throws IOException {
+		for (SheetService service : SERVICES.values()) {
+			service.close();
+		}
+	}
     
     /**
      * Creates a Credential object to get access to Google sheets.
+     * The credential is shared by all callers using the default configuration.
      *
      * @return a Credential instance
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public static Credential authorize() throws IOException {
-        // Load client secrets.
-        InputStream in =
-            new FileInputStream(SECRET);
-        GoogleClientSecrets clientSecrets =
-            GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(in));
-
-        // Build flow and trigger user authorization request.
-        GoogleAuthorizationCodeFlow flow =
-                new GoogleAuthorizationCodeFlow.Builder(
-                        HTTP_TRANSPORT, JSON_FACTORY, clientSecrets, SCOPES)
-                .setDataStoreFactory(DATA_STORE_FACTORY)
-                .setAccessType("offline")
-                .build();
-        Credential credential = new AuthorizationCodeInstalledApp(
-                flow, new LocalServerReceiver()).authorize("twitter_app");
-        return credential;
+        return getInstance().getCredential();
     }
     
     /**
-     * Creates a Sheets service that will allow us to read and write from a Google Sheets document.
+     * Gets the Sheets service that will allow us to read and write from a Google Sheets document.
+     * The Sheets instance is shared by all callers using the default configuration.
      *
      * @return a Sheets instance
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public static Sheets getSheets() throws IOException {
-        Credential credential = authorize();
-        return new Sheets.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
-                .setApplicationName(APPLICATION_NAME)
-                .build();
+        return getInstance().getClient();
+    }
+    
+    /**
+     * Gets the Sheets service asynchronously, see {@link SheetExecutor}.
+     * Useful when the first call may trigger the authorization flow.
+     *
+     * @return a future Sheets instance
+     */
+    public static CompletableFuture<Sheets> getSheetsAsync() {
+        return SheetExecutor.getInstance().submit(null, new SheetExecutor.IOCallable<Sheets>() {
+            public Sheets call() throws IOException {
+                return getSheets();
+            }
+        });
+    }
+    
+    /**
+     * Gets a property from the file "google/sheet.properties",
+     * e.g. the ID of the spreadsheet with the Twitter metrics.
+     * The file is read once, the first time a property is needed.
+     *
+     * @param key	the key of the property, e.g. "twitterMetrics"
+     * @return the value of the property
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public static String getSheetProperty(String key) throws IOException {
+        Properties props = sheetProperties;
+        if (props == null) {
+            props = new Properties();
+            InputStream in = new FileInputStream(PROPERTIES);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+            sheetProperties = props;
+        }
+        return props.getProperty(key);
     }
 }
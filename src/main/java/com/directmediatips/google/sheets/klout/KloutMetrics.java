@@ -8,9 +8,13 @@ import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
+import com.directmediatips.google.sheets.SheetExecutor;
+import com.directmediatips.google.sheets.SheetMetrics;
 import com.directmediatips.google.sheets.SheetService;
 import com.directmediatips.google.sheets.twitter.AbstractTwitterSheet;
+import com.directmediatips.google.sheets.twitter.MetricsBatchWriter;
 import com.directmediatips.google.sheets.twitter.TwitterMetrics;
 import com.google.api.services.sheets.v4.Sheets;
 import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
@@ -68,11 +72,55 @@ public class KloutMetrics extends AbstractTwitterSheet {
   	  					.setRowIndex(cal.get(Calendar.DAY_OF_MONTH))
   	  					.setColumnIndex(6))
   	  			.setRows(Arrays.asList(new RowData().setValues(values)))
-  	  			.setFields("*");
+  	  			.setFields(SheetService.getCellFields());
   	  	requests.add(new Request().setUpdateCells(updateCellRequest));
   	  	// Execute the request
   	  	BatchUpdateSpreadsheetRequest batchUpdateRequest =
   	  			new BatchUpdateSpreadsheetRequest().setRequests(requests);
-  	  	service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest).execute();
+  	  	String operation = SheetMetrics.setOperation(SheetMetrics.METRICS_WRITE);
+  	  	try {
+  	  		service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest)
+  	  				.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+  	  	} finally {
+  	  		SheetMetrics.setOperation(operation);
+  	  	}
+	}
+	
+	/**
+	 * Adds the Klout score of a Twitter account to a batch writer, so that it
+	 * is sent to the Google spreadsheet together with other metrics.
+	 *
+	 * @param writer the batch writer
+	 * @param account the screenname of a Twitter account
+	 * @param score	the current Klout score
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void UpdateMetrics(MetricsBatchWriter writer, String account, double score) throws IOException {
+		writer.updateKloutScore(SheetService.getSheetProperty("twitterMetrics"), account, new Date(), score);
+	}
+	
+	/**
+	 * Updates the Klout score of a Twitter account in a Google spreadsheet
+	 * asynchronously, see {@link SheetExecutor}.
+	 *
+	 * @param account the screenname of a Twitter account
+	 * @param score	the current Klout score
+	 * @return a future that completes when the score is written
+	 */
+	public static CompletableFuture<Void> UpdateMetricsAsync(final String account, final double score) {
+		String spreadsheetId;
+		try {
+			spreadsheetId = SheetService.getSheetProperty("twitterMetrics");
+		} catch (IOException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Void>() {
+			public Void call() throws IOException {
+				UpdateMetrics(account, score);
+				return null;
+			}
+		});
 	}
 }
@@ -1,30 +1,53 @@
 package com.directmediatips.google.sheets.twitter;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
 
+import com.directmediatips.google.sheets.QuotaLimiter;
+import com.directmediatips.google.sheets.QuotaLimiter.Priority;
+import com.directmediatips.google.sheets.SheetExecutor;
+import com.directmediatips.google.sheets.SheetIndex;
+import com.directmediatips.google.sheets.SheetMetrics;
+import com.directmediatips.google.sheets.SheetService;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.sheets.v4.Sheets;
 import com.google.api.services.sheets.v4.model.AddSheetRequest;
-import com.google.api.services.sheets.v4.model.AddSheetResponse;
 import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
-import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetResponse;
 import com.google.api.services.sheets.v4.model.CellData;
 import com.google.api.services.sheets.v4.model.ExtendedValue;
 import com.google.api.services.sheets.v4.model.GridCoordinate;
 import com.google.api.services.sheets.v4.model.Request;
-import com.google.api.services.sheets.v4.model.Response;
 import com.google.api.services.sheets.v4.model.RowData;
-import com.google.api.services.sheets.v4.model.Sheet;
 import com.google.api.services.sheets.v4.model.SheetProperties;
-import com.google.api.services.sheets.v4.model.Spreadsheet;
 import com.google.api.services.sheets.v4.model.UpdateCellsRequest;
 
 public class AbstractTwitterSheet {
 	
+	/** The number of attempts to create a sheet with a fresh sheet ID. */
+	protected static final int MAX_ATTEMPTS = 3;
+	
+	/** The sheets that are being created in this JVM, with spreadsheet ID and title as key. */
+	private static final ConcurrentMap<String, FutureTask<Integer>> CREATING =
+			new ConcurrentHashMap<String, FutureTask<Integer>>();
+	
 	/** The Google Sheets service. */
 	protected Sheets service;
 	/** The ID of the spreadsheet with the Twitter information. */
@@ -65,63 +88,243 @@ public class AbstractTwitterSheet {
 	/**
 	 * Gets the sheet id of a specific sheet in a Google Sheets document.
 	 * If the sheet doesn't exist yet, a new sheet is created.
+	 * The ID is taken from an index that is shared by all the instances
+	 * writing to the same spreadsheet, see {@link SheetIndex}.
 	 *
 	 * @param sheetname the name of a sheet (see getSheetTitle())
 	 * @return a sheet ID
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public int getSheetId(String sheetname) throws IOException {
-		// Gets the spreadsheet document
-  	  	Spreadsheet sheet = service.spreadsheets().get(spreadsheetId).execute();
-  	  	// Gets the sheets in the spreadsheet
-  	  	List<Sheet> list = sheet.getSheets();
-  	  	Integer id = null;
-  	  	String title;
-  	  	// Loops over the sheets looking for the sheet name
-  	  	for (Sheet s : list) {
-  	  		title = s.getProperties().getTitle();
-  	  		if (sheetname.equalsIgnoreCase(title)) {
-  	  			id = s.getProperties().getSheetId();
-  	  			break;
-  	  		}
-  	  	}
+		// Looks up the sheet name in the cached index
+		Integer id;
+		String operation = SheetMetrics.setOperation(SheetMetrics.GET_SHEET_ID);
+		try {
+			id = SheetIndex.getInstance(spreadsheetId)
+					.lookup(service, sheetname, getPeriod());
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
   	  	// Create a new sheet if the sheet isn't found
   	  	if (id == null) {
   	  		id = createSheet(sheetname);
-  	  		createHeader(id);
   	  	}
   	  	return id;
 	}
 	
 	/**
-	 * Creates a new sheet.
+	 * Creates a new sheet, including its header row. Concurrent calls for
+	 * the same title in the same JVM share a single request; if another
+	 * process created the sheet first, the ID of that sheet is returned.
+	 *
+	 * @param title the title
+	 * @return a sheet id
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public int createSheet(final String title) throws IOException {
+		String key = spreadsheetId + '|' + title.toLowerCase();
+		FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+			public Integer call() throws IOException {
+				return addSheet(title);
+			}
+		});
+		FutureTask<Integer> running = CREATING.putIfAbsent(key, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				CREATING.remove(key, task);
+			}
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while creating " + title);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Adds a sheet with a header row in a single batch update.
+	 * The sheet ID is chosen up front, so that the header can be
+	 * written in the same request that creates the sheet.
+	 *
+	 * @param title the title
+	 * @return a sheet id
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected int addSheet(String title) throws IOException {
+		String operation = SheetMetrics.setOperation(SheetMetrics.CREATE_SHEET);
+		try {
+			return addSheet(title, SheetIndex.getInstance(spreadsheetId));
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
+	/**
+	 * Adds a sheet with a header row, retrying with another sheet ID
+	 * if the ID happens to be taken.
 	 *
 	 * @param title the title
+	 * @param index the index of the spreadsheet
 	 * @return a sheet id
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
-	public int createSheet(String title) throws IOException {
-	    List<Request> requests = new ArrayList<Request>();
-	    requests.add(new Request()
+	private int addSheet(String title, SheetIndex index) throws IOException {
+		for (int attempt = 1; ; attempt++) {
+			int sheetId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+		    List<Request> requests = new ArrayList<Request>();
+		    requests.add(getAddSheetRequest(title, sheetId));
+		    requests.add(getHeaderRequest(sheetId));
+		    BatchUpdateSpreadsheetRequest update =
+		        new BatchUpdateSpreadsheetRequest().setRequests(requests);
+		    try {
+		    	service.spreadsheets().batchUpdate(spreadsheetId, update)
+		    		.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+		    	index.put(title, sheetId);
+		    	return sheetId;
+		    } catch (GoogleJsonResponseException e) {
+		    	if (!isAlreadyExists(e))
+		    		throw e;
+		    	// Either the title or (very unlikely) the sheet ID is taken
+		    	index.invalidate();
+		    	Integer id = index.lookup(service, title, getPeriod());
+		    	if (id != null)
+		    		return id;
+		    	if (attempt == MAX_ATTEMPTS)
+		    		throw e;
+		    }
+		}
+	}
+	
+	/**
+	 * Creates the sheets for a list of accounts in the month after a date,
+	 * e.g. a few days before the end of the month, so that the first
+	 * writes of the new month don't need to create any sheets.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param accounts	the screen names of Twitter accounts
+	 * @param date	a date in the month before the month of the sheets
+	 * @return the IDs of the sheets that were created, with their title as key
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Map<String, Integer> provisionNextMonth(Sheets service, String spreadsheetId,
+			Collection<String> accounts, Date date) throws IOException {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		cal.set(Calendar.DAY_OF_MONTH, 1);
+		cal.add(Calendar.MONTH, 1);
+		List<String> titles = new ArrayList<String>();
+		for (String account : accounts)
+			titles.add(new AbstractTwitterSheet(service, spreadsheetId, account, cal.getTime()).getSheetTitle());
+		return provisionSheets(service, spreadsheetId, titles);
+	}
+	
+	/**
+	 * Creates the sheets that don't exist yet, including their header rows,
+	 * with one spreadsheet lookup and one batch update for all the titles.
+	 * If another process created one of the sheets in the meantime, the
+	 * index is reloaded and the remaining sheets are created again.
+	 * The batch update is sent with {@link Priority#BULK} priority.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param titles	the titles of the sheets (see getSheetTitle())
+	 * @return the IDs of the sheets that were created, with their title as key
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static Map<String, Integer> provisionSheets(Sheets service, String spreadsheetId,
+			Collection<String> titles) throws IOException {
+		SheetIndex index = SheetIndex.getInstance(spreadsheetId);
+		Map<String, Integer> created = new LinkedHashMap<String, Integer>();
+		Priority previous = QuotaLimiter.setPriority(Priority.BULK);
+		String operation = SheetMetrics.setOperation(SheetMetrics.CREATE_SHEET);
+		try {
+			for (int attempt = 1; ; attempt++) {
+				List<String> missing = index.getMissing(service, titles, getPeriod());
+				if (missing.isEmpty())
+					return created;
+				Set<Integer> sheetIds = new HashSet<Integer>();
+				List<Request> requests = new ArrayList<Request>();
+				for (String title : missing) {
+					int sheetId;
+					do {
+						sheetId = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+					} while (!sheetIds.add(sheetId));
+					requests.add(getAddSheetRequest(title, sheetId));
+					requests.add(getHeaderRequest(sheetId));
+				}
+				try {
+					service.spreadsheets().batchUpdate(spreadsheetId,
+							new BatchUpdateSpreadsheetRequest().setRequests(requests))
+						.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+				} catch (GoogleJsonResponseException e) {
+					if (!isAlreadyExists(e) || attempt == MAX_ATTEMPTS)
+						throw e;
+					index.invalidate();
+					continue;
+				}
+				for (int i = 0; i < missing.size(); i++) {
+					int sheetId = requests.get(2 * i).getAddSheet().getProperties().getSheetId();
+					index.put(missing.get(i), sheetId);
+					created.put(missing.get(i), sheetId);
+				}
+				return created;
+			}
+		} finally {
+			QuotaLimiter.setPriority(previous);
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
+	/**
+	 * Checks if an error was caused by a sheet that already exists.
+	 *
+	 * @param e the exception thrown by the API
+	 * @return true, if the error is about a duplicate sheet
+	 */
+	protected static boolean isAlreadyExists(GoogleJsonResponseException e) {
+		return e.getStatusCode() == 400 && e.getDetails() != null
+				&& e.getDetails().getMessage() != null
+				&& e.getDetails().getMessage().contains("already exists");
+	}
+	
+	/**
+	 * Gets the period used to invalidate the sheet index (the current month).
+	 *
+	 * @return a String of the form "yyyy-MM"
+	 */
+	protected static String getPeriod() {
+		return new SimpleDateFormat("yyyy-MM").format(new Date());
+	}
+	
+	/**
+	 * Creates the request that adds a sheet.
+	 *
+	 * @param title the title of the sheet
+	 * @param sheetId the ID of the sheet
+	 * @return an AddSheet request
+	 */
+	public static Request getAddSheetRequest(String title, int sheetId) {
+		return new Request()
 	        .setAddSheet(new AddSheetRequest()
-	        .setProperties(new SheetProperties().setTitle(title))
-	    ));
-	    BatchUpdateSpreadsheetRequest update =
-	        new BatchUpdateSpreadsheetRequest().setRequests(requests);
-	    BatchUpdateSpreadsheetResponse response =
-	        service.spreadsheets().batchUpdate(spreadsheetId, update).execute();
-	    List<Response> replies = response.getReplies();
-	    AddSheetResponse sheetResponse = replies.get(0).getAddSheet();
-	    return sheetResponse.getProperties().getSheetId();
+	        .setProperties(new SheetProperties().setSheetId(sheetId).setTitle(title)));
 	}
 	
 	/**
-	 * Adds a header row to a specific sheet.
+	 * Creates the request that writes the header row of a sheet.
 	 *
 	 * @param sheetId the ID of the sheet
-	 * @throws IOException Signals that an I/O exception has occurred.
+	 * @return an UpdateCells request
 	 */
-	public void createHeader(int sheetId) throws IOException {
+	public static Request getHeaderRequest(int sheetId) {
   	  	List<CellData> values = new ArrayList<CellData>();
   	  	values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue("Date")));
   	  	values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue("Tweets")));
@@ -131,18 +334,42 @@ public class AbstractTwitterSheet {
   	  	values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue("")));
   	  	values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue("Klout score")));
   	  	
-  	  	List<Request> requests = new ArrayList<Request>();
   	  	UpdateCellsRequest updateCellRequest = new UpdateCellsRequest()
   	  			.setStart(new GridCoordinate()
   	  					.setSheetId(sheetId)
   	  					.setRowIndex(0)
   	  					.setColumnIndex(0))
   	  			.setRows(Arrays.asList(new RowData().setValues(values)))
-  	  			.setFields("*");
-  	  	requests.add(new Request().setUpdateCells(updateCellRequest));
-  	  	
+  	  			.setFields(SheetService.getCellFields());
+  	  	return new Request().setUpdateCells(updateCellRequest);
+	}
+	
+	/**
+	 * Adds a header row to a specific sheet.
+	 *
+	 * @param sheetId the ID of the sheet
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void createHeader(int sheetId) throws IOException {
+  	  	List<Request> requests = new ArrayList<Request>();
+  	  	requests.add(getHeaderRequest(sheetId));
   	  	BatchUpdateSpreadsheetRequest batchUpdateRequest =
   	  			new BatchUpdateSpreadsheetRequest().setRequests(requests);
-  	  	service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest).execute();
+  	  	service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest)
+  	  		.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+	}
+	
+	/**
+	 * Gets the sheet id of a specific sheet asynchronously, see {@link SheetExecutor}.
+	 *
+	 * @param sheetname the name of a sheet (see getSheetTitle())
+	 * @return a future sheet ID
+	 */
+	public CompletableFuture<Integer> getSheetIdAsync(final String sheetname) {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Integer>() {
+			public Integer call() throws IOException {
+				return getSheetId(sheetname);
+			}
+		});
 	}
 }
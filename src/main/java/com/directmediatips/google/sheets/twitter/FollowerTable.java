@@ -0,0 +1,145 @@
+package com.directmediatips.google.sheets.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import com.directmediatips.google.sheets.LongIndex;
+
+/**
+ * Compact table of followers: parallel arrays with the Twitter ID,
+ * the screen name and a bit mask telling which of our accounts
+ * (at most 64) the follower follows.
+ */
+public class FollowerTable {
+	
+	/** The maximum number of our own accounts. */
+	public static final int MAX_ACCOUNTS = 64;
+	
+	/** Index from Twitter ID to slot. */
+	private final LongIndex index;
+	/** The Twitter IDs, per slot. */
+	private long[] ids;
+	/** The screen names, per slot. */
+	private String[] screennames;
+	/** The bit masks of our accounts being followed, per slot. */
+	private long[] masks;
+	/** The number of followers. */
+	private int size;
+	
+	/**
+	 * Creates a FollowerTable instance.
+	 *
+	 * @param expected	the number of followers that is expected
+	 */
+	public FollowerTable(int expected) {
+		int capacity = Math.max(expected, 16);
+		index = new LongIndex(capacity);
+		ids = new long[capacity];
+		screennames = new String[capacity];
+		masks = new long[capacity];
+	}
+	
+	/**
+	 * Registers that a follower follows one of our accounts.
+	 *
+	 * @param id the follower's ID
+	 * @param screenname the follower's screen name
+	 * @param account an index referring to one of our own accounts
+	 * @return the slot of the follower
+	 */
+	public int add(long id, String screenname, int account) {
+		if (account < 0 || account >= MAX_ACCOUNTS)
+			throw new IllegalArgumentException("Account index out of range: " + account);
+		int slot = index.get(id);
+		if (slot == LongIndex.MISSING) {
+			if (size == ids.length) {
+				int capacity = size * 2;
+				ids = Arrays.copyOf(ids, capacity);
+				screennames = Arrays.copyOf(screennames, capacity);
+				masks = Arrays.copyOf(masks, capacity);
+			}
+			slot = size++;
+			ids[slot] = id;
+			screennames[slot] = screenname;
+			index.put(id, slot);
+		}
+		masks[slot] |= 1L << account;
+		return slot;
+	}
+	
+	/**
+	 * Gets the slot of a follower.
+	 *
+	 * @param id the follower's ID
+	 * @return the slot, or {@link LongIndex#MISSING}
+	 */
+	public int getSlot(long id) {
+		return index.get(id);
+	}
+	
+	/**
+	 * Gets the slots of all followers, ordered by Twitter ID.
+	 *
+	 * @return an array of slots
+	 */
+	public int[] getSortedSlots() {
+		long[] sorted = Arrays.copyOf(ids, size);
+		Arrays.sort(sorted);
+		int[] slots = new int[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = index.get(sorted[i]);
+		return slots;
+	}
+	
+	/**
+	 * Gets the number of followers.
+	 *
+	 * @return the size of the table
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Gets the Twitter ID of a follower.
+	 *
+	 * @param slot the slot of the follower
+	 * @return an ID
+	 */
+	public long getId(int slot) {
+		return ids[slot];
+	}
+	
+	/**
+	 * Gets the screen name of a follower.
+	 *
+	 * @param slot the slot of the follower
+	 * @return a screen name
+	 */
+	public String getScreenname(int slot) {
+		return screennames[slot];
+	}
+	
+	/**
+	 * Gets the accounts followed by a follower as a bit mask.
+	 *
+	 * @param slot the slot of the follower
+	 * @return a bit mask; bit i is set if our account i is followed
+	 */
+	public long getMask(int slot) {
+		return masks[slot];
+	}
+}
@@ -0,0 +1,366 @@
+package com.directmediatips.google.sheets.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.directmediatips.google.sheets.LongIndex;
+
+/**
+ * Compact store of harvest info: parallel arrays with the Twitter ID
+ * and the follow friends, follow followers and retweet values, indexed
+ * by ID. Screen names are interned in a single array (one byte per
+ * character, as long as all characters are Latin-1), so that a row
+ * doesn't need a String (or any other object) of its own.
+ * Rows that don't have an ID yet get a placeholder ID derived from
+ * their position, see {@link #getPlaceholderId(int)}.
+ * A store isn't thread-safe.
+ */
+public class HarvestStore {
+	
+	/** The value of a row without a screen name. */
+	private static final int NO_NAME = -1;
+	
+	/** Index from Twitter ID to slot. */
+	private final LongIndex index;
+	/** The Twitter IDs, per slot. */
+	private long[] ids;
+	/** The follow friends values, per slot. */
+	private int[] followFriends;
+	/** The follow followers values, per slot. */
+	private int[] followFollowers;
+	/** The retweet values, per slot. */
+	private int[] retweets;
+	/** The screen names, per slot, as an index in the name pool. */
+	private int[] names;
+	/** The number of rows. */
+	private int size;
+	
+	/** The characters of all the distinct screen names, as long as they are all Latin-1. */
+	private byte[] latin1;
+	/** The characters of all the distinct screen names, once a name isn't Latin-1; null before. */
+	private char[] chars;
+	/** The offset of every distinct screen name in the pool; one extra entry marks the end. */
+	private int[] nameOffsets;
+	/** The number of distinct screen names. */
+	private int nameCount;
+	/** Open addressing hash table from screen name to name index; {@link #NO_NAME} marks an empty bucket. */
+	private int[] nameTable;
+	
+	/**
+	 * Creates a HarvestStore instance.
+	 *
+	 * @param expected	the number of rows that is expected
+	 */
+	public HarvestStore(int expected) {
+		int capacity = Math.max(expected, 16);
+		index = new LongIndex(capacity);
+		ids = new long[capacity];
+		followFriends = new int[capacity];
+		followFollowers = new int[capacity];
+		retweets = new int[capacity];
+		names = new int[capacity];
+		latin1 = new byte[capacity * 8];
+		nameOffsets = new int[capacity + 1];
+		nameTable = new int[Integer.highestOneBit(capacity) * 4];
+		Arrays.fill(nameTable, NO_NAME);
+	}
+	
+	/**
+	 * Gets the ID used for a row that doesn't have an ID yet.
+	 * The ID only depends on the position of the row in the sheet,
+	 * so it is the same every time the sheet is read.
+	 *
+	 * @param row	the index of the row (0-based)
+	 * @return a negative ID
+	 */
+	public static long getPlaceholderId(int row) {
+		return -1L - row;
+	}
+	
+	/**
+	 * Adds the harvest info of an account, or replaces it if
+	 * there already is a row with the same ID.
+	 *
+	 * @param id	the account ID, or a placeholder ID
+	 * @param screenname	the screen name, or null
+	 * @param followFriends	the follow friends value
+	 * @param followFollowers	the follow followers value
+	 * @param retweet	the retweet value
+	 * @return the slot of the account
+	 */
+	public int add(long id, String screenname, int followFriends, int followFollowers, int retweet) {
+		int slot = index.get(id);
+		if (slot == LongIndex.MISSING) {
+			if (size == ids.length) {
+				int capacity = size * 2;
+				ids = Arrays.copyOf(ids, capacity);
+				this.followFriends = Arrays.copyOf(this.followFriends, capacity);
+				this.followFollowers = Arrays.copyOf(this.followFollowers, capacity);
+				retweets = Arrays.copyOf(retweets, capacity);
+				names = Arrays.copyOf(names, capacity);
+			}
+			slot = size++;
+			ids[slot] = id;
+			index.put(id, slot);
+		}
+		names[slot] = intern(screenname);
+		this.followFriends[slot] = followFriends;
+		this.followFollowers[slot] = followFollowers;
+		retweets[slot] = retweet;
+		return slot;
+	}
+	
+	/**
+	 * Gets the slot of an account.
+	 *
+	 * @param id	the account ID, or a placeholder ID
+	 * @return the slot, or {@link LongIndex#MISSING}
+	 */
+	public int getSlot(long id) {
+		return index.get(id);
+	}
+	
+	/**
+	 * Gets the number of rows.
+	 *
+	 * @return the size of the store
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Gets the ID of an account.
+	 *
+	 * @param slot	the slot of the account
+	 * @return an ID, negative for a placeholder ID
+	 */
+	public long getId(int slot) {
+		return ids[slot];
+	}
+	
+	/**
+	 * Gets the screen name of an account. A new String is created
+	 * for every call; use {@link #hasScreenname(int, String)} to
+	 * compare screen names.
+	 *
+	 * @param slot	the slot of the account
+	 * @return a screen name, or null
+	 */
+	public String getScreenname(int slot) {
+		int name = names[slot];
+		if (name == NO_NAME)
+			return null;
+		int offset = nameOffsets[name];
+		int length = nameOffsets[name + 1] - offset;
+		if (chars != null)
+			return new String(chars, offset, length);
+		return new String(latin1, offset, length, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * Checks the screen name of an account without creating a String.
+	 *
+	 * @param slot	the slot of the account
+	 * @param screenname	a screen name, or null
+	 * @return true, if the account has this screen name
+	 */
+	public boolean hasScreenname(int slot, String screenname) {
+		int name = names[slot];
+		if (name == NO_NAME || screenname == null)
+			return name == NO_NAME && screenname == null;
+		return matches(name, screenname);
+	}
+	
+	/**
+	 * Gets the follow friends value of an account.
+	 *
+	 * @param slot	the slot of the account
+	 * @return the follow friends value
+	 */
+	public int getFollowFriends(int slot) {
+		return followFriends[slot];
+	}
+	
+	/**
+	 * Gets the follow followers value of an account.
+	 *
+	 * @param slot	the slot of the account
+	 * @return the follow followers value
+	 */
+	public int getFollowFollowers(int slot) {
+		return followFollowers[slot];
+	}
+	
+	/**
+	 * Gets the retweet value of an account.
+	 *
+	 * @param slot	the slot of the account
+	 * @return the retweet value
+	 */
+	public int getRetweet(int slot) {
+		return retweets[slot];
+	}
+	
+	/**
+	 * Checks if the harvest info of an account is unchanged.
+	 * Nothing is allocated.
+	 *
+	 * @param id	the account ID
+	 * @param f1	the follow friends value
+	 * @param f2	the follow followers value
+	 * @param r	the retweet value
+	 * @return true, if the account is in the store and none of the values changed
+	 */
+	public boolean isUnchanged(long id, int f1, int f2, int r) {
+		int slot = index.get(id);
+		return slot != LongIndex.MISSING
+				&& followFriends[slot] == f1 && followFollowers[slot] == f2 && retweets[slot] == r;
+	}
+	
+	/**
+	 * Gets the index of a screen name in the name pool,
+	 * adding the name if it isn't there yet.
+	 *
+	 * @param screenname	a screen name, or null
+	 * @return the index of the name, or {@link #NO_NAME} for null
+	 */
+	private int intern(String screenname) {
+		if (screenname == null)
+			return NO_NAME;
+		int mask = nameTable.length - 1;
+		int i = hash(screenname) & mask;
+		for (; nameTable[i] != NO_NAME; i = (i + 1) & mask) {
+			if (matches(nameTable[i], screenname))
+				return nameTable[i];
+		}
+		int length = screenname.length();
+		int offset = nameOffsets[nameCount];
+		store(screenname, offset);
+		if (nameCount + 1 == nameOffsets.length)
+			nameOffsets = Arrays.copyOf(nameOffsets, nameOffsets.length * 2);
+		nameOffsets[nameCount + 1] = offset + length;
+		nameTable[i] = nameCount;
+		int name = nameCount++;
+		if (nameCount * 2 > nameTable.length)
+			rehashNames();
+		return name;
+	}
+	
+	/**
+	 * Copies the characters of a screen name to the end of the pool.
+	 * The pool switches from bytes to chars the first time
+	 * a character isn't Latin-1.
+	 *
+	 * @param screenname	a screen name
+	 * @param offset	the end of the pool
+	 */
+	private void store(String screenname, int offset) {
+		int length = screenname.length();
+		if (chars == null) {
+			for (int c = 0; c < length; c++) {
+				if (screenname.charAt(c) > 0xff) {
+					chars = new char[latin1.length];
+					for (int i = 0; i < offset; i++)
+						chars[i] = (char)(latin1[i] & 0xff);
+					latin1 = null;
+					break;
+				}
+			}
+		}
+		if (chars == null) {
+			if (offset + length > latin1.length)
+				latin1 = Arrays.copyOf(latin1, Math.max(latin1.length * 2, offset + length));
+			for (int c = 0; c < length; c++)
+				latin1[offset + c] = (byte)screenname.charAt(c);
+		}
+		else {
+			if (offset + length > chars.length)
+				chars = Arrays.copyOf(chars, Math.max(chars.length * 2, offset + length));
+			screenname.getChars(0, length, chars, offset);
+		}
+	}
+	
+	/**
+	 * Gets a character of the pool.
+	 *
+	 * @param i	the position in the pool
+	 * @return a character
+	 */
+	private char charAt(int i) {
+		return chars != null ? chars[i] : (char)(latin1[i] & 0xff);
+	}
+	
+	/**
+	 * Compares a name in the name pool with a String.
+	 *
+	 * @param name	the index of a name
+	 * @param screenname	a screen name
+	 * @return true, if both are equal
+	 */
+	private boolean matches(int name, String screenname) {
+		int offset = nameOffsets[name];
+		int length = nameOffsets[name + 1] - offset;
+		if (length != screenname.length())
+			return false;
+		for (int c = 0; c < length; c++) {
+			if (charAt(offset + c) != screenname.charAt(c))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Doubles the size of the hash table of the name pool.
+	 */
+	private void rehashNames() {
+		nameTable = new int[nameTable.length * 2];
+		Arrays.fill(nameTable, NO_NAME);
+		int mask = nameTable.length - 1;
+		for (int name = 0; name < nameCount; name++) {
+			int h = 0;
+			for (int c = nameOffsets[name]; c < nameOffsets[name + 1]; c++)
+				h = 31 * h + charAt(c);
+			int i = spread(h) & mask;
+			while (nameTable[i] != NO_NAME)
+				i = (i + 1) & mask;
+			nameTable[i] = name;
+		}
+	}
+	
+	/**
+	 * Gets the hash code of a screen name; the same as hashing
+	 * the characters in the pool in {@link #rehashNames()}.
+	 *
+	 * @param screenname	a screen name
+	 * @return a hash code
+	 */
+	private static int hash(String screenname) {
+		return spread(screenname.hashCode());
+	}
+	
+	/**
+	 * Spreads the bits of a hash code.
+	 *
+	 * @param h	a hash code
+	 * @return a hash code
+	 */
+	private static int spread(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
@@ -0,0 +1,339 @@
+package com.directmediatips.google.sheets.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.directmediatips.google.sheets.QuotaLimiter;
+import com.directmediatips.google.sheets.QuotaLimiter.Priority;
+import com.directmediatips.google.sheets.RangeCache;
+import com.directmediatips.google.sheets.SheetMetrics;
+import com.directmediatips.google.sheets.SheetService;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
+import com.google.api.services.sheets.v4.model.CellData;
+import com.google.api.services.sheets.v4.model.ExtendedValue;
+import com.google.api.services.sheets.v4.model.GridCoordinate;
+import com.google.api.services.sheets.v4.model.Request;
+import com.google.api.services.sheets.v4.model.RowData;
+import com.google.api.services.sheets.v4.model.UpdateCellsRequest;
+
+/**
+ * Loads historical metrics into a metrics spreadsheet, e.g. a year of
+ * history of a new account. The records are grouped per sheet (one sheet
+ * per account and month, see {@link AbstractTwitterSheet#getSheetTitle()});
+ * {@link #flush()} creates all the missing sheets with one batch update,
+ * and then writes every sheet as a single block of rows, with as many
+ * sheets per batch update as {@link #DEFAULT_MAX_CELLS} allows.
+ * A day that occurs more than once keeps the last record.
+ * <pre>
+ * MetricsBackfill backfill = new MetricsBackfill(service, spreadsheetId);
+ * backfill.load(new FileReader("history.csv"));
+ * backfill.flush();
+ * </pre>
+ */
+public class MetricsBackfill {
+	
+	/** The default maximum number of cells in a batch update. */
+	public static final int DEFAULT_MAX_CELLS = 50000;
+	
+	/** The number of cells in a row with a Klout score (the date, four metrics, an empty cell and the score). */
+	protected static final int FULL_ROW = 7;
+	
+	/**
+	 * The metrics of an account on a specific day.
+	 */
+	public static class Record {
+		
+		/** The screen name of the Twitter account. */
+		public final String account;
+		/** The day of the metrics. */
+		public final Date date;
+		/** The number of tweets. */
+		public final int tweets;
+		/** The number of friends. */
+		public final int following;
+		/** The number of followers. */
+		public final int followers;
+		/** The number of likes. */
+		public final int likes;
+		/** The Klout score, or NaN if there is none. */
+		public final double klout;
+		
+		/**
+		 * Creates a Record instance.
+		 *
+		 * @param account the screenname of a Twitter account
+		 * @param date the day of the metrics
+		 * @param tweets the number of tweets
+		 * @param following the number of friends
+		 * @param followers the number of followers
+		 * @param likes 	the number of likes
+		 * @param klout	the Klout score, or NaN if there is none
+		 */
+		public Record(String account, Date date, int tweets, int following, int followers,
+				int likes, double klout) {
+			this.account = account;
+			this.date = date;
+			this.tweets = tweets;
+			this.following = following;
+			this.followers = followers;
+			this.likes = likes;
+			this.klout = klout;
+		}
+	}
+	
+	/** The Google Sheets service. */
+	protected final Sheets service;
+	/** The ID of the spreadsheet with the Twitter metrics. */
+	protected final String spreadsheetId;
+	/** The maximum number of cells in a batch update. */
+	protected final int maxCells;
+	/** The pending records per sheet title, with the row of the day as key. */
+	private final Map<String, TreeMap<Integer, Record>> sheets = new LinkedHashMap<String, TreeMap<Integer, Record>>();
+	
+	/**
+	 * Creates a MetricsBackfill instance.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 */
+	public MetricsBackfill(Sheets service, String spreadsheetId) {
+		this(service, spreadsheetId, DEFAULT_MAX_CELLS);
+	}
+	
+	/**
+	 * Creates a MetricsBackfill instance.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param maxCells	the maximum number of cells in a batch update
+	 */
+	public MetricsBackfill(Sheets service, String spreadsheetId, int maxCells) {
+		if (maxCells < FULL_ROW)
+			throw new IllegalArgumentException("At least one row per batch expected: " + maxCells);
+		this.service = service;
+		this.spreadsheetId = spreadsheetId;
+		this.maxCells = maxCells;
+	}
+	
+	/**
+	 * Adds a record.
+	 *
+	 * @param record the metrics of an account on a specific day
+	 */
+	public void add(Record record) {
+		String title = new AbstractTwitterSheet(service, spreadsheetId, record.account, record.date).getSheetTitle();
+		TreeMap<Integer, Record> rows = sheets.get(title);
+		if (rows == null) {
+			rows = new TreeMap<Integer, Record>();
+			sheets.put(title, rows);
+		}
+		rows.put(MetricsBatchWriter.getRow(record.date), record);
+	}
+	
+	/**
+	 * Adds records read from CSV, one record per line:
+	 * <code>account,yyyy-MM-dd,tweets,following,followers,likes[,klout]</code>.
+	 * Empty lines and a header line starting with "account" are skipped.
+	 * The reader isn't closed.
+	 *
+	 * @param csv the CSV data
+	 * @return the number of records that were added
+	 * @throws IOException if the data can't be read or a line isn't valid
+	 */
+	public int load(Reader csv) throws IOException {
+		BufferedReader reader = new BufferedReader(csv);
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		format.setLenient(false);
+		int count = 0;
+		int number = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if (line.isEmpty() || (number == 1 && line.toLowerCase().startsWith("account")))
+				continue;
+			String[] fields = line.split(",", -1);
+			if (fields.length < 6 || fields.length > 7)
+				throw new IOException(String.format("Line %d: 6 or 7 fields expected: %s", number, line));
+			try {
+				add(new Record(fields[0].trim(), format.parse(fields[1].trim()),
+						Integer.parseInt(fields[2].trim()), Integer.parseInt(fields[3].trim()),
+						Integer.parseInt(fields[4].trim()), Integer.parseInt(fields[5].trim()),
+						fields.length == 7 && !fields[6].trim().isEmpty()
+							? Double.parseDouble(fields[6].trim()) : Double.NaN));
+			} catch (ParseException e) {
+				throw new IOException(String.format("Line %d: invalid date: %s", number, line), e);
+			} catch (NumberFormatException e) {
+				throw new IOException(String.format("Line %d: invalid number: %s", number, line), e);
+			}
+			count++;
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the number of sheets with pending records.
+	 *
+	 * @return the number of sheets
+	 */
+	public int getSheetCount() {
+		return sheets.size();
+	}
+	
+	/**
+	 * Writes the pending records: the missing sheets are created first,
+	 * then the rows are sent sheet by sheet, with as many sheets per
+	 * batch update as fit in the maximum number of cells.
+	 * Batch updates are sent with {@link Priority#BULK} priority.
+	 *
+	 * @return the number of rows that were written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public int flush() throws IOException {
+		if (sheets.isEmpty())
+			return 0;
+		AbstractTwitterSheet.provisionSheets(service, spreadsheetId, sheets.keySet());
+		AbstractTwitterSheet index = new AbstractTwitterSheet(service, spreadsheetId, null, null);
+		List<Request> requests = new ArrayList<Request>();
+		List<String> titles = new ArrayList<String>();
+		int cells = 0;
+		int written = 0;
+		for (Map.Entry<String, TreeMap<Integer, Record>> sheet : sheets.entrySet()) {
+			int size = sheet.getValue().size() * FULL_ROW;
+			if (cells > 0 && cells + size > maxCells) {
+				send(requests, titles);
+				cells = 0;
+			}
+			int sheetId = index.getSheetId(sheet.getKey());
+			requests.addAll(getUpdateRequests(sheetId, sheet.getValue()));
+			titles.add(sheet.getKey());
+			cells += size;
+			written += sheet.getValue().size();
+		}
+		send(requests, titles);
+		sheets.clear();
+		return written;
+	}
+	
+	/**
+	 * Creates the requests that write the rows of a sheet: one request
+	 * per run of consecutive days, so one request for a complete month.
+	 *
+	 * @param sheetId the ID of the sheet
+	 * @param rows the records, with the row of the day as key
+	 * @return UpdateCells requests
+	 */
+	protected List<Request> getUpdateRequests(int sheetId, TreeMap<Integer, Record> rows) {
+		List<Request> requests = new ArrayList<Request>();
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		List<RowData> run = new ArrayList<RowData>();
+		int start = -1;
+		int previous = -1;
+		for (Map.Entry<Integer, Record> row : rows.entrySet()) {
+			if (row.getKey() != previous + 1 && !run.isEmpty()) {
+				requests.add(getUpdateCellsRequest(sheetId, start, run));
+				run = new ArrayList<RowData>();
+			}
+			if (run.isEmpty())
+				start = row.getKey();
+			run.add(getRowData(row.getValue(), format));
+			previous = row.getKey();
+		}
+		if (!run.isEmpty())
+			requests.add(getUpdateCellsRequest(sheetId, start, run));
+		return requests;
+	}
+	
+	/**
+	 * Creates the cells of a record, in the columns of a metrics sheet,
+	 * see {@link MetricsBatchWriter#COLUMN_DATE} and the constants after it.
+	 *
+	 * @param record the record
+	 * @param format the format of the date
+	 * @return a row with five cells, or seven if there is a Klout score
+	 */
+	protected RowData getRowData(Record record, SimpleDateFormat format) {
+		List<CellData> values = new ArrayList<CellData>(FULL_ROW);
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue(format.format(record.date))));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)record.tweets)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)record.following)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)record.followers)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)record.likes)));
+		if (!Double.isNaN(record.klout)) {
+			values.add(new CellData());
+			values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue(record.klout)));
+		}
+		return new RowData().setValues(values);
+	}
+	
+	/**
+	 * Creates the request that writes a block of rows.
+	 *
+	 * @param sheetId the ID of the sheet
+	 * @param row the index of the first row
+	 * @param rows the rows
+	 * @return an UpdateCells request
+	 */
+	protected Request getUpdateCellsRequest(int sheetId, int row, List<RowData> rows) {
+		UpdateCellsRequest updateCellRequest = new UpdateCellsRequest()
+				.setStart(new GridCoordinate()
+						.setSheetId(sheetId)
+						.setRowIndex(row)
+						.setColumnIndex(MetricsBatchWriter.COLUMN_DATE))
+				.setRows(rows)
+				.setFields("userEnteredValue");
+		return new Request().setUpdateCells(updateCellRequest);
+	}
+	
+	/**
+	 * Sends a batch update and clears the requests.
+	 *
+	 * @param requests the requests
+	 * @param titles the titles of the sheets that are written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void send(List<Request> requests, List<String> titles) throws IOException {
+		if (requests.isEmpty())
+			return;
+		BatchUpdateSpreadsheetRequest batchUpdateRequest =
+				new BatchUpdateSpreadsheetRequest().setRequests(new ArrayList<Request>(requests));
+		Priority previous = QuotaLimiter.setPriority(Priority.BULK);
+		String operation = SheetMetrics.setOperation(SheetMetrics.METRICS_WRITE);
+		try {
+			service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest)
+					.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+		} finally {
+			QuotaLimiter.setPriority(previous);
+			SheetMetrics.setOperation(operation);
+			for (String title : titles)
+				RangeCache.getInstance().invalidate(spreadsheetId,
+						new RangeCache.A1Range(title, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		}
+		requests.clear();
+		titles.clear();
+	}
+}
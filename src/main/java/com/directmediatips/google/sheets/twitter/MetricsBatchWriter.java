@@ -0,0 +1,598 @@
+package com.directmediatips.google.sheets.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.directmediatips.google.sheets.QuotaLimiter;
+import com.directmediatips.google.sheets.RangeCache;
+import com.directmediatips.google.sheets.SheetMetrics;
+import com.directmediatips.google.sheets.SheetService;
+import com.directmediatips.google.sheets.QuotaLimiter.Priority;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
+import com.google.api.services.sheets.v4.model.CellData;
+import com.google.api.services.sheets.v4.model.ExtendedValue;
+import com.google.api.services.sheets.v4.model.GridCoordinate;
+import com.google.api.services.sheets.v4.model.Request;
+import com.google.api.services.sheets.v4.model.RowData;
+import com.google.api.services.sheets.v4.model.UpdateCellsRequest;
+
+/**
+ * Buffers metric updates for many accounts and sends them to Google Sheets
+ * in as few requests as possible: all the pending cells of a spreadsheet
+ * go out in a single batch update. A flush happens when the number of
+ * pending cells reaches a threshold, when the flush interval expires,
+ * or when {@link #flush()} or {@link #close()} is called.
+ * If the same cell is written more than once before a flush,
+ * only the last value is sent. Twitter metrics and the Klout score of the
+ * same account and day that are pending at the same time are sent as one
+ * row. Only the user-entered values are written; formatting is left alone.
+ * Batches are sent with {@link Priority#BULK} priority.
+ * 
+ * When a {@link MetricsSpool} is used, every cell is recorded in the spool
+ * before it is buffered, flushes triggered by size happen in the background
+ * so that producers never wait for the network, and cells that were still
+ * in the spool when the JVM stopped are sent again on the next start.
+ * 
+ * The cells of a spreadsheet that can't be written are kept and sent again
+ * with the next flush; the other spreadsheets aren't held back. If Google
+ * Sheets rejects the cells of a spreadsheet (a 4xx error other than 429, e.g.
+ * the spreadsheet was deleted) {@link #DEFAULT_MAX_REJECTIONS} times in a row,
+ * they are dropped. When a flush on the timer or in the background fails,
+ * the error is thrown by the next call to {@link #flush()} or {@link #close()};
+ * new cells are always accepted.
+ */
+public class MetricsBatchWriter implements Closeable {
+	
+	/** The default number of pending cells that triggers a flush. */
+	public static final int DEFAULT_MAX_CELLS = 5000;
+	/** The default number of milliseconds after which pending cells are flushed. */
+	public static final long DEFAULT_FLUSH_INTERVAL = 10000;
+	/** The number of times in a row a spreadsheet can reject its cells before they are dropped. */
+	public static final int DEFAULT_MAX_REJECTIONS = 3;
+	
+	/** The column of the date in a metrics sheet. */
+	public static final int COLUMN_DATE = 0;
+	/** The column of the number of tweets in a metrics sheet. */
+	public static final int COLUMN_TWEETS = 1;
+	/** The column of the number of friends in a metrics sheet. */
+	public static final int COLUMN_FOLLOWING = 2;
+	/** The column of the number of followers in a metrics sheet. */
+	public static final int COLUMN_FOLLOWERS = 3;
+	/** The column of the number of likes in a metrics sheet. */
+	public static final int COLUMN_LIKES = 4;
+	/** The empty column between the Twitter metrics and the Klout score. */
+	public static final int COLUMN_SPACER = 5;
+	/** The column of the Klout score in a metrics sheet. */
+	public static final int COLUMN_KLOUT = 6;
+	
+	/**
+	 * Inner class identifying a cell in a sheet.
+	 */
+	protected static class CellKey implements Comparable<CellKey> {
+		
+		/** The title of the sheet. */
+		protected final String title;
+		/** The row index (0-based). */
+		protected final int row;
+		/** The column index (0-based). */
+		protected final int column;
+		
+		/**
+		 * Creates a CellKey instance.
+		 *
+		 * @param title the title of the sheet
+		 * @param row the row index
+		 * @param column the column index
+		 */
+		protected CellKey(String title, int row, int column) {
+			this.title = title;
+			this.row = row;
+			this.column = column;
+		}
+		
+		@Override
+		public int compareTo(CellKey o) {
+			int c = title.compareTo(o.title);
+			if (c != 0) return c;
+			if (row != o.row) return row < o.row ? -1 : 1;
+			return column < o.column ? -1 : column == o.column ? 0 : 1;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof CellKey && compareTo((CellKey)o) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (title.hashCode() * 31 + row) * 31 + column;
+		}
+	}
+	
+	/** The Google Sheets service. */
+	protected final Sheets service;
+	/** The number of pending cells that triggers a flush. */
+	protected final int maxCells;
+	/** The spool in which cells are recorded before they are sent; may be null. */
+	protected final MetricsSpool spool;
+	
+	/** The pending cells, per spreadsheet ID. */
+	private Map<String, TreeMap<CellKey, CellData>> pending =
+			new HashMap<String, TreeMap<CellKey, CellData>>();
+	/** The number of pending cells. */
+	private int size = 0;
+	/** Lock making sure only one flush is sending data at a time. */
+	private final Object flushLock = new Object();
+	/** The timer that flushes the pending cells periodically or in the background. */
+	private final ScheduledExecutorService timer;
+	/** The background flush that was requested but didn't start yet, if any. */
+	private boolean flushScheduled = false;
+	/** The number of times in a row the cells of a spreadsheet were rejected. */
+	private final Map<String, Integer> rejections = new HashMap<String, Integer>();
+	/** The last error of a flush on the timer or in the background, not thrown yet. */
+	private IOException failure;
+	
+	/**
+	 * Creates a MetricsBatchWriter with the default thresholds.
+	 *
+	 * @param service	the Sheets service
+	 */
+	public MetricsBatchWriter(Sheets service) {
+		this(service, DEFAULT_MAX_CELLS, DEFAULT_FLUSH_INTERVAL);
+	}
+	
+	/**
+	 * Creates a MetricsBatchWriter instance.
+	 *
+	 * @param service	the Sheets service
+	 * @param maxCells	the number of pending cells that triggers a flush
+	 * @param flushInterval	the number of milliseconds after which pending cells are flushed;
+	 * 	zero or less if pending cells should only be flushed explicitly or by size
+	 */
+	public MetricsBatchWriter(Sheets service, int maxCells, long flushInterval) {
+		this(service, maxCells, flushInterval, null);
+	}
+	
+	/**
+	 * Creates a MetricsBatchWriter instance that records cells in a spool
+	 * before sending them. Cells that are still pending in the spool are
+	 * put in the buffer right away.
+	 *
+	 * @param service	the Sheets service
+	 * @param maxCells	the number of pending cells that triggers a flush
+	 * @param flushInterval	the number of milliseconds after which pending cells are flushed;
+	 * 	if there's a spool and this value is zero or less, {@link #DEFAULT_FLUSH_INTERVAL} is used
+	 * @param spool	the spool; may be null
+	 */
+	public MetricsBatchWriter(Sheets service, int maxCells, long flushInterval, MetricsSpool spool) {
+		this.service = service;
+		this.maxCells = maxCells;
+		this.spool = spool;
+		if (spool != null) {
+			if (flushInterval <= 0)
+				flushInterval = DEFAULT_FLUSH_INTERVAL;
+			for (MetricsSpool.Record record : spool.getPending())
+				put(record.spreadsheetId, new CellKey(record.title, record.row, record.column), record.value);
+		}
+		if (flushInterval > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "metrics-batch-writer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					flushInBackground();
+				}
+			}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+		}
+		else {
+			timer = null;
+		}
+	}
+	
+	/**
+	 * Adds the Twitter metrics of an account to the buffer.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param account the screenname of a Twitter account
+	 * @param date the day the metrics were taken
+	 * @param tweets the number of tweets
+	 * @param following the number of friends
+	 * @param followers the number of followers
+	 * @param likes 	the number of likes
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void updateTwitterMetrics(String spreadsheetId, String account, Date date,
+			int tweets, int following, int followers, int likes) throws IOException {
+		String title = getSheetTitle(account, date);
+		int row = getRow(date);
+		List<CellData> values = new ArrayList<CellData>();
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue(new SimpleDateFormat("yyyy-MM-dd").format(date))));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)tweets)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)following)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)followers)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)likes)));
+		write(spreadsheetId, title, row, COLUMN_DATE, values);
+	}
+	
+	/**
+	 * Adds a complete daily row for an account to the buffer: the date,
+	 * the Twitter metrics and the Klout score.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param account the screenname of a Twitter account
+	 * @param date the day the metrics were taken
+	 * @param tweets the number of tweets
+	 * @param following the number of friends
+	 * @param followers the number of followers
+	 * @param likes 	the number of likes
+	 * @param score	the Klout score
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void updateDailySnapshot(String spreadsheetId, String account, Date date,
+			int tweets, int following, int followers, int likes, double score) throws IOException {
+		List<CellData> values = new ArrayList<CellData>();
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue(new SimpleDateFormat("yyyy-MM-dd").format(date))));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)tweets)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)following)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)followers)));
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue((double)likes)));
+		values.add(new CellData());
+		values.add(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue(score)));
+		write(spreadsheetId, getSheetTitle(account, date), getRow(date), COLUMN_DATE, values);
+	}
+	
+	/**
+	 * Adds the Klout score of an account to the buffer.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param account the screenname of a Twitter account
+	 * @param date the day the score was taken
+	 * @param score	the Klout score
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void updateKloutScore(String spreadsheetId, String account, Date date,
+			double score) throws IOException {
+		write(spreadsheetId, getSheetTitle(account, date), getRow(date), COLUMN_KLOUT,
+				Arrays.asList(new CellData().setUserEnteredValue(new ExtendedValue().setNumberValue(score))));
+	}
+	
+	/**
+	 * Adds a series of adjacent cells to the buffer, starting at a specific cell.
+	 * If the number of pending cells reaches the threshold, the buffer is flushed.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param title the title of the sheet
+	 * @param row the row index (0-based)
+	 * @param column the index of the first column (0-based)
+	 * @param values the values of the cells
+	 * @throws IOException if the cells can't be recorded in the spool, or if
+	 * 	there's no spool and the flush fails (the cells are kept in that case)
+	 */
+	public void write(String spreadsheetId, String title, int row, int column,
+			List<CellData> values) throws IOException {
+		boolean full;
+		synchronized (this) {
+			for (CellData value : values) {
+				if (spool != null)
+					spool.append(spreadsheetId, title, row, column, value);
+				put(spreadsheetId, new CellKey(title, row, column++), value);
+			}
+			full = size >= maxCells;
+			if (full && spool != null) {
+				if (!flushScheduled) {
+					flushScheduled = true;
+					timer.execute(new Runnable() {
+						public void run() {
+							flushInBackground();
+						}
+					});
+				}
+				return;
+			}
+		}
+		if (full)
+			flushPending();
+	}
+	
+	/**
+	 * Puts a cell in the buffer, replacing a pending value for the same cell.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param key the cell
+	 * @param value the value of the cell
+	 */
+	private synchronized void put(String spreadsheetId, CellKey key, CellData value) {
+		TreeMap<CellKey, CellData> cells = pending.get(spreadsheetId);
+		if (cells == null) {
+			cells = new TreeMap<CellKey, CellData>();
+			pending.put(spreadsheetId, cells);
+		}
+		if (cells.put(key, value) == null)
+			size++;
+	}
+	
+	/**
+	 * Sends all pending cells: one batch update per spreadsheet.
+	 * The cells of a spreadsheet that failed are put back in the buffer
+	 * and appended to the spool again, then the records that were sent
+	 * (or replaced) are committed in the spool.
+	 *
+	 * @throws IOException if a spreadsheet failed, or if a previous flush
+	 * 	on the timer or in the background failed
+	 */
+	public void flush() throws IOException {
+		flushPending();
+		synchronized (this) {
+			throwFailure();
+		}
+	}
+	
+	/**
+	 * Sends all pending cells, as described in {@link #flush()}, without
+	 * throwing the error of a previous flush on the timer or in the background.
+	 *
+	 * @throws IOException if a spreadsheet failed
+	 */
+	private void flushPending() throws IOException {
+		IOException failed = null;
+		boolean commit = true;
+		synchronized (flushLock) {
+			Map<String, TreeMap<CellKey, CellData>> batch;
+			int offset;
+			synchronized (this) {
+				flushScheduled = false;
+				if (size == 0)
+					return;
+				offset = spool == null ? 0 : spool.getPosition();
+				batch = pending;
+				pending = new HashMap<String, TreeMap<CellKey, CellData>>();
+				size = 0;
+			}
+			for (Map.Entry<String, TreeMap<CellKey, CellData>> entry : batch.entrySet()) {
+				String spreadsheetId = entry.getKey();
+				try {
+					send(spreadsheetId, entry.getValue());
+					synchronized (this) {
+						rejections.remove(spreadsheetId);
+					}
+				} catch (IOException e) {
+					failed = e;
+					if (!isRejected(spreadsheetId, e)) {
+						try {
+							requeue(spreadsheetId, entry.getValue());
+						} catch (IOException spoolError) {
+							// Some records before the offset are still needed
+							failed = spoolError;
+							commit = false;
+						}
+					}
+				}
+			}
+			if (spool != null && commit)
+				spool.commit(offset);
+		}
+		if (failed != null)
+			throw failed;
+	}
+	
+	/**
+	 * Flushes on the timer or in the background, keeping the error
+	 * for the next call to {@link #flush()} or {@link #close()}.
+	 */
+	private void flushInBackground() {
+		try {
+			flushPending();
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+			}
+		}
+	}
+	
+	/**
+	 * Throws the error of a flush on the timer or in the background, if any,
+	 * and forgets it.
+	 *
+	 * @throws IOException the error
+	 */
+	private void throwFailure() throws IOException {
+		IOException e = failure;
+		failure = null;
+		if (e != null)
+			throw e;
+	}
+	
+	/**
+	 * Checks if the cells of a spreadsheet should be dropped, because
+	 * Google Sheets rejected them {@link #DEFAULT_MAX_REJECTIONS} times in a row.
+	 * Throttling (429), server errors and I/O errors don't count.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param e the error
+	 * @return true if the cells should be dropped
+	 */
+	private synchronized boolean isRejected(String spreadsheetId, IOException e) {
+		if (!(e instanceof HttpResponseException))
+			return false;
+		int status = ((HttpResponseException)e).getStatusCode();
+		if (status < 400 || status >= 500 || status == 429)
+			return false;
+		Integer count = rejections.get(spreadsheetId);
+		count = count == null ? 1 : count + 1;
+		if (count < DEFAULT_MAX_REJECTIONS) {
+			rejections.put(spreadsheetId, count);
+			return false;
+		}
+		rejections.remove(spreadsheetId);
+		return true;
+	}
+	
+	/**
+	 * Stops the flush timer and sends all pending cells.
+	 * The spool, if any, isn't closed.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (timer != null)
+			timer.shutdown();
+		flush();
+		if (spool != null)
+			spool.force();
+	}
+	
+	/**
+	 * Sends the cells of one spreadsheet in a single batch update.
+	 * Every run of adjacent cells in a row becomes one UpdateCells request.
+	 * A run ending in the likes column and a run starting in the Klout column
+	 * are joined into one run by adding an empty spacer cell.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param cells the cells, ordered by sheet, row and column
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void send(String spreadsheetId, TreeMap<CellKey, CellData> cells) throws IOException {
+		AbstractTwitterSheet sheet = new AbstractTwitterSheet(service, spreadsheetId, null, null);
+		Map<String, Integer> sheetIds = new HashMap<String, Integer>();
+		List<Request> requests = new ArrayList<Request>();
+		CellKey first = null;
+		CellKey last = null;
+		List<CellData> values = null;
+		for (Map.Entry<CellKey, CellData> entry : cells.entrySet()) {
+			CellKey key = entry.getKey();
+			if (last != null && key.title.equals(last.title) && key.row == last.row
+					&& last.column == COLUMN_SPACER - 1 && key.column == COLUMN_SPACER + 1) {
+				values.add(new CellData());
+			}
+			else if (last == null || !key.title.equals(last.title)
+					|| key.row != last.row || key.column != last.column + 1) {
+				if (first != null)
+					requests.add(getUpdateCellsRequest(sheetIds.get(first.title), first, values));
+				if (!sheetIds.containsKey(key.title))
+					sheetIds.put(key.title, sheet.getSheetId(key.title));
+				first = key;
+				values = new ArrayList<CellData>();
+			}
+			values.add(entry.getValue());
+			last = key;
+		}
+		requests.add(getUpdateCellsRequest(sheetIds.get(first.title), first, values));
+		BatchUpdateSpreadsheetRequest batchUpdateRequest =
+				new BatchUpdateSpreadsheetRequest().setRequests(requests);
+		Priority previous = QuotaLimiter.setPriority(Priority.BULK);
+		String operation = SheetMetrics.setOperation(SheetMetrics.METRICS_WRITE);
+		try {
+			service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest)
+					.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+		} finally {
+			QuotaLimiter.setPriority(previous);
+			SheetMetrics.setOperation(operation);
+			for (String title : sheetIds.keySet())
+				RangeCache.getInstance().invalidate(spreadsheetId,
+						new RangeCache.A1Range(title, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		}
+	}
+	
+	/**
+	 * Creates the request that writes a run of adjacent cells.
+	 *
+	 * @param sheetId the ID of the sheet
+	 * @param start the first cell
+	 * @param values the values of the cells
+	 * @return an UpdateCells request
+	 */
+	protected Request getUpdateCellsRequest(int sheetId, CellKey start, List<CellData> values) {
+		UpdateCellsRequest updateCellRequest = new UpdateCellsRequest()
+				.setStart(new GridCoordinate()
+						.setSheetId(sheetId)
+						.setRowIndex(start.row)
+						.setColumnIndex(start.column))
+				.setRows(Arrays.asList(new RowData().setValues(values)))
+				.setFields("userEnteredValue");
+		return new Request().setUpdateCells(updateCellRequest);
+	}
+	
+	/**
+	 * Puts cells that couldn't be sent back into the buffer,
+	 * unless a newer value was written in the meantime.
+	 * Like {@link #write}, every cell that is put back is appended to the
+	 * spool first, so the order of the spool matches the buffer.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param cells the cells that weren't sent
+	 * @throws IOException if a cell can't be appended to the spool
+	 */
+	protected synchronized void requeue(String spreadsheetId, TreeMap<CellKey, CellData> cells) throws IOException {
+		TreeMap<CellKey, CellData> current = pending.get(spreadsheetId);
+		if (current == null) {
+			current = new TreeMap<CellKey, CellData>();
+			pending.put(spreadsheetId, current);
+		}
+		for (Map.Entry<CellKey, CellData> entry : cells.entrySet()) {
+			CellKey key = entry.getKey();
+			if (!current.containsKey(key)) {
+				if (spool != null)
+					spool.append(spreadsheetId, key.title, key.row, key.column, entry.getValue());
+				current.put(key, entry.getValue());
+				size++;
+			}
+		}
+	}
+	
+	/**
+	 * Gets the title of the sheet for an account and a month.
+	 *
+	 * @param account the screenname of a Twitter account
+	 * @param date a date (only the month is important)
+	 * @return the sheet title
+	 */
+	protected String getSheetTitle(String account, Date date) {
+		return new AbstractTwitterSheet(service, null, account, date).getSheetTitle();
+	}
+	
+	/**
+	 * Gets the row of a day in a metrics sheet (the header is row 0).
+	 *
+	 * @param date the date
+	 * @return the row index
+	 */
+	protected static int getRow(Date date) {
+		Calendar cal = Calendar.getInstance();
+		cal.setTime(date);
+		return cal.get(Calendar.DAY_OF_MONTH);
+	}
+}
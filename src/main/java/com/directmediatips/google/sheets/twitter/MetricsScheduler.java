@@ -0,0 +1,419 @@
+package com.directmediatips.google.sheets.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+import com.directmediatips.google.sheets.QuotaLimiter;
+import com.directmediatips.google.sheets.QuotaLimiter.Priority;
+import com.directmediatips.google.sheets.RangeCache;
+import com.directmediatips.google.sheets.SheetExecutor;
+import com.directmediatips.google.sheets.SheetMetrics;
+import com.directmediatips.google.sheets.SheetService;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
+import com.google.api.services.sheets.v4.model.Request;
+
+/**
+ * Writes the metrics of many Twitter accounts in one run. The snapshots are
+ * grouped per spreadsheet; the snapshots of a spreadsheet are written one
+ * batch update after the other (at most {@link #DEFAULT_MAX_ROWS} rows per
+ * batch), while different spreadsheets are written at the same time, see
+ * {@link SheetExecutor}. A failure only affects the accounts involved: if a
+ * batch is rejected as an invalid request (400), its rows are sent one by one
+ * so that every account gets its own {@link Outcome}. Other errors (throttling,
+ * I/O errors) fail every row of the batch, so that we don't add calls when the
+ * quota is exhausted. The sheets that don't exist yet are created in bulk
+ * before a batch is written, see {@link AbstractTwitterSheet#provisionSheets}.
+ * <pre>
+ * List&lt;Outcome&gt; outcomes = MetricsScheduler.fromConfig().run(snapshots);
+ * </pre>
+ */
+public class MetricsScheduler {
+	
+	/** The default maximum number of rows in a batch update. */
+	public static final int DEFAULT_MAX_ROWS = 500;
+	
+	/**
+	 * The metrics of an account on a specific day.
+	 */
+	public static class Snapshot {
+		
+		/** The ID of the spreadsheet, or null for the default spreadsheet of the scheduler. */
+		public final String spreadsheetId;
+		/** The screen name of the Twitter account. */
+		public final String account;
+		/** The day of the metrics. */
+		public final Date date;
+		/** The number of tweets. */
+		public final int tweets;
+		/** The number of friends. */
+		public final int following;
+		/** The number of followers. */
+		public final int followers;
+		/** The number of likes. */
+		public final int likes;
+		
+		/**
+		 * Creates a Snapshot instance for the default spreadsheet.
+		 *
+		 * @param account the screenname of a Twitter account
+		 * @param date the day of the metrics
+		 * @param tweets the number of tweets
+		 * @param following the number of friends
+		 * @param followers the number of followers
+		 * @param likes 	the number of likes
+		 */
+		public Snapshot(String account, Date date, int tweets, int following, int followers, int likes) {
+			this(null, account, date, tweets, following, followers, likes);
+		}
+		
+		/**
+		 * Creates a Snapshot instance.
+		 *
+		 * @param spreadsheetId an ID of a Google sheets document, or null for the default spreadsheet
+		 * @param account the screenname of a Twitter account
+		 * @param date the day of the metrics
+		 * @param tweets the number of tweets
+		 * @param following the number of friends
+		 * @param followers the number of followers
+		 * @param likes 	the number of likes
+		 */
+		public Snapshot(String spreadsheetId, String account, Date date,
+				int tweets, int following, int followers, int likes) {
+			this.spreadsheetId = spreadsheetId;
+			this.account = account;
+			this.date = date;
+			this.tweets = tweets;
+			this.following = following;
+			this.followers = followers;
+			this.likes = likes;
+		}
+	}
+	
+	/**
+	 * The result of writing a snapshot.
+	 */
+	public static class Outcome {
+		
+		/** The snapshot. */
+		public final Snapshot snapshot;
+		/** The ID of the spreadsheet the snapshot was written to. */
+		public final String spreadsheetId;
+		/** The error, or null if the snapshot was written. */
+		public final Exception error;
+		
+		/**
+		 * Creates an Outcome instance.
+		 *
+		 * @param snapshot the snapshot
+		 * @param spreadsheetId the ID of the spreadsheet
+		 * @param error the error, or null
+		 */
+		protected Outcome(Snapshot snapshot, String spreadsheetId, Exception error) {
+			this.snapshot = snapshot;
+			this.spreadsheetId = spreadsheetId;
+			this.error = error;
+		}
+		
+		/**
+		 * Checks if the snapshot was written.
+		 *
+		 * @return true, if there was no error
+		 */
+		public boolean isSuccess() {
+			return error == null;
+		}
+	}
+	
+	/** The Google Sheets service. */
+	protected final Sheets service;
+	/** The ID of the spreadsheet for snapshots that don't have one. */
+	protected final String spreadsheetId;
+	/** The maximum number of rows in a batch update. */
+	protected final int maxRows;
+	
+	/**
+	 * Creates a MetricsScheduler instance.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	the ID of the spreadsheet for snapshots that don't have one
+	 */
+	public MetricsScheduler(Sheets service, String spreadsheetId) {
+		this(service, spreadsheetId, DEFAULT_MAX_ROWS);
+	}
+	
+	/**
+	 * Creates a MetricsScheduler instance.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	the ID of the spreadsheet for snapshots that don't have one
+	 * @param maxRows	the maximum number of rows in a batch update
+	 */
+	public MetricsScheduler(Sheets service, String spreadsheetId, int maxRows) {
+		if (maxRows < 1)
+			throw new IllegalArgumentException("At least one row per batch expected: " + maxRows);
+		this.service = service;
+		this.spreadsheetId = spreadsheetId;
+		this.maxRows = maxRows;
+	}
+	
+	/**
+	 * Creates a MetricsScheduler instance for the spreadsheet with the
+	 * Twitter metrics in "google/sheet.properties", reading the configuration
+	 * and creating the Sheets service only once.
+	 *
+	 * @return a MetricsScheduler instance
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static MetricsScheduler fromConfig() throws IOException {
+		return new MetricsScheduler(SheetService.getSheets(), SheetService.getSheetProperty("twitterMetrics"));
+	}
+	
+	/**
+	 * Creates next month's sheets of a list of accounts in the default
+	 * spreadsheet, see {@link AbstractTwitterSheet#provisionNextMonth}.
+	 * Call this some time before the end of the month.
+	 *
+	 * @param accounts the screen names of Twitter accounts
+	 * @return the IDs of the sheets that were created, with their title as key
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Map<String, Integer> provisionNextMonth(Collection<String> accounts) throws IOException {
+		return AbstractTwitterSheet.provisionNextMonth(service, spreadsheetId, accounts, new Date());
+	}
+	
+	/**
+	 * Writes the snapshots and waits until all of them are done.
+	 *
+	 * @param snapshots the snapshots
+	 * @return the outcomes, in the order of the snapshots
+	 * @throws InterruptedIOException if the thread was interrupted while waiting
+	 */
+	public List<Outcome> run(Collection<Snapshot> snapshots) throws InterruptedIOException {
+		try {
+			return runAsync(snapshots).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing metrics");
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Writes the snapshots asynchronously: one task per spreadsheet,
+	 * see {@link SheetExecutor}.
+	 *
+	 * @param snapshots the snapshots
+	 * @return the future outcomes, in the order of the snapshots
+	 */
+	public CompletableFuture<List<Outcome>> runAsync(Collection<Snapshot> snapshots) {
+		final List<Snapshot> order = new ArrayList<Snapshot>(snapshots);
+		final Map<String, List<Integer>> groups = new LinkedHashMap<String, List<Integer>>();
+		for (int i = 0; i < order.size(); i++) {
+			Snapshot snapshot = order.get(i);
+			String id = snapshot.spreadsheetId == null ? spreadsheetId : snapshot.spreadsheetId;
+			List<Integer> group = groups.get(id);
+			if (group == null) {
+				group = new ArrayList<Integer>();
+				groups.put(id, group);
+			}
+			group.add(i);
+		}
+		final Outcome[] outcomes = new Outcome[order.size()];
+		List<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+		for (final Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+			tasks.add(SheetExecutor.getInstance().submit(group.getKey(), new SheetExecutor.IOCallable<Void>() {
+				public Void call() {
+					List<Snapshot> batch = new ArrayList<Snapshot>(group.getValue().size());
+					for (int i : group.getValue())
+						batch.add(order.get(i));
+					List<Outcome> written = write(group.getKey(), batch);
+					for (int i = 0; i < written.size(); i++)
+						outcomes[group.getValue().get(i)] = written.get(i);
+					return null;
+				}
+			}));
+		}
+		return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]))
+				.thenApply(new Function<Void, List<Outcome>>() {
+			public List<Outcome> apply(Void done) {
+				return Arrays.asList(outcomes);
+			}
+		});
+	}
+	
+	/**
+	 * Writes the snapshots of one spreadsheet, one batch after the other.
+	 * No exception is thrown: errors are reported per snapshot.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param snapshots the snapshots for that spreadsheet
+	 * @return the outcomes, in the order of the snapshots
+	 */
+	protected List<Outcome> write(String spreadsheetId, List<Snapshot> snapshots) {
+		List<Outcome> outcomes = new ArrayList<Outcome>(snapshots.size());
+		for (int from = 0; from < snapshots.size(); from += maxRows)
+			outcomes.addAll(writeBatch(spreadsheetId,
+					snapshots.subList(from, Math.min(from + maxRows, snapshots.size()))));
+		return outcomes;
+	}
+	
+	/**
+	 * Writes a batch of snapshots to a spreadsheet in one batch update.
+	 * If that update is an invalid request, every snapshot is sent on its own.
+	 * If the sheets can't be created in bulk because of an invalid request,
+	 * they are looked up (and created) one by one; any other error of the
+	 * bulk creation fails the whole batch.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param snapshots the snapshots for that spreadsheet
+	 * @return the outcomes, in the order of the snapshots
+	 */
+	protected List<Outcome> writeBatch(String spreadsheetId, List<Snapshot> snapshots) {
+		Outcome[] outcomes = new Outcome[snapshots.size()];
+		List<Integer> pending = new ArrayList<Integer>();
+		List<Request> requests = new ArrayList<Request>();
+		Set<String> titles = new LinkedHashSet<String>();
+		for (Snapshot snapshot : snapshots) {
+			if (snapshot.date != null)
+				titles.add(new TwitterMetrics(service, spreadsheetId, snapshot.account, snapshot.date).getSheetTitle());
+		}
+		IOException provisioning = null;
+		try {
+			AbstractTwitterSheet.provisionSheets(service, spreadsheetId, titles);
+		} catch (IOException e) {
+			if (!isInvalidRequest(e)) {
+				for (int i = 0; i < snapshots.size(); i++)
+					outcomes[i] = new Outcome(snapshots.get(i), spreadsheetId, e);
+				return Arrays.asList(outcomes);
+			}
+			// the sheets are looked up (and created) one by one below
+			provisioning = e;
+		}
+		for (int i = 0; i < snapshots.size(); i++) {
+			Snapshot snapshot = snapshots.get(i);
+			try {
+				TwitterMetrics sheet = new TwitterMetrics(service, spreadsheetId, snapshot.account, snapshot.date);
+				String title = sheet.getSheetTitle();
+				requests.add(TwitterMetrics.getUpdateRequest(sheet.getSheetId(title), snapshot.date,
+						snapshot.tweets, snapshot.following, snapshot.followers, snapshot.likes));
+				pending.add(i);
+			} catch (IOException e) {
+				if (provisioning != null)
+					e.addSuppressed(provisioning);
+				outcomes[i] = new Outcome(snapshot, spreadsheetId, e);
+			} catch (RuntimeException e) {
+				if (provisioning != null)
+					e.addSuppressed(provisioning);
+				outcomes[i] = new Outcome(snapshot, spreadsheetId, e);
+			}
+		}
+		if (!requests.isEmpty()) {
+			try {
+				send(spreadsheetId, requests);
+				for (int i : pending)
+					outcomes[i] = new Outcome(snapshots.get(i), spreadsheetId, null);
+			} catch (IOException e) {
+				retry(spreadsheetId, snapshots, pending, requests, outcomes, e);
+			} catch (RuntimeException e) {
+				retry(spreadsheetId, snapshots, pending, requests, outcomes, e);
+			}
+			for (String title : titles)
+				RangeCache.getInstance().invalidate(spreadsheetId,
+						new RangeCache.A1Range(title, 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE));
+		}
+		return Arrays.asList(outcomes);
+	}
+	
+	/**
+	 * Sends the rows of a failed batch one by one if the batch was an invalid
+	 * request; otherwise every row of the batch fails with the original error.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param snapshots the snapshots of the batch
+	 * @param pending the indexes of the snapshots that were in the batch update
+	 * @param requests the requests of the batch update, one per pending snapshot
+	 * @param outcomes the outcomes, completed by this method
+	 * @param error the error of the batch update
+	 */
+	protected void retry(String spreadsheetId, List<Snapshot> snapshots, List<Integer> pending,
+			List<Request> requests, Outcome[] outcomes, Exception error) {
+		for (int r = 0; r < requests.size(); r++) {
+			int i = pending.get(r);
+			Exception e = error;
+			if (requests.size() > 1 && isInvalidRequest(error)) {
+				try {
+					send(spreadsheetId, requests.subList(r, r + 1));
+					e = null;
+				} catch (IOException ioe) {
+					e = ioe;
+				} catch (RuntimeException re) {
+					e = re;
+				}
+			}
+			outcomes[i] = new Outcome(snapshots.get(i), spreadsheetId, e);
+		}
+	}
+	
+	/**
+	 * Checks if an error means that Google Sheets rejected a request as invalid,
+	 * e.g. because one of its rows refers to a sheet that doesn't exist.
+	 * Only then it makes sense to send the rows of a batch one by one.
+	 *
+	 * @param e an error
+	 * @return true for a 400 (bad request) response
+	 */
+	protected static boolean isInvalidRequest(Exception e) {
+		return e instanceof HttpResponseException
+				&& ((HttpResponseException)e).getStatusCode() == 400;
+	}
+	
+	/**
+	 * Sends a batch update with {@link Priority#BULK} priority.
+	 *
+	 * @param spreadsheetId an ID of a Google sheets document
+	 * @param requests the requests
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void send(String spreadsheetId, List<Request> requests) throws IOException {
+		BatchUpdateSpreadsheetRequest batchUpdateRequest =
+				new BatchUpdateSpreadsheetRequest().setRequests(new ArrayList<Request>(requests));
+		Priority previous = QuotaLimiter.setPriority(Priority.BULK);
+		String operation = SheetMetrics.setOperation(SheetMetrics.METRICS_WRITE);
+		try {
+			service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest)
+					.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+		} finally {
+			QuotaLimiter.setPriority(previous);
+			SheetMetrics.setOperation(operation);
+		}
+	}
+}
@@ -0,0 +1,319 @@
+package com.directmediatips.google.sheets.twitter;
+
+/*
+ * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the  * specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.google.api.services.sheets.v4.model.CellData;
+import com.google.api.services.sheets.v4.model.ExtendedValue;
+
+/**
+ * Append-only, memory-mapped file in which pending cell updates are recorded
+ * before they are sent to Google Sheets, so that they survive a crash of the
+ * JVM or an outage of the API. Every record is checksummed; a record that was
+ * only partially written is ignored when the spool is opened. Once the records
+ * up to a certain offset are sent, they are committed; records before that
+ * offset that are still needed must be appended again first. As soon as the
+ * records that weren't committed fit in the space before them, they are moved
+ * to the beginning of the file, so the file doesn't grow under steady load.
+ */
+public class MetricsSpool implements Closeable {
+	
+	/** The initial size of the file. */
+	public static final int DEFAULT_CAPACITY = 1024 * 1024;
+	
+	/** Marks a file as a spool. */
+	private static final int MAGIC = 0x444d5453;
+	/** The size of the header: magic number, reserved int, committed offset. */
+	private static final int HEADER = 16;
+	/** The offset of the committed offset in the header. */
+	private static final int COMMITTED = 8;
+	/** The size of a record header: length and checksum. */
+	private static final int RECORD_HEADER = 8;
+	
+	/** Value type of an empty cell. */
+	private static final byte EMPTY = 0;
+	/** Value type of a number. */
+	private static final byte NUMBER = 1;
+	/** Value type of a String. */
+	private static final byte STRING = 2;
+	
+	/**
+	 * A cell update read from the spool.
+	 */
+	public static class Record {
+		
+		/** The ID of the spreadsheet. */
+		public final String spreadsheetId;
+		/** The title of the sheet. */
+		public final String title;
+		/** The row index (0-based). */
+		public final int row;
+		/** The column index (0-based). */
+		public final int column;
+		/** The value of the cell. */
+		public final CellData value;
+		
+		/**
+		 * Creates a Record instance.
+		 *
+		 * @param spreadsheetId the ID of the spreadsheet
+		 * @param title the title of the sheet
+		 * @param row the row index
+		 * @param column the column index
+		 * @param value the value of the cell
+		 */
+		Record(String spreadsheetId, String title, int row, int column, CellData value) {
+			this.spreadsheetId = spreadsheetId;
+			this.title = title;
+			this.row = row;
+			this.column = column;
+			this.value = value;
+		}
+	}
+	
+	/** The file. */
+	private final RandomAccessFile file;
+	/** The mapped contents of the file. */
+	private MappedByteBuffer buffer;
+	/** The offset where the next record will be written. */
+	private int position;
+	
+	/**
+	 * Opens a spool, creating the file if it doesn't exist. Records that
+	 * were written but not committed before are kept.
+	 *
+	 * @param path	the path to the spool file
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public MetricsSpool(File path) throws IOException {
+		file = new RandomAccessFile(path, "rw");
+		boolean created = file.length() < HEADER;
+		map((int)Math.max(file.length(), DEFAULT_CAPACITY));
+		if (created || buffer.getInt(0) != MAGIC) {
+			buffer.putInt(0, MAGIC);
+			buffer.putLong(COMMITTED, HEADER);
+			buffer.putInt(HEADER, 0);
+		}
+		position = getCommitted();
+		while (readRecord(position) != null)
+			position += RECORD_HEADER + buffer.getInt(position);
+		// Make sure a partially written record at the end isn't mistaken for data
+		if (position + RECORD_HEADER <= buffer.capacity())
+			buffer.putInt(position, 0);
+	}
+	
+	/**
+	 * Appends a cell update.
+	 *
+	 * @param spreadsheetId the ID of the spreadsheet
+	 * @param title the title of the sheet
+	 * @param row the row index (0-based)
+	 * @param column the column index (0-based)
+	 * @param value the value of the cell
+	 * @return the offset right after the record
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public synchronized int append(String spreadsheetId, String title, int row, int column,
+			CellData value) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeUTF(spreadsheetId);
+		out.writeUTF(title);
+		out.writeInt(row);
+		out.writeInt(column);
+		ExtendedValue v = value.getUserEnteredValue();
+		if (v != null && v.getNumberValue() != null) {
+			out.writeByte(NUMBER);
+			out.writeDouble(v.getNumberValue());
+		}
+		else if (v != null && v.getStringValue() != null) {
+			out.writeByte(STRING);
+			out.writeUTF(v.getStringValue());
+		}
+		else {
+			out.writeByte(EMPTY);
+		}
+		byte[] payload = bytes.toByteArray();
+		int end = position + RECORD_HEADER + payload.length;
+		if (end + RECORD_HEADER > buffer.capacity())
+			map(Math.max(buffer.capacity() * 2, end + RECORD_HEADER));
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+		// The terminator goes first, the length last, so a torn write is never read back
+		buffer.putInt(end, 0);
+		buffer.position(position + RECORD_HEADER);
+		buffer.put(payload);
+		buffer.putInt(position + 4, (int)crc.getValue());
+		buffer.putInt(position, payload.length);
+		position = end;
+		return end;
+	}
+	
+	/**
+	 * Reads the records that weren't committed yet.
+	 *
+	 * @return a list of records, in the order they were appended
+	 */
+	public synchronized List<Record> getPending() {
+		List<Record> records = new ArrayList<Record>();
+		int offset = getCommitted();
+		Record record;
+		while (offset < position && (record = readRecord(offset)) != null) {
+			records.add(record);
+			offset += RECORD_HEADER + buffer.getInt(offset);
+		}
+		return records;
+	}
+	
+	/**
+	 * Gets the offset right after the last record.
+	 *
+	 * @return an offset
+	 */
+	public synchronized int getPosition() {
+		return position;
+	}
+	
+	/**
+	 * Marks all the records up to an offset as sent. If the records that
+	 * are left fit before the first of them, they are moved to the beginning
+	 * of the file.
+	 *
+	 * @param offset	an offset returned by {@link #append} or {@link #getPosition()}
+	 */
+	public synchronized void commit(int offset) {
+		if (offset <= getCommitted())
+			return;
+		buffer.putLong(COMMITTED, Math.min(offset, position));
+		rewind();
+	}
+	
+	/**
+	 * Forces the contents of the spool to the storage device.
+	 */
+	public synchronized void force() {
+		buffer.force();
+	}
+	
+	@Override
+	public synchronized void close() throws IOException {
+		buffer.force();
+		file.close();
+	}
+	
+	/**
+	 * Gets the offset of the first record that wasn't committed.
+	 *
+	 * @return an offset
+	 */
+	private int getCommitted() {
+		return (int)buffer.getLong(COMMITTED);
+	}
+	
+	/**
+	 * Moves the records that weren't committed to the beginning of the file,
+	 * if they fit (with a terminator) in the committed space before them.
+	 * The records are copied and forced to the storage device before the
+	 * committed offset is changed, so a crash in between leaves the original
+	 * records intact.
+	 */
+	private void rewind() {
+		int committed = getCommitted();
+		int length = position - committed;
+		if (committed == HEADER || HEADER + length + RECORD_HEADER > committed)
+			return;
+		if (length > 0) {
+			byte[] live = new byte[length];
+			ByteBuffer src = buffer.duplicate();
+			src.position(committed);
+			src.get(live);
+			ByteBuffer dst = buffer.duplicate();
+			dst.position(HEADER);
+			dst.put(live);
+		}
+		buffer.putInt(HEADER + length, 0);
+		buffer.force();
+		buffer.putLong(COMMITTED, HEADER);
+		position = HEADER + length;
+	}
+	
+	/**
+	 * Maps the file, growing it if necessary.
+	 *
+	 * @param capacity	the size of the mapping
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void map(int capacity) throws IOException {
+		if (file.length() < capacity)
+			file.setLength(capacity);
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+	
+	/**
+	 * Reads a record, checking its length and checksum.
+	 *
+	 * @param offset	the offset of the record
+	 * @return the record, or null if there's no valid record at the offset
+	 */
+	private Record readRecord(int offset) {
+		if (offset + RECORD_HEADER > buffer.capacity())
+			return null;
+		int length = buffer.getInt(offset);
+		if (length <= 0 || offset + RECORD_HEADER + length > buffer.capacity())
+			return null;
+		byte[] payload = new byte[length];
+		for (int i = 0; i < length; i++)
+			payload[i] = buffer.get(offset + RECORD_HEADER + i);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, length);
+		if ((int)crc.getValue() != buffer.getInt(offset + 4))
+			return null;
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+			String spreadsheetId = in.readUTF();
+			String title = in.readUTF();
+			int row = in.readInt();
+			int column = in.readInt();
+			CellData value = new CellData();
+			switch (in.readByte()) {
+			case NUMBER:
+				value.setUserEnteredValue(new ExtendedValue().setNumberValue(in.readDouble()));
+				break;
+			case STRING:
+				value.setUserEnteredValue(new ExtendedValue().setStringValue(in.readUTF()));
+				break;
+			default:
+				break;
+			}
+			return new Record(spreadsheetId, title, row, column, value);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+}
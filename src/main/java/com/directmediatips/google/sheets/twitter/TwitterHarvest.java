@@ -16,13 +16,26 @@ package com.directmediatips.google.sheets.twitter;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
+import com.directmediatips.google.sheets.ChunkedRangeWriter;
+import com.directmediatips.google.sheets.ParallelDecoder;
+import com.directmediatips.google.sheets.RangeCache;
+import com.directmediatips.google.sheets.RangeIterator;
+import com.directmediatips.google.sheets.RowCodec;
+import com.directmediatips.google.sheets.RowSchema;
+import com.directmediatips.google.sheets.RowTable;
+import com.directmediatips.google.sheets.SheetExecutor;
+import com.directmediatips.google.sheets.SheetMetrics;
 import com.directmediatips.google.sheets.SheetService;
 import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesRequest;
 import com.google.api.services.sheets.v4.model.ValueRange;
 
 /**
@@ -35,6 +48,9 @@ public class TwitterHarvest {
 	 */
 	public class Account {
 		
+		/** The account ID (negative for rows that don't have an ID yet). */
+		public long id;
+		
 		/** The screen name. */
 		public String screenname;
 		
@@ -63,6 +79,17 @@ public class TwitterHarvest {
 	/** The range where we can find harvest info in the Google spreadsheet. */
 	public static final String RANGE = "%s!A1:E";
 	
+	/** The columns of a harvest sheet. */
+	public static final RowSchema SCHEMA = new RowSchema.Builder()
+			.addLong("id")
+			.addString("screenname")
+			.addInt("followFriends")
+			.addInt("followFollowers")
+			.addInt("retweet")
+			.build();
+	/** Reads and writes harvest sheets, see {@link RowCodec}. */
+	protected static final RowCodec CODEC = new RowCodec(SCHEMA);
+	
 	/** The Google Sheets service. */
 	protected Sheets service;
 	/** The ID of the spreadsheet with the Twitter information. */
@@ -87,27 +114,147 @@ public class TwitterHarvest {
 		this.account = account;
 	}
 	
+	/**
+	 * Creates a TwitterHarvest instance for a specific service and spreadsheet.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 * @param account the screen name of a Twitter account
+	 */
+	public TwitterHarvest(Sheets service, String spreadsheetId, String account) {
+		this.service = service;
+		this.spreadsheetId = spreadsheetId;
+		this.account = account;
+	}
+	
 	/**
 	 * Reads Harvest info from the Google spreadsheet.
+	 * The rows come from {@link #getHarvestTable()}, so they are cached and
+	 * no cell is parsed from a String; large sheets are turned into Account
+	 * objects in parallel, see {@link ParallelDecoder}.
+	 * Rows without an ID get a placeholder ID that only depends on
+	 * their position, see {@link HarvestStore#getPlaceholderId(int)}.
 	 *
 	 * @return a Map with account IDs as key and harvest info as value.
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public Map<Long, Account> getHarvestData() throws IOException {
-		Map<Long, Account> map = new HashMap<Long, Account>();
-		ValueRange response = service.spreadsheets().values()
-	            .get(spreadsheetId, String.format(RANGE, account))
-	            .execute();
-		List<List<Object>> values = response.getValues();
-		if (values != null && values.size() > 0) {
-			for (List<Object> row : values) {
-				map.put(getId(row.get(0).toString()),
-						getAccount(row));
+		final RowTable table = getHarvestTable();
+		if (table.size() == 0)
+			return new HashMap<Long, Account>();
+		List<Account> accounts = ParallelDecoder.getInstance().decode(table.size(),
+				new ParallelDecoder.Decoder<Account>() {
+			public Account decode(int row) {
+				Account harvest = getAccount(table, row);
+				long id = table.getLong(0, row);
+				harvest.id = id > 0 ? id : HarvestStore.getPlaceholderId(row);
+				return harvest;
 			}
-		}
+		});
+		Map<Long, Account> map = new HashMap<Long, Account>(Math.max(16, accounts.size() * 4 / 3 + 1));
+		for (Account harvest : accounts)
+			map.put(harvest.id, harvest);
 		return map;
 	}
 	
+	/**
+	 * Reads the harvest info from the Google spreadsheet into primitive
+	 * columns (see {@link #SCHEMA}), without creating a List per row.
+	 * Rows without a valid ID have 0 as ID. The table is cached, see
+	 * {@link RangeCache}; our own writes invalidate it.
+	 *
+	 * @return a table with the rows in the order of the spreadsheet; don't change it
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public RowTable getHarvestTable() throws IOException {
+		String operation = SheetMetrics.setOperation(SheetMetrics.HARVEST_READ);
+		try {
+			return RangeCache.getInstance().get(service, spreadsheetId,
+					String.format(RANGE, account), CODEC, RangeCache.DEFAULT_TTL);
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
+	/**
+	 * Reads the harvest info from the Google spreadsheet into a compact
+	 * {@link HarvestStore}, without creating an object per row.
+	 * Rows without a valid ID are stored with a placeholder ID
+	 * that only depends on their position in the sheet.
+	 *
+	 * @return a store indexed by account ID
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public HarvestStore getHarvestStore() throws IOException {
+		return getHarvestStore(getHarvestTable());
+	}
+	
+	/**
+	 * Copies a harvest table into a compact {@link HarvestStore}.
+	 *
+	 * @param table	a table with harvest data, see {@link #SCHEMA}
+	 * @return a store indexed by account ID
+	 */
+	protected HarvestStore getHarvestStore(RowTable table) {
+		HarvestStore store = new HarvestStore(table.size());
+		for (int row = 0; row < table.size(); row++) {
+			long id = table.getLong(0, row);
+			store.add(id > 0 ? id : HarvestStore.getPlaceholderId(row), table.getString(1, row),
+					table.getInt(2, row), table.getInt(3, row), table.getInt(4, row));
+		}
+		return store;
+	}
+	
+	/**
+	 * Iterates over the harvest info in the Google spreadsheet, window by window.
+	 * The first accounts are available as soon as the first window is downloaded,
+	 * and only two windows are kept in memory. Close the iterator if you stop
+	 * before the end.
+	 *
+	 * @return an iterator over Account objects, with their id set
+	 */
+	public RangeIterator<Account> iterateHarvestData() {
+		String operation = SheetMetrics.setOperation(SheetMetrics.HARVEST_READ);
+		try {
+			return newHarvestIterator();
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
+	/**
+	 * Creates the iterator of {@link #iterateHarvestData()}.
+	 *
+	 * @return an iterator over Account objects, with their id set
+	 */
+	private RangeIterator<Account> newHarvestIterator() {
+		return new RangeIterator<Account>(service, spreadsheetId, account, "A", "E", 1,
+				RangeIterator.DEFAULT_WINDOW_ROWS, new RangeIterator.RowDecoder<Account>() {
+			public Account decode(int index, List<Object> row) {
+				Account harvest = getAccount(row);
+				harvest.id = getId(row.get(0).toString(), index);
+				return harvest;
+			}
+		});
+	}
+	
+	/**
+	 * Reads the raw harvest rows from the Google spreadsheet.
+	 * The rows are cached, see {@link RangeCache}; our own writes invalidate them.
+	 *
+	 * @return the rows in the order of the spreadsheet, or null if the sheet is empty
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected List<List<Object>> getHarvestRows() throws IOException {
+		String operation = SheetMetrics.setOperation(SheetMetrics.HARVEST_READ);
+		try {
+			return RangeCache.getInstance().get(service, spreadsheetId,
+					String.format(RANGE, account), RangeCache.DEFAULT_TTL);
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
 	/**
 	 * Converts a String into a long, but returns a unique negative
 	 * number if not successful. Most of the times the String will be
@@ -125,6 +272,24 @@ public class TwitterHarvest {
 		}
 	}
 	
+	/**
+	 * Converts a String into a long, but returns a placeholder ID
+	 * if not successful, see {@link HarvestStore#getPlaceholderId(int)}.
+	 * Unlike {@link #getId(String)}, this method doesn't change any state,
+	 * so it can be used to decode rows in parallel.
+	 * @param id	the String with the id
+	 * @param row	the index of the row with the id (0-based)
+	 * @return	a long value
+	 */
+	protected long getId(String id, int row) {
+		try {
+			return Long.parseLong(id);
+		}
+		catch(NumberFormatException nfe) {
+			return HarvestStore.getPlaceholderId(row);
+		}
+	}
+	
 	/**
 	 * Converts a row of harvest data into an Account object.
 	 * @param row	a row of data obtained from a Google spreadsheet
@@ -148,10 +313,232 @@ public class TwitterHarvest {
 	public void update(List<List<Object>> data) throws IOException {
 		ValueRange valueRange = new ValueRange();
         valueRange.setValues(data);
-        service.spreadsheets()
-        	.values()
-        	.update(spreadsheetId, String.format(RANGE, account), valueRange)
-            .setValueInputOption("RAW")
-            .execute();
+        String operation = SheetMetrics.setOperation(SheetMetrics.HARVEST_WRITE);
+        try {
+            service.spreadsheets()
+            	.values()
+            	.update(spreadsheetId, String.format(RANGE, account), valueRange)
+                .setValueInputOption("RAW")
+                .setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS))
+                .execute();
+        } finally {
+            SheetMetrics.setOperation(operation);
+        }
+        RangeCache.getInstance().invalidate(spreadsheetId, String.format(RANGE, account));
+	}
+	
+	/**
+	 * Converts a row of a harvest table into an Account object.
+	 * The ID isn't set.
+	 *
+	 * @param table	a table with harvest data, see {@link #SCHEMA}
+	 * @param row	the index of a row
+	 * @return	an Account object
+	 */
+	protected Account getAccount(RowTable table, int row) {
+		Account harvest = new Account();
+		harvest.screenname = table.getString(1, row);
+		harvest.followFriends = table.getInt(2, row);
+		harvest.followFollowers = table.getInt(3, row);
+		harvest.retweet = table.getInt(4, row);
+		return harvest;
+	}
+	
+	/**
+	 * Updates the spreadsheet with harvest data stored in columns
+	 * (see {@link #SCHEMA}), streaming the rows into a single request.
+	 *
+	 * @param table	the harvest data as stored in the database
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public void update(RowTable table) throws IOException {
+		String operation = SheetMetrics.setOperation(SheetMetrics.HARVEST_WRITE);
+		try {
+			CODEC.write(service, spreadsheetId, String.format(RANGE, account), table, RowCodec.RAW);
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+		RangeCache.getInstance().invalidate(spreadsheetId, String.format(RANGE, account));
+	}
+	
+	/**
+	 * Updates the spreadsheet with the data as stored in the database.
+	 * The rows are sent in windows, see {@link ChunkedRangeWriter},
+	 * and rows beyond the last row that is written are cleared.
+	 *
+	 * @param rows an iterator over the harvest data as stored in the database
+	 * @return the number of rows that were written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public int update(Iterator<List<Object>> rows) throws IOException {
+		String operation = SheetMetrics.setOperation(SheetMetrics.HARVEST_WRITE);
+		try {
+			return new ChunkedRangeWriter(service, spreadsheetId, account, "A", "E", 1)
+				.write(rows);
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
+	/**
+	 * Updates the spreadsheet with the data as stored in the database, but
+	 * only sends the rows that are different from what is in the spreadsheet.
+	 * Changed, added and deleted rows are grouped into contiguous ranges
+	 * that are written with a single batch update.
+	 *
+	 * @param data a two-dimensional array with harvest data as stored in the database
+	 * @return the number of cells that didn't need to be written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public int updateChanged(List<List<Object>> data) throws IOException {
+		// Compare with what is in the spreadsheet now, not with a cached copy
+		RangeCache.getInstance().invalidate(spreadsheetId, String.format(RANGE, account));
+		List<List<Object>> current = getHarvestRows();
+		if (current == null)
+			current = new ArrayList<List<Object>>();
+		int rows = Math.max(data.size(), current.size());
+		List<ValueRange> ranges = new ArrayList<ValueRange>();
+		List<List<Object>> run = null;
+		int start = 0;
+		int skipped = 0;
+		for (int i = 0; i < rows; i++) {
+			List<Object> row = i < data.size() ? data.get(i) : getEmptyRow();
+			List<Object> old = i < current.size() ? current.get(i) : null;
+			if (old != null && isSameRow(row, old)) {
+				skipped += row.size();
+				if (run != null) {
+					ranges.add(getValueRange(start, run));
+					run = null;
+				}
+			}
+			else {
+				if (run == null) {
+					run = new ArrayList<List<Object>>();
+					start = i;
+				}
+				run.add(row);
+			}
+		}
+		if (run != null)
+			ranges.add(getValueRange(start, run));
+		if (!ranges.isEmpty()) {
+			String operation = SheetMetrics.setOperation(SheetMetrics.HARVEST_WRITE);
+			try {
+				service.spreadsheets()
+					.values()
+					.batchUpdate(spreadsheetId, new BatchUpdateValuesRequest()
+						.setValueInputOption("RAW")
+						.setData(ranges))
+					.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS))
+					.execute();
+			} finally {
+				SheetMetrics.setOperation(operation);
+			}
+			RangeCache.getInstance().invalidate(spreadsheetId, String.format(RANGE, account));
+		}
+		return skipped;
+	}
+	
+	/**
+	 * Compares a row of new data with a row that is in the spreadsheet.
+	 * Values are compared as Strings, because that's how they are read.
+	 *
+	 * @param row a row with new data
+	 * @param old a row obtained from the Google spreadsheet
+	 * @return true, if the row doesn't need to be written
+	 */
+	protected boolean isSameRow(List<Object> row, List<Object> old) {
+		int n = Math.max(row.size(), old.size());
+		for (int i = 0; i < n; i++) {
+			String a = i < row.size() && row.get(i) != null ? row.get(i).toString() : "";
+			String b = i < old.size() && old.get(i) != null ? old.get(i).toString() : "";
+			if (!a.equals(b))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Creates a row that clears a row of harvest data.
+	 *
+	 * @return a row with five empty Strings
+	 */
+	protected List<Object> getEmptyRow() {
+		List<Object> row = new ArrayList<Object>();
+		for (int i = 0; i < 5; i++)
+			row.add("");
+		return row;
+	}
+	
+	/**
+	 * Creates a value range for a run of rows.
+	 *
+	 * @param start the index of the first row (0-based)
+	 * @param rows the rows
+	 * @return a ValueRange covering exactly these rows
+	 */
+	protected ValueRange getValueRange(int start, List<List<Object>> rows) {
+		return new ValueRange()
+				.setRange(String.format("%s!A%d:E%d", account, start + 1, start + rows.size()))
+				.setValues(rows);
+	}
+	
+	/**
+	 * Reads Harvest info from the Google spreadsheet asynchronously,
+	 * see {@link SheetExecutor}.
+	 *
+	 * @return a future Map with account IDs as key and harvest info as value.
+	 */
+	public CompletableFuture<Map<Long, Account>> getHarvestDataAsync() {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Map<Long, Account>>() {
+			public Map<Long, Account> call() throws IOException {
+				return getHarvestData();
+			}
+		});
+	}
+	
+	/**
+	 * Reads harvest info from the Google spreadsheet into a compact store
+	 * asynchronously, see {@link SheetExecutor}.
+	 *
+	 * @return a future store indexed by account ID
+	 */
+	public CompletableFuture<HarvestStore> getHarvestStoreAsync() {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<HarvestStore>() {
+			public HarvestStore call() throws IOException {
+				return getHarvestStore();
+			}
+		});
+	}
+	
+	/**
+	 * Updates the spreadsheet with the data as stored in the database
+	 * asynchronously, see {@link SheetExecutor}.
+	 *
+	 * @param data a two-dimensional array with harvest data as stored in the database
+	 * @return a future that completes when the data is written
+	 */
+	public CompletableFuture<Void> updateAsync(final List<List<Object>> data) {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Void>() {
+			public Void call() throws IOException {
+				update(data);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Sends the rows that changed asynchronously, see {@link #updateChanged(List)}
+	 * and {@link SheetExecutor}.
+	 *
+	 * @param data a two-dimensional array with harvest data as stored in the database
+	 * @return the future number of cells that didn't need to be written
+	 */
+	public CompletableFuture<Integer> updateChangedAsync(final List<List<Object>> data) {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Integer>() {
+			public Integer call() throws IOException {
+				return updateChanged(data);
+			}
+		});
 	}
 }
@@ -1,7 +1,5 @@
 package com.directmediatips.google.sheets.twitter;
 
-import java.io.FileInputStream;
-
 /*
  * Copyright 2017, Bruno Lowagie, Wil-Low BVBA
  * 
@@ -23,8 +21,10 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
-import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 
+import com.directmediatips.google.sheets.SheetExecutor;
+import com.directmediatips.google.sheets.SheetMetrics;
 import com.directmediatips.google.sheets.SheetService;
 import com.google.api.services.sheets.v4.Sheets;
 import com.google.api.services.sheets.v4.model.BatchUpdateSpreadsheetRequest;
@@ -69,11 +69,38 @@ public class TwitterMetrics extends AbstractTwitterSheet {
 			int tweets, int following, int followers, int likes) throws IOException {
 		// Initialize the TwitterMetrics instance
   	  	Sheets service = SheetService.getSheets();
-		Properties props = new Properties();
-		props.load(new FileInputStream("google/sheet.properties"));
-		String spreadsheetId = props.getProperty("twitterMetrics");
+		String spreadsheetId = SheetService.getSheetProperty("twitterMetrics");
   	  	Date date = new Date(); 
 		TwitterMetrics sheetname = new TwitterMetrics(service, spreadsheetId, account, date);
+  	  	List<Request> requests = new ArrayList<Request>();
+  	  	requests.add(getUpdateRequest(sheetname.getSheetId(sheetname.getSheetTitle()), date,
+  	  			tweets, following, followers, likes));
+  	  	// Execute the request
+  	  	BatchUpdateSpreadsheetRequest batchUpdateRequest =
+  	  			new BatchUpdateSpreadsheetRequest().setRequests(requests);
+  	  	String operation = SheetMetrics.setOperation(SheetMetrics.METRICS_WRITE);
+  	  	try {
+  	  		service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest)
+  	  				.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS)).execute();
+  	  	} finally {
+  	  		SheetMetrics.setOperation(operation);
+  	  	}
+	}
+	
+	/**
+	 * Creates the request that writes the metrics of a day
+	 * in the row of that day.
+	 *
+	 * @param sheetId the ID of the sheet of the month
+	 * @param date the day
+	 * @param tweets the number of tweets
+	 * @param following the number of friends
+	 * @param followers the number of followers
+	 * @param likes 	the number of likes
+	 * @return an UpdateCells request
+	 */
+	public static Request getUpdateRequest(int sheetId, Date date,
+			int tweets, int following, int followers, int likes) {
 		// Initialize the cell data
   	  	List<CellData> values = new ArrayList<CellData>();
   	  	values.add(new CellData().setUserEnteredValue(new ExtendedValue().setStringValue(new SimpleDateFormat("yyyy-MM-dd").format(date))));
@@ -84,18 +111,80 @@ public class TwitterMetrics extends AbstractTwitterSheet {
   	  	// Create the update request
   	    Calendar cal = Calendar.getInstance();
   	    cal.setTime(date);
-  	  	List<Request> requests = new ArrayList<Request>();
   	  	UpdateCellsRequest updateCellRequest = new UpdateCellsRequest()
   	  			.setStart(new GridCoordinate()
-  	  					.setSheetId(sheetname.getSheetId(sheetname.getSheetTitle()))
+  	  					.setSheetId(sheetId)
   	  					.setRowIndex(cal.get(Calendar.DAY_OF_MONTH))
   	  					.setColumnIndex(0))
   	  			.setRows(Arrays.asList(new RowData().setValues(values)))
-  	  			.setFields("*");
-  	  	requests.add(new Request().setUpdateCells(updateCellRequest));
-  	  	// Execute the request
-  	  	BatchUpdateSpreadsheetRequest batchUpdateRequest =
-  	  			new BatchUpdateSpreadsheetRequest().setRequests(requests);
-  	  	service.spreadsheets().batchUpdate(spreadsheetId, batchUpdateRequest).execute();
+  	  			.setFields(SheetService.getCellFields());
+  	  	return new Request().setUpdateCells(updateCellRequest);
+	}
+	
+	/**
+	 * Adds the metrics of a Twitter account to a batch writer, so that they
+	 * are sent to the Google spreadsheet together with the metrics of other
+	 * accounts.
+	 *
+	 * @param writer the batch writer
+	 * @param account the screenname of a Twitter account
+	 * @param tweets the number of tweets
+	 * @param following the number of friends
+	 * @param followers the number of followers
+	 * @param likes 	the number of likes
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void UpdateMetrics(MetricsBatchWriter writer, String account,
+			int tweets, int following, int followers, int likes) throws IOException {
+		writer.updateTwitterMetrics(SheetService.getSheetProperty("twitterMetrics"), account, new Date(),
+				tweets, following, followers, likes);
+	}
+	
+	/**
+	 * Adds the Twitter metrics and the Klout score of an account to a batch
+	 * writer, so that the complete row for today is written in one request.
+	 *
+	 * @param writer the batch writer
+	 * @param account the screenname of a Twitter account
+	 * @param tweets the number of tweets
+	 * @param following the number of friends
+	 * @param followers the number of followers
+	 * @param likes 	the number of likes
+	 * @param score	the current Klout score
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public static void UpdateMetrics(MetricsBatchWriter writer, String account,
+			int tweets, int following, int followers, int likes, double score) throws IOException {
+		writer.updateDailySnapshot(SheetService.getSheetProperty("twitterMetrics"), account, new Date(),
+				tweets, following, followers, likes, score);
+	}
+	
+	/**
+	 * Updates the metrics of a Twitter account in a Google spreadsheet
+	 * asynchronously, see {@link SheetExecutor}.
+	 *
+	 * @param account the screenname of a Twitter account
+	 * @param tweets the number of tweets
+	 * @param following the number of friends
+	 * @param followers the number of followers
+	 * @param likes 	the number of likes
+	 * @return a future that completes when the metrics are written
+	 */
+	public static CompletableFuture<Void> UpdateMetricsAsync(final String account,
+			final int tweets, final int following, final int followers, final int likes) {
+		String spreadsheetId;
+		try {
+			spreadsheetId = SheetService.getSheetProperty("twitterMetrics");
+		} catch (IOException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Void>() {
+			public Void call() throws IOException {
+				UpdateMetrics(account, tweets, following, followers, likes);
+				return null;
+			}
+		});
 	}
 }
@@ -17,35 +17,131 @@ package com.directmediatips.google.sheets.twitter;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import java.util.TreeMap;
 
+import com.directmediatips.google.sheets.ChunkedRangeWriter;
+import com.directmediatips.google.sheets.LongIndex;
+import com.directmediatips.google.sheets.ParallelDecoder;
+import com.directmediatips.google.sheets.RangeCache;
+import com.directmediatips.google.sheets.RangeIterator;
+import com.directmediatips.google.sheets.RangeSnapshot;
+import com.directmediatips.google.sheets.RowCodec;
+import com.directmediatips.google.sheets.RowSchema;
+import com.directmediatips.google.sheets.RowTable;
+import com.directmediatips.google.sheets.SheetExecutor;
+import com.directmediatips.google.sheets.SheetMetrics;
 import com.directmediatips.google.sheets.SheetService;
 import com.google.api.services.sheets.v4.Sheets;
+import com.google.api.services.sheets.v4.model.BatchUpdateValuesRequest;
 import com.google.api.services.sheets.v4.model.ValueRange;
 
 /**
  * Uses a Google spreadsheet to list who is following us based on search criteria.
  */
 public class TwitterRichData {
-
+	
 	/**
 	 * Inner class to store account info.
 	 */
 	public class Account {
 		
+		/** The account ID. */
+		public long id;
+		
 		/** The screen name. */
 		public String screenname;
 		
-		/** The accounts of interest. */
-		public List<Integer> accounts = new ArrayList<Integer>();
+		/** The accounts of interest as a bit mask: bit i is set if our account i is followed. */
+		public long accounts;
+		
+		/**
+		 * Checks if one of our accounts is followed.
+		 *
+		 * @param i an index referring to one of our own accounts
+		 * @return true, if the account is followed
+		 */
+		public boolean follows(int i) {
+			return (accounts & (1L << i)) != 0;
+		}
 	}
 	
-	/** An ordered map with account that follow at least one of our accounts. */
-	protected Map<Long, Account> accounts = new TreeMap<Long, Account>();
-
+	/**
+	 * Immutable view of everything a run reads from the spreadsheet,
+	 * see {@link TwitterRichData#getSnapshot()}.
+	 */
+	public class Snapshot {
+		
+		/** The part of the query that comes after WHERE. */
+		protected final String whereClause;
+		/** Our Twitter accounts. */
+		protected final List<Object> fromAccounts;
+		/** The followers info, with account IDs as key. */
+		protected final Map<Long, Account> toAccounts;
+		/** The direct message. */
+		protected final String directMessage;
+		
+		/**
+		 * Creates a Snapshot instance from the ranges it was loaded from.
+		 *
+		 * @param ranges	a snapshot with {@link #RANGE1} up to {@link #RANGE4}
+		 */
+		protected Snapshot(RangeSnapshot ranges) {
+			Object where = ranges.getValue(RANGE1, 0, 0);
+			whereClause = where == null ? null : where.toString();
+			List<List<Object>> from = ranges.getValues(RANGE2);
+			fromAccounts = from.isEmpty() ? Collections.<Object>emptyList() : from.get(0);
+			toAccounts = Collections.unmodifiableMap(toAccounts(ranges.getValues(RANGE3)));
+			Object message = ranges.getValue(RANGE4, 0, 0);
+			directMessage = message == null ? null : message.toString();
+		}
+		
+		/**
+		 * Gets the part of an SQL statement that defines the criteria.
+		 *
+		 * @return the part of the query that comes after WHERE
+		 */
+		public String getWhereClause() {
+			return whereClause;
+		}
+		
+		/**
+		 * Gets the list of our Twitter accounts.
+		 *
+		 * @return an unmodifiable List of Twitter accounts
+		 */
+		public List<Object> getFromAccounts() {
+			return fromAccounts;
+		}
+		
+		/**
+		 * Gets the followers info.
+		 *
+		 * @return an unmodifiable Map with account IDs as key and extra info as value
+		 */
+		public Map<Long, Account> getToAccounts() {
+			return toAccounts;
+		}
+		
+		/**
+		 * Gets the direct message.
+		 *
+		 * @return the message
+		 */
+		public String getDirectMessage() {
+			return directMessage;
+		}
+	}
+	
+	/** The table with the accounts that follow at least one of our accounts. */
+	protected FollowerTable accounts = new FollowerTable(1024);
+	
 	/** The range where we can find the WHERE clause in the Google spreadsheet. */
 	public static final String RANGE1 = "criteria!A1";
 	/** The range where we can find our twitter accounts in the Google spreadsheet. */
@@ -55,6 +151,15 @@ public class TwitterRichData {
 	/** The range where we can find the direct message in the Google spreadsheet. */
 	public static final String RANGE4 = "mail!A1";
 	
+	/** The columns of the results sheet. */
+	public static final RowSchema SCHEMA = new RowSchema.Builder()
+			.addLong("id")
+			.addString("screenname")
+			.addFlags("accounts", FollowerTable.MAX_ACCOUNTS)
+			.build();
+	/** Reads the results sheet, see {@link RowCodec}. */
+	protected static final RowCodec CODEC = new RowCodec(SCHEMA);
+	
 	/** The Google Sheets service. */
 	protected Sheets service;
 	/** The ID of the spreadsheet with the Twitter information. */
@@ -72,38 +177,82 @@ public class TwitterRichData {
 		this.spreadsheetId = props.getProperty("twitterRichData");
 	}
 	
+	/**
+	 * Creates a TwitterData instance for a specific service and spreadsheet.
+	 *
+	 * @param service	the Sheets service
+	 * @param spreadsheetId	an ID of a Google sheets document
+	 */
+	public TwitterRichData(Sheets service, String spreadsheetId) {
+		this.service = service;
+		this.spreadsheetId = spreadsheetId;
+	}
+	
 	/**
 	 * Gets the part of an SQL statement that defines the criteria. 
+	 * The value is cached, see {@link RangeCache}.
 	 *
 	 * @return the part of the query that comes after WHERE
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public String getWhereClause() throws IOException {
-		ValueRange response = service
-				.spreadsheets()
-				.values()
-				.get(spreadsheetId, RANGE1)
-				.execute();
-		List<List<Object>> values = response.getValues();
+		List<List<Object>> values = getValues(RANGE1);
 		return values.get(0).get(0).toString();
 	}
-
+	
 	/**
 	 * Gets a list of Twitter accounts from the spreadsheet.
+	 * The value is cached, see {@link RangeCache}.
 	 *
 	 * @return a List of Twitter accounts
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public List<Object> getFromAccounts() throws IOException {
-		ValueRange response = service
-				.spreadsheets()
-				.values()
-				.get(spreadsheetId, RANGE2)
-				.execute();
-		List<List<Object>> values = response.getValues();
+		List<List<Object>> values = getValues(RANGE2);
 		return values.get(0);
 	}
 	
+	/**
+	 * Reads the criteria, our accounts, the followers info and the direct
+	 * message with a single call, see {@link RangeSnapshot}. The static
+	 * ranges come from the {@link RangeCache} when they are cached.
+	 *
+	 * @return a Snapshot of the inputs of a run
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public Snapshot getSnapshot() throws IOException {
+		RangeSnapshot ranges;
+		String operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_READ);
+		try {
+			ranges = new RangeSnapshot.Loader(service, spreadsheetId)
+					.addCached(RANGE1, RangeCache.DEFAULT_TTL)
+					.addCached(RANGE2, RangeCache.DEFAULT_TTL)
+					.add(RANGE3)
+					.addCached(RANGE4, RangeCache.DEFAULT_TTL)
+					.load();
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+		return new Snapshot(ranges);
+	}
+	
+	/**
+	 * Reads a small configuration range, through the {@link RangeCache}.
+	 *
+	 * @param range the range in A1 notation
+	 * @return the values of the range
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected List<List<Object>> getValues(String range) throws IOException {
+		String operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_READ);
+		try {
+			return RangeCache.getInstance()
+					.get(service, spreadsheetId, range, RangeCache.DEFAULT_TTL);
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
 	/**
 	 * Adds an account to our list of accounts.
 	 *
@@ -112,40 +261,273 @@ public class TwitterRichData {
 	 * @param count an index referring to one of our own accounts
 	 */
 	public void add(long id, String screenname, int count) {
-		Account account = accounts.get(id);
-		if (account == null) {
-			account = new Account();
-			account.screenname = screenname;
-		}
-		account.accounts.add(count);
-		accounts.put(id, account);
+		accounts.add(id, screenname, count);
 	}
 	
 	/**
 	 * Processes the list of accounts, and writes the results to the Google sheets document.
+	 * The rows are built and sent in windows, see {@link ChunkedRangeWriter}.
 	 *
 	 * @param count the total number of accounts on our end
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public void process(int count) throws IOException {
-		List<List<Object>> data = new ArrayList<List<Object>>();
-		List<Object> row;
-		for (Map.Entry<Long, Account> entry : accounts.entrySet()) {
-			row = new ArrayList<Object>();
-			row.add(entry.getKey().toString());
-			Account account = entry.getValue();
-			row.add(account.screenname);
-			for (int i = 0; i < count; i++) {
-				if (account.accounts.contains(i)) {
-					row.add(1);
-				}
-				else {
-					row.add(0);
+		String operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_WRITE);
+		try {
+			new ChunkedRangeWriter(service, spreadsheetId, "results", "A", "Z", 2)
+				.write(getRows(count));
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
+	/**
+	 * Processes the list of accounts, but only writes the cells that are
+	 * different from the results that are in the Google sheets document.
+	 * Followers that are still there keep their row, so unchanged rows are
+	 * never sent. The rows of followers that are gone are reused for new
+	 * followers; new followers that don't fit are appended. If rows are
+	 * left empty, the last rows are moved into them, and the tail is cleared.
+	 * The changed cells are grouped into contiguous ranges that are written
+	 * with a single batch update. As a result, the rows are no longer
+	 * ordered by account ID; when more than half of the rows change,
+	 * the complete results are rewritten with {@link #process(int)} instead.
+	 *
+	 * @param count the total number of accounts on our end
+	 * @return the number of cells that were written
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	public int processChanged(int count) throws IOException {
+		if (count > FollowerTable.MAX_ACCOUNTS)
+			throw new IllegalArgumentException("Too many accounts: " + count);
+		RowTable table;
+		String operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_READ);
+		try {
+			table = CODEC.read(service, spreadsheetId, RANGE3);
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+		int[] target = getTargetSlots(table);
+		int[] spans = new int[target.length];
+		int changed = 0;
+		for (int row = 0; row < target.length; row++) {
+			spans[row] = getChangedSpan(table, row, target[row], count);
+			if (spans[row] != -1)
+				changed++;
+		}
+		if (changed * 2 > target.length) {
+			process(count);
+			return target.length * (count + 2);
+		}
+		List<ValueRange> ranges = new ArrayList<ValueRange>();
+		int cells = 0;
+		int start = -1;
+		int first = 0;
+		int last = 0;
+		for (int row = 0; row <= target.length; row++) {
+			int span = row < target.length ? spans[row] : -1;
+			if (span != -1) {
+				if (start == -1) {
+					start = row;
+					first = span >> 8;
+					last = span & 0xff;
 				}
+				first = Math.min(first, span >> 8);
+				last = Math.max(last, span & 0xff);
 			}
-			data.add(row);
+			else if (start != -1) {
+				ranges.add(getValueRange(start, row, first, last, target));
+				cells += (row - start) * (last - first + 1);
+				start = -1;
+			}
+		}
+		if (!ranges.isEmpty()) {
+			operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_WRITE);
+			try {
+				service.spreadsheets()
+					.values()
+					.batchUpdate(spreadsheetId, new BatchUpdateValuesRequest()
+						.setValueInputOption("RAW")
+						.setData(ranges))
+					.setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS))
+					.execute();
+			} finally {
+				SheetMetrics.setOperation(operation);
+			}
+			RangeCache.getInstance().invalidate(spreadsheetId, RANGE3);
 		}
-		update(data);
+		return cells;
+	}
+	
+	/**
+	 * Decides which follower goes in which row of the results sheet,
+	 * keeping the rows of the followers that are already there.
+	 *
+	 * @param table	the results that are in the spreadsheet now
+	 * @return the slot of the follower per row, or -1 for a row that has to be empty
+	 */
+	protected int[] getTargetSlots(RowTable table) {
+		int n = table.size();
+		int size = accounts.size();
+		int[] target = new int[Math.max(n, size)];
+		boolean[] placed = new boolean[size];
+		int holes = 0;
+		for (int row = 0; row < n; row++) {
+			long id = table.getLong(0, row);
+			int slot = id > 0 ? accounts.getSlot(id) : LongIndex.MISSING;
+			if (slot == LongIndex.MISSING || placed[slot]) {
+				target[row] = -1;
+				holes++;
+			}
+			else {
+				target[row] = slot;
+				placed[slot] = true;
+			}
+		}
+		for (int row = n; row < target.length; row++)
+			target[row] = -1;
+		// New followers go into the empty rows first, in the order of their ID
+		int row = 0;
+		for (int slot : accounts.getSortedSlots()) {
+			if (placed[slot])
+				continue;
+			while (target[row] != -1)
+				row++;
+			target[row] = slot;
+		}
+		// Rows that are still empty are filled with the last rows
+		int last = target.length - 1;
+		for (row = 0; row < size; row++) {
+			if (target[row] != -1)
+				continue;
+			while (target[last] == -1)
+				last--;
+			target[row] = target[last];
+			target[last] = -1;
+		}
+		return target;
+	}
+	
+	/**
+	 * Compares a row of the results sheet with the follower that has to go there.
+	 * Column 0 is the ID, column 1 the screen name, column i + 2 the flag of account i.
+	 *
+	 * @param table	the results that are in the spreadsheet now
+	 * @param row	the index of the row
+	 * @param slot	the slot of the follower, or -1 for an empty row
+	 * @param count	the total number of accounts on our end
+	 * @return the first and the last column that have to be written as
+	 *	<code>first &lt;&lt; 8 | last</code>, or -1 if the row didn't change
+	 */
+	protected int getChangedSpan(RowTable table, int row, int slot, int count) {
+		long oldId = row < table.size() ? table.getLong(0, row) : 0;
+		String oldName = row < table.size() ? table.getString(1, row) : null;
+		long oldMask = row < table.size() ? table.getLong(2, row) : 0;
+		// A row that gets another follower, or no follower, is written over its full width
+		int width = Math.max(count, 64 - Long.numberOfLeadingZeros(oldMask)) + 1;
+		if (slot == -1) {
+			if (oldId == 0 && (oldName == null || oldName.isEmpty()) && oldMask == 0)
+				return -1;
+			return width;
+		}
+		if (oldId != accounts.getId(slot))
+			return width;
+		int first = Integer.MAX_VALUE;
+		int last = -1;
+		String name = accounts.getScreenname(slot);
+		if (name == null ? oldName != null && !oldName.isEmpty() : !name.equals(oldName)) {
+			first = 1;
+			last = 1;
+		}
+		long diff = accounts.getMask(slot) ^ oldMask;
+		if (diff != 0) {
+			first = Math.min(first, Long.numberOfTrailingZeros(diff) + 2);
+			last = 65 - Long.numberOfLeadingZeros(diff);
+		}
+		return last == -1 ? -1 : first << 8 | last;
+	}
+	
+	/**
+	 * Creates a ValueRange with the cells of a number of contiguous rows.
+	 *
+	 * @param from	the index of the first row (inclusive)
+	 * @param to	the index of the last row (exclusive)
+	 * @param first	the first column that is written
+	 * @param last	the last column that is written
+	 * @param target	the slot of the follower per row, or -1 for an empty row
+	 * @return a ValueRange covering the rows and columns
+	 */
+	protected ValueRange getValueRange(int from, int to, int first, int last, int[] target) {
+		List<List<Object>> values = new ArrayList<List<Object>>(to - from);
+		for (int row = from; row < to; row++) {
+			int slot = target[row];
+			List<Object> cells = new ArrayList<Object>(last - first + 1);
+			for (int column = first; column <= last; column++) {
+				if (slot == -1)
+					cells.add("");
+				else if (column == 0)
+					cells.add(Long.toString(accounts.getId(slot)));
+				else if (column == 1)
+					cells.add(accounts.getScreenname(slot));
+				else
+					cells.add((int)(accounts.getMask(slot) >>> (column - 2)) & 1);
+			}
+			values.add(cells);
+		}
+		return new ValueRange()
+			.setRange(String.format("results!%s%d:%s%d", getColumn(first), from + 2, getColumn(last), to + 1))
+			.setValues(values);
+	}
+	
+	/**
+	 * Gets the letters of a column in A1 notation.
+	 *
+	 * @param column	the index of the column (0-based)
+	 * @return the letters, e.g. "A", "Z", "AA"
+	 */
+	protected static String getColumn(int column) {
+		String letters = "";
+		for (column++; column > 0; column = (column - 1) / 26)
+			letters = (char)('A' + (column - 1) % 26) + letters;
+		return letters;
+	}
+	
+	/**
+	 * Gets the rows with the results, ordered by account ID.
+	 * A row is only created when the iterator reaches it.
+	 *
+	 * @param count the total number of accounts on our end
+	 * @return an iterator over the rows
+	 */
+	public Iterator<List<Object>> getRows(final int count) {
+		if (count > FollowerTable.MAX_ACCOUNTS)
+			throw new IllegalArgumentException("Too many accounts: " + count);
+		final int[] slots = accounts.getSortedSlots();
+		return new Iterator<List<Object>>() {
+			private int n = 0;
+			
+			public boolean hasNext() {
+				return n < slots.length;
+			}
+			
+			public List<Object> next() {
+				if (n == slots.length)
+					throw new NoSuchElementException();
+				int slot = slots[n++];
+				List<Object> row = new ArrayList<Object>(count + 2);
+				row.add(Long.toString(accounts.getId(slot)));
+				row.add(accounts.getScreenname(slot));
+				long mask = accounts.getMask(slot);
+				for (int i = 0; i < count; i++) {
+					row.add((int)(mask >>> i) & 1);
+				}
+				return row;
+			}
+			
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
 	}
 	
 	/**
@@ -157,52 +539,133 @@ public class TwitterRichData {
 	public void update(List<List<Object>> data) throws IOException {
 		ValueRange valueRange = new ValueRange();
         valueRange.setValues(data);
-        service.spreadsheets()
-        	.values()
-        	.update(spreadsheetId, RANGE3, valueRange)
-            .setValueInputOption("RAW")
-            .execute();
+        String operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_WRITE);
+        try {
+            service.spreadsheets()
+            	.values()
+            	.update(spreadsheetId, RANGE3, valueRange)
+                .setValueInputOption("RAW")
+                .setFields(SheetService.getResponseFields(SheetService.UPDATE_FIELDS))
+                .execute();
+        } finally {
+            SheetMetrics.setOperation(operation);
+        }
+        RangeCache.getInstance().invalidate(spreadsheetId, RANGE3);
 	}
 	
 	/**
 	 * Gets the direct message from the Google spreadsheet. 
+	 * The value is cached, see {@link RangeCache}.
 	 *
 	 * @return the message
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public String getDirectMessage() throws IOException {
-		ValueRange response = service
-				.spreadsheets()
-				.values()
-				.get(spreadsheetId, RANGE4)
-				.execute();
-		List<List<Object>> values = response.getValues();
+		List<List<Object>> values = getValues(RANGE4);
 		return values.get(0).get(0).toString();
 	}
 	
 	/**
 	 * Reads followers info from the Google spreadsheet.
+	 * Large ranges are decoded in parallel, see {@link ParallelDecoder}.
 	 *
 	 * @return a Map with account IDs as key and extra info as value.
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 */
 	public Map<Long, Account> getToAccounts() throws IOException {
-		Map<Long, Account> map = new TreeMap<Long, Account>();
-		ValueRange response = service.spreadsheets().values()
-	            .get(spreadsheetId, RANGE3)
-	            .execute();
-		List<List<Object>> values = response.getValues();
-		if (values != null && values.size() > 0) {
-			long id;
-			for (List<Object> row : values) {
-				id = getId(row.get(0).toString());
-				if (id > 0)
-					map.put(id,	getAccount(row));
+		final RowTable table;
+		String operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_READ);
+		try {
+			table = CODEC.read(service, spreadsheetId, RANGE3);
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+		return toMap(ParallelDecoder.getInstance().decode(table.size(),
+				new ParallelDecoder.Decoder<Account>() {
+			public Account decode(int row) {
+				long id = table.getLong(0, row);
+				if (id <= 0)
+					return null;
+				Account account = new Account();
+				account.id = id;
+				account.screenname = table.getString(1, row);
+				account.accounts = table.getLong(2, row);
+				return account;
 			}
+		}));
+	}
+	
+	/**
+	 * Converts the rows of {@link #RANGE3} into Account objects.
+	 * Large ranges are decoded in parallel, see {@link ParallelDecoder}.
+	 *
+	 * @param values	the rows, may be null
+	 * @return a Map with account IDs as key and extra info as value.
+	 */
+	protected Map<Long, Account> toAccounts(List<List<Object>> values) {
+		return toMap(ParallelDecoder.getInstance().decode(values,
+				new RangeIterator.RowDecoder<Account>() {
+			public Account decode(int index, List<Object> row) {
+				long id = getId(row.get(0).toString());
+				if (id <= 0)
+					return null;
+				Account account = getAccount(row);
+				account.id = id;
+				return account;
+			}
+		}));
+	}
+	
+	/**
+	 * Puts decoded accounts in a Map, in the order of their IDs.
+	 *
+	 * @param accounts	the accounts, with their id set; null for skipped rows
+	 * @return a Map with account IDs as key and extra info as value.
+	 */
+	protected Map<Long, Account> toMap(List<Account> accounts) {
+		Map<Long, Account> map = new TreeMap<Long, Account>();
+		for (Account account : accounts) {
+			if (account != null)
+				map.put(account.id, account);
 		}
 		return map;
 	}
 	
+	/**
+	 * Iterates over the followers info in the Google spreadsheet, window by window,
+	 * in the order of the spreadsheet. Only two windows are kept in memory.
+	 * Close the iterator if you stop before the end.
+	 *
+	 * @return an iterator over Account objects, with their id set
+	 */
+	public RangeIterator<Account> iterateToAccounts() {
+		String operation = SheetMetrics.setOperation(SheetMetrics.RICH_DATA_READ);
+		try {
+			return newToAccountsIterator();
+		} finally {
+			SheetMetrics.setOperation(operation);
+		}
+	}
+	
+	/**
+	 * Creates the iterator of {@link #iterateToAccounts()}.
+	 *
+	 * @return an iterator over Account objects, with their id set
+	 */
+	private RangeIterator<Account> newToAccountsIterator() {
+		return new RangeIterator<Account>(service, spreadsheetId, "results", "A", "Z", 2,
+				RangeIterator.DEFAULT_WINDOW_ROWS, new RangeIterator.RowDecoder<Account>() {
+			public Account decode(int index, List<Object> row) {
+				long id = getId(row.get(0).toString());
+				if (id <= 0)
+					return null;
+				Account account = getAccount(row);
+				account.id = id;
+				return account;
+			}
+		});
+	}
+	
 	/**
 	 * Converts a String into a long, but returns a unique negative
 	 * number if not successful. Most of the times the String will be
@@ -228,10 +691,98 @@ public class TwitterRichData {
 	protected Account getAccount(List<Object> row) {
 		Account account = new Account();
 		account.screenname = (String)row.get(1);
-		for (int i = 2; i < row.size(); i++) {
+		for (int i = 2; i < row.size() && i - 2 < FollowerTable.MAX_ACCOUNTS; i++) {
 			if ("1".equals(row.get(i).toString()))
-				account.accounts.add(i - 2);
+				account.accounts |= 1L << (i - 2);
 		}
 		return account;
 	}
+	
+	/**
+	 * Gets the part of an SQL statement that defines the criteria
+	 * asynchronously, see {@link SheetExecutor}.
+	 *
+	 * @return the future part of the query that comes after WHERE
+	 */
+	public CompletableFuture<String> getWhereClauseAsync() {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<String>() {
+			public String call() throws IOException {
+				return getWhereClause();
+			}
+		});
+	}
+	
+	/**
+	 * Reads the inputs of a run asynchronously, see {@link #getSnapshot()}
+	 * and {@link SheetExecutor}.
+	 *
+	 * @return a future Snapshot
+	 */
+	public CompletableFuture<Snapshot> getSnapshotAsync() {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Snapshot>() {
+			public Snapshot call() throws IOException {
+				return getSnapshot();
+			}
+		});
+	}
+	
+	/**
+	 * Reads followers info from the Google spreadsheet asynchronously,
+	 * see {@link SheetExecutor}.
+	 *
+	 * @return a future Map with account IDs as key and extra info as value.
+	 */
+	public CompletableFuture<Map<Long, Account>> getToAccountsAsync() {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Map<Long, Account>>() {
+			public Map<Long, Account> call() throws IOException {
+				return getToAccounts();
+			}
+		});
+	}
+	
+	/**
+	 * Processes the list of accounts asynchronously, see {@link #process(int)}
+	 * and {@link SheetExecutor}.
+	 *
+	 * @param count the total number of accounts on our end
+	 * @return a future that completes when the results are written
+	 */
+	public CompletableFuture<Void> processAsync(final int count) {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Void>() {
+			public Void call() throws IOException {
+				process(count);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Writes the changed results asynchronously, see {@link #processChanged(int)}
+	 * and {@link SheetExecutor}.
+	 *
+	 * @param count the total number of accounts on our end
+	 * @return the future number of cells that were written
+	 */
+	public CompletableFuture<Integer> processChangedAsync(final int count) {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Integer>() {
+			public Integer call() throws IOException {
+				return processChanged(count);
+			}
+		});
+	}
+	
+	/**
+	 * Updates the spreadsheet asynchronously, see {@link SheetExecutor}.
+	 *
+	 * @param data a two-dimensional array with harvest data as stored in the database
+	 * @return a future that completes when the data is written
+	 */
+	public CompletableFuture<Void> updateAsync(final List<List<Object>> data) {
+		return SheetExecutor.getInstance().submit(spreadsheetId, new SheetExecutor.IOCallable<Void>() {
+			public Void call() throws IOException {
+				update(data);
+				return null;
+			}
+		});
+	}
 }